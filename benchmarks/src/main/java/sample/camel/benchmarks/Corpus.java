@@ -0,0 +1,55 @@
+package sample.camel.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The HL7 messages used by the benchmarks, generated by Hl7Generator from the
+ * samples of the application in resources/data (sample.admision and
+ * sample.observation).
+ * <p/>
+ * Every message has its own control ID and patient, so a benchmark does not
+ * handle the same string over and over, and the sample number of OBX
+ * segments. The generation is seeded, every run gets the same corpus.
+ * <p/>
+ * The folder of the samples is the system property hl7.corpus.dir,
+ * ../resources/data by default (the benchmarks are run from their module).
+ */
+public final class Corpus {
+
+    public static final String ADMISSION = "sample.admision";
+    public static final String OBSERVATION = "sample.observation";
+
+    private Corpus() {
+    }
+
+    /**
+     * Returns size messages generated from the given sample, with \r segment
+     * terminators as the pipeline has them after Hl7Normalizer.
+     */
+    public static String[] generate(String sample, int size) throws IOException {
+        Hl7Generator generator = new Hl7Generator(read(sample), "BENCH", 42, Integer.MAX_VALUE, 1);
+        String[] messages = new String[size];
+        for (int i = 0; i < size; i++) {
+            messages[i] = generator.next();
+        }
+        return messages;
+    }
+
+    /**
+     * The message as senders on other systems often write it: \n line ends and
+     * HTML escaped, the input Hl7Normalizer is for.
+     */
+    public static String asReceived(String message) {
+        return message.replace("&", "&amp;").replace('\r', '\n');
+    }
+
+    /** Reads a sample of the corpus folder. */
+    public static String read(String sample) throws IOException {
+        Path file = Paths.get(System.getProperty("hl7.corpus.dir", "../resources/data"), sample);
+        return Files.readString(file, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,117 @@
+package sample.camel.benchmarks;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+
+/**
+ * Generates synthetic HL7 v2 messages from a sample message.
+ * <p/>
+ * Every message is a copy of the sample with its own values:
+ * <ul>
+ * <li>MSH-7: a message time, MSH-10: a unique control ID (prefix and
+ * counter).</li>
+ * <li>PID-2 and PID-3: a patient identifier drawn from a pool of the given
+ * size, so some patients come back, as in a real feed. PID-5, PID-7 and PID-8
+ * (name, birth date and sex) are derived from the identifier, a patient keeps
+ * them from message to message.</li>
+ * <li>OBX: when the sample has OBX segments, the first one is repeated 1 to
+ * maxObservations times with its own set ID, value and time.</li>
+ * </ul>
+ * The generation is seeded, the same seed gives the same messages. Segments
+ * are terminated by \r. Instances are thread safe.
+ */
+public final class Hl7Generator {
+
+    private static final String[] FAMILY = { "Grillo", "Perez", "Garcia", "Smith", "Nguyen", "Muller", "Rossi",
+            "Tanaka", "Silva", "O'Brien", "Kowalski", "Haddad", "Okafor", "Johansson", "Dubois", "Kim" };
+    private static final String[] GIVEN = { "Pepito", "Maria", "John", "Anh", "Lena", "Giulia", "Haruto", "Ana",
+            "Sean", "Jose", "Amina", "Lars", "Chloe", "Min-jun", "Chidi", "Zofia" };
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+    private static final LocalDateTime EPOCH = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+    private final String[][] segments;
+    private final String prefix;
+    private final int patients;
+    private final int maxObservations;
+    private final Random random;
+    private long count;
+
+    /**
+     * @param sample          the sample message, segments separated by \r or \n
+     * @param prefix          prefix of the control IDs, to tell generators apart
+     * @param seed            seed of the values
+     * @param patients        size of the pool of patient identifiers
+     * @param maxObservations maximum number of OBX segments of a message
+     */
+    public Hl7Generator(String sample, String prefix, long seed, int patients, int maxObservations) {
+        String[] lines = sample.trim().replace("\r\n", "\r").replace('\n', '\r').split("\r");
+        this.segments = new String[lines.length][];
+        for (int i = 0; i < lines.length; i++) {
+            segments[i] = lines[i].split("\\|", -1);
+        }
+        this.prefix = prefix;
+        this.random = new Random(seed);
+        this.patients = Math.max(1, patients);
+        this.maxObservations = Math.max(1, maxObservations);
+    }
+
+    public synchronized String next() {
+        long n = count++;
+        int patient = random.nextInt(patients);
+        LocalDateTime time = EPOCH.plusSeconds(n * 7 + random.nextInt(7));
+        int observations = 1 + random.nextInt(maxObservations);
+
+        StringBuilder out = new StringBuilder(1024);
+        boolean observationsDone = false;
+        for (String[] template : segments) {
+            String[] fields = template.clone();
+            switch (fields[0]) {
+            case "MSH":
+                // MSH-1 is the separator itself, MSH-n is fields[n - 1]
+                set(fields, 6, TIMESTAMP.format(time));
+                set(fields, 9, prefix + "-" + n);
+                break;
+            case "PID":
+                patient(fields, patient);
+                break;
+            case "OBX":
+                if (observationsDone) {
+                    continue;
+                }
+                for (int k = 1; k <= observations; k++) {
+                    String[] obx = template.clone();
+                    set(obx, 1, String.valueOf(k));
+                    set(obx, 5, "Result " + k + " of " + observations + ": " + (random.nextInt(900) + 100));
+                    set(obx, 14, TIMESTAMP.format(time.minusMinutes(random.nextInt(600))));
+                    out.append(String.join("|", obx)).append('\r');
+                }
+                observationsDone = true;
+                continue;
+            default:
+                break;
+            }
+            out.append(String.join("|", fields)).append('\r');
+        }
+        return out.toString();
+    }
+
+    // The values of a patient only depend on its number
+    private static void patient(String[] fields, int patient) {
+        Random values = new Random(patient * 31L + 7);
+        String id = String.valueOf(100000000L + patient);
+        set(fields, 2, id);
+        set(fields, 3, id);
+        set(fields, 5, FAMILY[values.nextInt(FAMILY.length)] + "^" + GIVEN[values.nextInt(GIVEN.length)]
+                + "^\"\"^^\"\"");
+        set(fields, 7, String.format("%04d%02d%02d", 1930 + values.nextInt(90), 1 + values.nextInt(12),
+                1 + values.nextInt(28)));
+        set(fields, 8, values.nextBoolean() ? "M" : "F");
+    }
+
+    private static void set(String[] fields, int index, String value) {
+        if (index < fields.length) {
+            fields[index] = value;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package sample.camel.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.hl7v2.model.v24.message.ADT_A01;
+import ca.uhn.hl7v2.parser.PipeParser;
+import sample.camel.hl7.RawHl7Message;
+import sample.camel.mapping.Hl7Mapping;
+import sample.camel.mapping.Hl7MappingRegistry;
+import sample.camel.processors.Hl7Register2FhirPatientProcessor;
+
+/**
+ * HL7 to FHIR Patient mapping of ADT^A04 messages.
+ * <p/>
+ * javaMapper is Hl7Register2FhirPatientProcessor on a message already parsed
+ * by HAPI, declarativeMapping the YAML mapping of resources/mappings reading
+ * the raw text (the segment index included, no HAPI parse is needed).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MappingBenchmark {
+
+    private final Hl7Register2FhirPatientProcessor javaMapper = new Hl7Register2FhirPatientProcessor();
+    private CamelContext camelContext;
+    private Hl7Mapping mapping;
+    private String[] texts;
+    private ADT_A01[] parsed;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        camelContext = new DefaultCamelContext();
+        camelContext.start();
+        mapping = new Hl7MappingRegistry(FhirContext.forR4Cached(), "classpath:mappings/*.yaml", "")
+                .get("ADT", "A04");
+        texts = Corpus.generate(Corpus.ADMISSION, 1024);
+        parsed = new ADT_A01[texts.length];
+        PipeParser parser = new PipeParser();
+        for (int i = 0; i < texts.length; i++) {
+            parsed[i] = (ADT_A01) parser.parse(texts[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        camelContext.stop();
+    }
+
+    private int next() {
+        int i = next;
+        next = (next + 1) % texts.length;
+        return i;
+    }
+
+    @Benchmark
+    public Object javaMapper() throws Exception {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(parsed[next()]);
+        javaMapper.process(exchange);
+        return exchange.getIn().getBody();
+    }
+
+    @Benchmark
+    public IBaseResource declarativeMapping() {
+        return mapping.map(new RawHl7Message(texts[next()]));
+    }
+}
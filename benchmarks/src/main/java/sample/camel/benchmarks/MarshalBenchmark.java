@@ -0,0 +1,78 @@
+package sample.camel.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.context.FhirContext;
+import sample.camel.fhir.FhirJsonPayload;
+import sample.camel.hl7.RawHl7Message;
+import sample.camel.mapping.Hl7Mapping;
+import sample.camel.mapping.Hl7MappingRegistry;
+
+/**
+ * FHIR JSON marshalling of the Patient of ADT^A04 messages.
+ * <p/>
+ * hapiEncode serializes a Patient already built, as .marshal().fhirJson()
+ * does. mapAndEncode and streamingJson both start from the raw message:
+ * mapAndEncode builds the HAPI Patient and serializes it, streamingJson writes
+ * the same JSON straight from the HL7 values (fhir.json.streaming=true).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MarshalBenchmark {
+
+    private FhirContext fhirContext;
+    private Hl7Mapping mapping;
+    private RawHl7Message[] messages;
+    private IBaseResource[] patients;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        fhirContext = FhirContext.forR4Cached();
+        mapping = new Hl7MappingRegistry(fhirContext, "classpath:mappings/*.yaml", "").get("ADT", "A04");
+        String[] texts = Corpus.generate(Corpus.ADMISSION, 1024);
+        messages = new RawHl7Message[texts.length];
+        patients = new IBaseResource[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            messages[i] = new RawHl7Message(texts[i]);
+            patients[i] = mapping.map(messages[i]);
+        }
+    }
+
+    private int next() {
+        int i = next;
+        next = (next + 1) % messages.length;
+        return i;
+    }
+
+    @Benchmark
+    public String hapiEncode() {
+        return fhirContext.newJsonParser().encodeResourceToString(patients[next()]);
+    }
+
+    @Benchmark
+    public String mapAndEncode() {
+        return fhirContext.newJsonParser().encodeResourceToString(mapping.map(messages[next()]));
+    }
+
+    @Benchmark
+    public FhirJsonPayload streamingJson() {
+        return mapping.writeJson(messages[next()]);
+    }
+}
@@ -0,0 +1,101 @@
+package sample.camel.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import sample.camel.hl7.MshHeader;
+import sample.camel.processors.VerifyHl7Type;
+
+/**
+ * MSH type detection (MSH-9 and the other MSH headers) by VerifyHl7Type.
+ * <p/>
+ * The processor is run on the three bodies it accepts: the raw text, the raw
+ * bytes and a HAPI message already parsed (the MSH segment is encoded again).
+ * mshHeaderBytes is the bare MshHeader parse, without the exchange.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageTypeBenchmark {
+
+    private final VerifyHl7Type verifyHl7Type = new VerifyHl7Type();
+    private CamelContext camelContext;
+    private String[] texts;
+    private byte[][] bytes;
+    private Message[] parsed;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        camelContext = new DefaultCamelContext();
+        camelContext.start();
+        texts = Corpus.generate(Corpus.ADMISSION, 1024);
+        bytes = new byte[texts.length][];
+        parsed = new Message[texts.length];
+        PipeParser parser = new PipeParser();
+        for (int i = 0; i < texts.length; i++) {
+            bytes[i] = texts[i].getBytes(StandardCharsets.UTF_8);
+            parsed[i] = parser.parse(texts[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        camelContext.stop();
+    }
+
+    private int next() {
+        int i = next;
+        next = (next + 1) % texts.length;
+        return i;
+    }
+
+    private Exchange verify(Object body) throws Exception {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(body);
+        verifyHl7Type.process(exchange);
+        return exchange;
+    }
+
+    @Benchmark
+    public Exchange verifyText() throws Exception {
+        return verify(texts[next()]);
+    }
+
+    @Benchmark
+    public Exchange verifyBytes() throws Exception {
+        return verify(bytes[next()]);
+    }
+
+    @Benchmark
+    public Exchange verifyParsedMessage() throws Exception {
+        return verify(parsed[next()]);
+    }
+
+    @Benchmark
+    public MshHeader mshHeaderBytes() throws Exception {
+        byte[] message = bytes[next()];
+        return MshHeader.parse(message, 0, message.length);
+    }
+}
@@ -0,0 +1,65 @@
+package sample.camel.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.text.StringEscapeUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sample.camel.processors.Hl7Normalizer;
+
+/**
+ * HL7 pre-normalisation: segment terminators to \r and HTML entities decoded.
+ * <p/>
+ * hl7Normalizer is the single pass of Hl7Normalizer used by the routes,
+ * replaceAllUnescape the replaceAll + unescapeHtml4 lambda it replaced, kept
+ * as the baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NormalizeBenchmark {
+
+    private byte[][] messages;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        String[] corpus = Corpus.generate(Corpus.ADMISSION, 1024);
+        messages = new byte[corpus.length][];
+        for (int i = 0; i < corpus.length; i++) {
+            messages[i] = Corpus.asReceived(corpus[i]).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private byte[] next() {
+        byte[] message = messages[next];
+        next = (next + 1) % messages.length;
+        return message;
+    }
+
+    @Benchmark
+    public String hl7Normalizer() {
+        byte[] message = next();
+        return Hl7Normalizer.normalize(message, 0, message.length, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String replaceAllUnescape() {
+        String raw = new String(next(), StandardCharsets.UTF_8);
+        raw = raw.replaceAll("\\r?\\n", "\r");
+        return StringEscapeUtils.unescapeHtml4(raw);
+    }
+}
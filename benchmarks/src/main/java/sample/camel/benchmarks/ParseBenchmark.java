@@ -0,0 +1,70 @@
+package sample.camel.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.parser.PipeParser;
+import sample.camel.hl7.RawHl7Message;
+
+/**
+ * Parsing of ADT^A04 (ADT_A01 structure) and ORU^R01 messages with HAPI v2.4.
+ * <p/>
+ * full* is the whole message parse done by the camel-hl7 data format and raw*
+ * the segment index of RawHl7Message used by the declarative mappings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+    private final PipeParser parser = new PipeParser();
+    private String[] admissions;
+    private String[] observations;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        admissions = Corpus.generate(Corpus.ADMISSION, 1024);
+        observations = Corpus.generate(Corpus.OBSERVATION, 1024);
+    }
+
+    private int next() {
+        int i = next;
+        next = (next + 1) % admissions.length;
+        return i;
+    }
+
+    @Benchmark
+    public Message fullAdmission() throws Exception {
+        return parser.parse(admissions[next()]);
+    }
+
+    @Benchmark
+    public Message fullObservation() throws Exception {
+        return parser.parse(observations[next()]);
+    }
+
+    @Benchmark
+    public RawHl7Message rawAdmission() {
+        return new RawHl7Message(admissions[next()]);
+    }
+
+    @Benchmark
+    public RawHl7Message rawObservation() {
+        return new RawHl7Message(observations[next()]);
+    }
+}
@@ -0,0 +1,103 @@
+package sample.camel.benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.ProducerTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import sample.camel.MyCamelApplication;
+
+/**
+ * A full run of the register route (direct:hl7, what the PUT /hl7receiver
+ * endpoint calls) against the in-process StubFhirServer: normalisation, type
+ * check, mapping, marshalling, the HTTP round trip and OutcomeProcessor.
+ * <p/>
+ * The application is started once per trial with its own properties: the
+ * inputs other than direct:hl7 are off or point to an empty folder, and
+ * duplicate detection and the change cache are off because the corpus is sent
+ * over and over. The parameters compare the HAPI path with the streaming JSON
+ * path and one request per message with transaction Bundles (with more than
+ * one JMH thread, -t, so Bundles fill up).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RouteBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean streaming;
+
+    @Param({ "false" })
+    public boolean batch;
+
+    private StubFhirServer server;
+    private ConfigurableApplicationContext application;
+    private ProducerTemplate template;
+    private String[] messages;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        server = StubFhirServer.start(16);
+        Path work = Files.createTempDirectory("hl7-benchmark");
+        application = new SpringApplicationBuilder(MyCamelApplication.class)
+                .properties(
+                        "serverUrl=" + server.getBaseUrl(),
+                        "server.port=0",
+                        "input=" + work.resolve("input"),
+                        "batch.input=" + work.resolve("batch"),
+                        "mllp.enabled=false",
+                        "hl7.lanes.enabled=false",
+                        "hl7.dedup.enabled=false",
+                        "fhir.cache.enabled=false",
+                        "fhir.json.streaming=" + streaming,
+                        "fhir.batch.enabled=" + batch,
+                        "hl7.log.payload-every=0",
+                        "camel.springboot.main-run-until-suspended=false",
+                        "spring.main.banner-mode=off",
+                        "logging.level.root=WARN")
+                .run();
+        template = application.getBean(CamelContext.class).createProducerTemplate();
+        messages = Corpus.generate(Corpus.ADMISSION, 1024);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        template.close();
+        application.close();
+        server.close();
+    }
+
+    // Threads share the state, the race on next only changes which message
+    // of the corpus is sent
+    private String next() {
+        int i = next;
+        next = (i + 1) % messages.length;
+        return messages[i];
+    }
+
+    @Benchmark
+    public String registerPatient() {
+        return template.requestBody("direct:hl7", next(), String.class);
+    }
+}
@@ -0,0 +1,168 @@
+package sample.camel.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * An in-process FHIR server stand-in, so a route can be run end to end without
+ * a network or a real server.
+ * <p/>
+ * It answers what the application sends and nothing else, without storing
+ * anything:
+ * <ul>
+ * <li>GET /metadata: a minimal R4 CapabilityStatement, read once by the HAPI
+ * client.</li>
+ * <li>POST /[type]: 201 Created with a new ID in the Location header.</li>
+ * <li>PUT /[type]/[id]: 200 OK with the next version.</li>
+ * <li>POST / with a transaction Bundle: a transaction-response with one 201
+ * entry per request entry.</li>
+ * </ul>
+ * To look like a real server under load it can wait before answering (a
+ * latency, plus up to the same again of random jitter) and answer a share of
+ * the requests with 503 Service Unavailable (the error rate, 0 to 1). Every
+ * request holds one of the server threads while it waits.
+ */
+public final class StubFhirServer implements AutoCloseable {
+
+    private static final String FHIR_JSON = "application/fhir+json";
+    private static final String CAPABILITY_STATEMENT = "{\"resourceType\":\"CapabilityStatement\",\"status\":\"active\","
+            + "\"kind\":\"instance\",\"fhirVersion\":\"4.0.1\",\"format\":[\"json\"]}";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final FhirContext fhirContext = FhirContext.forR4Cached();
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final long latencyMillis;
+    private final double errorRate;
+
+    private StubFhirServer(HttpServer server, ExecutorService executor, long latencyMillis, double errorRate) {
+        this.server = server;
+        this.executor = executor;
+        this.latencyMillis = latencyMillis;
+        this.errorRate = errorRate;
+    }
+
+    /** Starts a server on a free port of the loopback interface. */
+    public static StubFhirServer start(int threads) throws IOException {
+        return start(threads, 0, 0);
+    }
+
+    /**
+     * Starts a server on a free port of the loopback interface, answering after
+     * latencyMillis to 2 * latencyMillis and failing errorRate of the requests.
+     */
+    public static StubFhirServer start(int threads, long latencyMillis, double errorRate) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        StubFhirServer stub = new StubFhirServer(server, executor, latencyMillis, errorRate);
+        server.createContext("/fhir", stub::handle);
+        server.setExecutor(executor);
+        server.start();
+        return stub;
+    }
+
+    /** The base URL to use as serverUrl. */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/fhir";
+    }
+
+    /** The number of requests answered so far. */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /** The number of requests answered with 503 so far. */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body;
+            try (InputStream in = exchange.getRequestBody()) {
+                body = in.readAllBytes();
+            }
+            requests.incrementAndGet();
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis + ThreadLocalRandom.current().nextLong(latencyMillis + 1));
+            }
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().substring("/fhir".length()).split("/");
+            // path[0] is empty, the path starts with /
+            if ("GET".equals(method) && path.length == 2 && "metadata".equals(path[1])) {
+                respond(exchange, 200, null, CAPABILITY_STATEMENT);
+            } else if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                errors.incrementAndGet();
+                respond(exchange, 503, null, "{\"resourceType\":\"OperationOutcome\",\"issue\":[{\"severity\":"
+                        + "\"error\",\"code\":\"transient\",\"diagnostics\":\"Injected error\"}]}");
+            } else if ("POST".equals(method) && path.length <= 1) {
+                respond(exchange, 200, null, transactionResponse(body));
+            } else if ("POST".equals(method) && path.length == 2) {
+                String id = String.valueOf(ids.incrementAndGet());
+                respond(exchange, 201, path[1] + "/" + id + "/_history/1", resource(path[1], id, "1"));
+            } else if ("PUT".equals(method) && path.length == 3) {
+                String version = String.valueOf(ids.incrementAndGet());
+                respond(exchange, 200, path[1] + "/" + path[2] + "/_history/" + version,
+                        resource(path[1], path[2], version));
+            } else {
+                respond(exchange, 404, null, "{\"resourceType\":\"OperationOutcome\"}");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String transactionResponse(byte[] request) {
+        Bundle bundle = fhirContext.newJsonParser()
+                .parseResource(Bundle.class, new String(request, StandardCharsets.UTF_8));
+        Bundle response = new Bundle().setType(Bundle.BundleType.TRANSACTIONRESPONSE);
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            String type = entry.getResource().fhirType();
+            response.addEntry().getResponse()
+                    .setStatus("201 Created")
+                    .setLocation(type + "/" + ids.incrementAndGet() + "/_history/1");
+        }
+        return fhirContext.newJsonParser().encodeResourceToString(response);
+    }
+
+    private static String resource(String type, String id, String version) {
+        return "{\"resourceType\":\"" + type + "\",\"id\":\"" + id + "\",\"meta\":{\"versionId\":\"" + version
+                + "\"}}";
+    }
+
+    private void respond(HttpExchange exchange, int status, String location, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", FHIR_JSON + ";charset=UTF-8");
+        if (location != null) {
+            exchange.getResponseHeaders().set("Location", getBaseUrl() + "/" + location);
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
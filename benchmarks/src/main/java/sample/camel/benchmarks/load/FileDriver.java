@@ -0,0 +1,100 @@
+package sample.camel.benchmarks.load;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Drops the messages as files into the input folder of the file route
+ * (FromObservationFile2FHIRRoute).
+ * <p/>
+ * Files are written to a staging folder and moved into the input folder, so
+ * Camel never reads a half written file. The file consumer moves a file to
+ * the .camel subfolder once its exchange is done, which is when the message is
+ * completed. The file route handles its own errors, so every message is
+ * counted as successful here: look at the FHIR stand-in errors and the
+ * outcome tag of the hl7.stage timers for the failures.
+ */
+final class FileDriver extends LoadDriver {
+
+    private final Path input;
+    private final Path staging;
+    private final Path done;
+    private final Map<String, Long> pending = new ConcurrentHashMap<>();
+    private final AtomicLong next = new AtomicLong();
+    private final WatchService watcher;
+    private final Thread thread;
+
+    FileDriver(MessageMix messages, Path input, Path staging) throws IOException {
+        super("file", messages);
+        this.input = Files.createDirectories(input);
+        this.staging = Files.createDirectories(staging);
+        this.done = Files.createDirectories(input.resolve(".camel"));
+        this.watcher = done.getFileSystem().newWatchService();
+        done.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+        this.thread = new Thread(this::watch, "FileDriver-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    String getRouteId() {
+        return "observationfilehl7-fhirserver";
+    }
+
+    @Override
+    void send(String message, long due) throws IOException {
+        String name = "load-" + next.getAndIncrement() + ".hl7";
+        Path file = staging.resolve(name);
+        Files.writeString(file, message, StandardCharsets.UTF_8);
+        pending.put(name, due);
+        Files.move(file, input.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // events were lost, look at the folder itself
+                        try (Stream<Path> files = Files.list(done)) {
+                            files.forEach(file -> done(file.getFileName().toString()));
+                        }
+                    } else {
+                        done(((Path) event.context()).getFileName().toString());
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void done(String name) {
+        Long due = pending.remove(name);
+        if (due != null) {
+            completed(due, true);
+        }
+    }
+
+    @Override
+    void close() throws IOException {
+        watcher.close();
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,82 @@
+package sample.camel.benchmarks.load;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap and GC behaviour during the measurement: the heap used, sampled every
+ * 100 milliseconds, and the collections and collection time of every garbage
+ * collector.
+ * <p/>
+ * The application runs in the same JVM as the drivers and the FHIR stand-in,
+ * so the figures include them; they stay comparable from run to run.
+ */
+final class JvmSampler {
+
+    private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private final Map<String, long[]> start = new LinkedHashMap<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "JvmSampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long startNanos;
+    private long endNanos;
+    private long samples;
+    private long heapSum;
+    private long heapMax;
+    private long heapCommitted;
+    private final Map<String, long[]> collected = new LinkedHashMap<>();
+
+    void start() {
+        startNanos = System.nanoTime();
+        for (GarbageCollectorMXBean collector : collectors) {
+            start.put(collector.getName(), new long[] { collector.getCollectionCount(), collector.getCollectionTime() });
+        }
+        executor.scheduleAtFixedRate(this::sample, 0, 100, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+        endNanos = System.nanoTime();
+        for (GarbageCollectorMXBean collector : collectors) {
+            long[] before = start.getOrDefault(collector.getName(), new long[2]);
+            collected.put(collector.getName(), new long[] { collector.getCollectionCount() - before[0],
+                    collector.getCollectionTime() - before[1] });
+        }
+    }
+
+    private synchronized void sample() {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        samples++;
+        heapSum += heap.getUsed();
+        heapMax = Math.max(heapMax, heap.getUsed());
+        heapCommitted = Math.max(heapCommitted, heap.getCommitted());
+    }
+
+    synchronized String report() {
+        StringBuilder out = new StringBuilder();
+        long mb = 1024 * 1024;
+        out.append(String.format("Heap used: avg %d MB, max %d MB, committed max %d MB, limit %d MB%n",
+                samples == 0 ? 0 : heapSum / samples / mb, heapMax / mb, heapCommitted / mb,
+                Runtime.getRuntime().maxMemory() / mb));
+        long wallMillis = TimeUnit.NANOSECONDS.toMillis(endNanos - startNanos);
+        long gcMillis = 0;
+        for (Map.Entry<String, long[]> entry : collected.entrySet()) {
+            long[] values = entry.getValue();
+            gcMillis += values[1];
+            out.append(String.format("GC %-24s %8d collections %8d ms%n", entry.getKey(), values[0], values[1]));
+        }
+        out.append(String.format("GC time: %.2f%% of %d ms%n", wallMillis == 0 ? 0.0 : 100.0 * gcMillis / wallMillis,
+                wallMillis));
+        return out.toString();
+    }
+}
@@ -0,0 +1,117 @@
+package sample.camel.benchmarks.load;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Sends generated messages to one input of the application at a fixed rate
+ * and records the latency of every message.
+ * <p/>
+ * The load is open: message i is due at start + i / rate whatever happened
+ * to the previous ones, and its latency is measured from that due time, not
+ * from the time it could really be sent. A slow application then shows up as
+ * growing latencies instead of a silently lower rate (no coordinated
+ * omission).
+ * <p/>
+ * Messages due during the warm-up are sent but not counted.
+ */
+abstract class LoadDriver {
+
+    private final String name;
+    private final MessageMix messages;
+    // microseconds, up to 10 minutes with 3 significant digits
+    private static final long MAX_LATENCY = TimeUnit.MINUTES.toMicros(10);
+    private final Histogram latencies = new ConcurrentHistogram(MAX_LATENCY, 3);
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private volatile long measureStart = Long.MAX_VALUE;
+
+    LoadDriver(String name, MessageMix messages) {
+        this.name = name;
+        this.messages = messages;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /** The route that receives the messages of this driver. */
+    abstract String getRouteId();
+
+    /**
+     * Sends one message. The driver calls completed with the due time when the
+     * application is done with it, from any thread.
+     */
+    abstract void send(String message, long due) throws Exception;
+
+    /** Releases the connections, files or threads of the driver. */
+    abstract void close() throws Exception;
+
+    /** Sends messages at rate per second, from now until end (System.nanoTime). */
+    void run(double rate, long warmupEnd, long end) {
+        measureStart = warmupEnd;
+        long period = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        for (long i = 0;; i++) {
+            long due = start + i * period;
+            if (due >= end) {
+                return;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (due >= measureStart) {
+                sent.incrementAndGet();
+            }
+            try {
+                send(messages.next(), due);
+            } catch (Exception e) {
+                completed(due, false);
+            }
+        }
+    }
+
+    final void completed(long due, boolean success) {
+        if (due < measureStart) {
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - due);
+        latencies.recordValue(Math.max(0, Math.min(micros, MAX_LATENCY)));
+        (success ? succeeded : failed).incrementAndGet();
+    }
+
+    /** Waits until every counted message is completed, or the timeout. */
+    boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (pending() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        return pending() == 0;
+    }
+
+    long pending() {
+        return sent.get() - succeeded.get() - failed.get();
+    }
+
+    long getSent() {
+        return sent.get();
+    }
+
+    long getSucceeded() {
+        return succeeded.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    Histogram getLatencies() {
+        return latencies;
+    }
+}
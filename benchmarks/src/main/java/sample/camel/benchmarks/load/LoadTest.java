@@ -0,0 +1,297 @@
+package sample.camel.benchmarks.load;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import sample.camel.MyCamelApplication;
+import sample.camel.benchmarks.StubFhirServer;
+
+/**
+ * An offline load test of the whole application.
+ * <p/>
+ * The application is started in this JVM against StubFhirServer, a FHIR
+ * stand-in with a configurable latency and error rate, so no public or shared
+ * server is involved. Drivers then send synthetic ADT^A04 and ORU^R01
+ * messages (see Hl7Generator) to the file, REST and MLLP inputs at a target
+ * rate, after a warm-up. The report gives, per input and the route behind it:
+ * <ul>
+ * <li>throughput and p50, p99, p99.9 and max latency, measured by the
+ * drivers,</li>
+ * <li>the time of each pipeline stage (the hl7.stage timers of
+ * StageMetrics),</li>
+ * <li>heap and GC behaviour during the measurement.</li>
+ * </ul>
+ * Options, all --name=value:
+ * <pre>
+ * --inputs=rest,mllp,file  inputs to drive at the same time
+ * --rate=50                messages per second, per input
+ * --duration=60            measured seconds, after --warmup=10 seconds
+ * --messages=adt,oru       message types, sent in turn
+ * --patients=10000         pool of patient identifiers
+ * --max-obx=5              maximum OBX segments of an ORU^R01
+ * --seed=42                seed of the generated messages
+ * --latency=20             FHIR stand-in latency in ms (plus up to as much jitter)
+ * --error-rate=0           share of FHIR requests answered with 503
+ * --stub-threads=256       FHIR stand-in threads, requests in flight there
+ * --shards=1               FHIR stand-ins, the resources are spread over them
+ *                          by patient (fhir.shards, see FhirShards)
+ * --mllp-connections=4     persistent MLLP connections
+ * --virtual-threads=false  run the application on virtual threads (Java 21)
+ * --app.name=value         any other application property, for example
+ *                          --app.fhir.batch.enabled=true
+ * </pre>
+ * The options are passed with load.args, for example:
+ * <pre>
+ * mvn package exec:exec@load -Dload.args="--inputs=mllp --rate=200 --latency=50"
+ * </pre>
+ * Run it twice, with --virtual-threads=false and true and a high --latency,
+ * to compare platform and virtual threads for the blocking FHIR calls.
+ */
+public final class LoadTest {
+
+    private final Map<String, String> options = new LinkedHashMap<>();
+    private final Map<String, String> appProperties = new LinkedHashMap<>();
+
+    private LoadTest(String[] args) {
+        options.put("inputs", "rest,mllp,file");
+        options.put("rate", "50");
+        options.put("duration", "60");
+        options.put("warmup", "10");
+        options.put("messages", "adt,oru");
+        options.put("patients", "10000");
+        options.put("max-obx", "5");
+        options.put("seed", "42");
+        options.put("latency", "20");
+        options.put("error-rate", "0");
+        options.put("stub-threads", "256");
+        options.put("shards", "1");
+        options.put("mllp-connections", "4");
+        options.put("virtual-threads", "false");
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value, found " + arg);
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals + 1);
+            if (name.startsWith("app.")) {
+                appProperties.put(name.substring(4), value);
+            } else if (options.containsKey(name)) {
+                options.put(name, value);
+            } else {
+                throw new IllegalArgumentException("Unknown option --" + name);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new LoadTest(args).run();
+        // the HTTP client and the stand-in may leave threads behind
+        System.exit(0);
+    }
+
+    private String option(String name) {
+        return options.get(name);
+    }
+
+    private List<String> list(String name) {
+        return Arrays.asList(option(name).split(","));
+    }
+
+    private void run() throws Exception {
+        boolean virtualThreads = Boolean.parseBoolean(option("virtual-threads"));
+        if (virtualThreads) {
+            if (Runtime.version().feature() < 21) {
+                throw new IllegalStateException("Virtual threads need Java 21, running " + Runtime.version());
+            }
+            // read by Camel when it starts, it must be a system property
+            System.setProperty("camel.threads.virtual.enabled", "true");
+        }
+
+        List<StubFhirServer> servers = new ArrayList<>();
+        try {
+            for (int i = 0; i < Math.max(1, Integer.parseInt(option("shards"))); i++) {
+                servers.add(StubFhirServer.start(Integer.parseInt(option("stub-threads")),
+                        Long.parseLong(option("latency")), Double.parseDouble(option("error-rate"))));
+            }
+            Path work = Files.createTempDirectory("hl7-load");
+            int mllpPort = freePort();
+            Map<String, Object> properties = new LinkedHashMap<>();
+            properties.put("serverUrl", servers.get(0).getBaseUrl());
+            if (servers.size() > 1) {
+                List<String> urls = new ArrayList<>();
+                for (StubFhirServer server : servers) {
+                    urls.add(server.getBaseUrl());
+                }
+                properties.put("fhir.shards", String.join(",", urls));
+            }
+            properties.put("server.port", 0);
+            properties.put("input", work.resolve("input").toString());
+            properties.put("batch.input", work.resolve("batch").toString());
+            properties.put("mllp.enabled", list("inputs").contains("mllp"));
+            // the drivers send ORU^R01 too, which is not dispatched by default
+            properties.put("hl7.dispatch.routes", "ADT^A04=register,ORU^R01=observation");
+            properties.put("mllp.host", "127.0.0.1");
+            properties.put("mllp.port", mllpPort);
+            properties.put("hl7.dedup.store", work.resolve("dedup/message-ids.dat").toString());
+            properties.put("fhir.cache.store", work.resolve("cache/patients.tsv").toString());
+            properties.put("hl7.watch.checkpoint", work.resolve("watch/processed.log").toString());
+            properties.put("hl7.log.payload-every", 0);
+            properties.put("camel.springboot.main-run-until-suspended", false);
+            properties.put("spring.main.banner-mode", "off");
+            properties.put("logging.level.root", "WARN");
+            if (virtualThreads) {
+                properties.put("spring.threads.virtual.enabled", true);
+                properties.put("fhir.client.max-connections", 200);
+            }
+            properties.putAll(appProperties);
+
+            ConfigurableApplicationContext application = new SpringApplicationBuilder(MyCamelApplication.class)
+                    .properties(properties)
+                    .run();
+            try {
+                int restPort = Integer.parseInt(application.getEnvironment().getProperty("local.server.port"));
+                List<LoadDriver> drivers = drivers(restPort, mllpPort, work);
+                measure(drivers, application.getBean(MeterRegistry.class), servers);
+                for (LoadDriver driver : drivers) {
+                    driver.close();
+                }
+            } finally {
+                application.close();
+            }
+        } finally {
+            for (StubFhirServer server : servers) {
+                server.close();
+            }
+        }
+    }
+
+    private List<LoadDriver> drivers(int restPort, int mllpPort, Path work) throws IOException {
+        List<String> messages = list("messages");
+        long seed = Long.parseLong(option("seed"));
+        int patients = Integer.parseInt(option("patients"));
+        int maxObx = Integer.parseInt(option("max-obx"));
+        List<LoadDriver> drivers = new ArrayList<>();
+        for (String input : list("inputs")) {
+            MessageMix mix = MessageMix.of(messages, input.trim().toUpperCase(), seed, patients, maxObx);
+            switch (input.trim()) {
+            case "rest":
+                drivers.add(new RestDriver(mix, restPort));
+                break;
+            case "mllp":
+                drivers.add(new MllpDriver(mix, mllpPort, Integer.parseInt(option("mllp-connections"))));
+                break;
+            case "file":
+                drivers.add(new FileDriver(mix, work.resolve("input"), work.resolve("staging")));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown input " + input + ", expected rest, mllp or file");
+            }
+        }
+        return drivers;
+    }
+
+    private void measure(List<LoadDriver> drivers, MeterRegistry registry, List<StubFhirServer> servers)
+            throws Exception {
+        double rate = Double.parseDouble(option("rate"));
+        long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(option("warmup")));
+        long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration")));
+        long warmupEnd = System.nanoTime() + warmup;
+        long end = warmupEnd + duration;
+
+        List<Thread> threads = new ArrayList<>();
+        for (LoadDriver driver : drivers) {
+            Thread thread = new Thread(() -> driver.run(rate, warmupEnd, end), "LoadDriver-" + driver.getName());
+            thread.start();
+            threads.add(thread);
+        }
+        System.out.printf("Warming up for %d s at %.0f messages/s per input...%n",
+                TimeUnit.NANOSECONDS.toSeconds(warmup), rate);
+        TimeUnit.NANOSECONDS.sleep(warmupEnd - System.nanoTime());
+        Map<String, double[]> stagesBefore = stages(registry);
+        long[] fhirRequests = new long[servers.size()];
+        long[] fhirErrors = new long[servers.size()];
+        for (int i = 0; i < servers.size(); i++) {
+            fhirRequests[i] = servers.get(i).getRequests();
+            fhirErrors[i] = servers.get(i).getErrors();
+        }
+        JvmSampler jvm = new JvmSampler();
+        jvm.start();
+        System.out.printf("Measuring for %d s...%n", TimeUnit.NANOSECONDS.toSeconds(duration));
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (LoadDriver driver : drivers) {
+            if (!driver.drain(60, TimeUnit.SECONDS)) {
+                System.out.printf("%s: %d messages still pending after 60 s%n", driver.getName(), driver.pending());
+            }
+        }
+        jvm.stop();
+
+        double seconds = duration / 1e9;
+        System.out.printf("%n%-6s %-28s %8s %8s %8s %9s %9s %9s %9s %9s%n", "input", "route", "sent", "ok",
+                "failed", "msg/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (LoadDriver driver : drivers) {
+            Histogram latencies = driver.getLatencies();
+            System.out.printf("%-6s %-28s %8d %8d %8d %9.1f %9.2f %9.2f %9.2f %9.2f%n", driver.getName(),
+                    driver.getRouteId(), driver.getSent(), driver.getSucceeded(), driver.getFailed(),
+                    (driver.getSucceeded() + driver.getFailed()) / seconds,
+                    latencies.getValueAtPercentile(50) / 1000.0, latencies.getValueAtPercentile(99) / 1000.0,
+                    latencies.getValueAtPercentile(99.9) / 1000.0, latencies.getMaxValue() / 1000.0);
+        }
+
+        System.out.printf("%n%-32s %-10s %10s %10s%n", "route", "stage", "count", "mean ms");
+        Map<String, double[]> stagesAfter = stages(registry);
+        for (Map.Entry<String, double[]> entry : stagesAfter.entrySet()) {
+            double[] before = stagesBefore.getOrDefault(entry.getKey(), new double[2]);
+            double count = entry.getValue()[0] - before[0];
+            double millis = entry.getValue()[1] - before[1];
+            if (count > 0) {
+                String[] key = entry.getKey().split("\\|");
+                System.out.printf("%-32s %-10s %10.0f %10.3f%n", key[0], key[1], count, millis / count);
+            }
+        }
+
+        System.out.println();
+        for (int i = 0; i < servers.size(); i++) {
+            StubFhirServer server = servers.get(i);
+            System.out.printf("FHIR stand-in %s: %d requests, %d injected errors%n", server.getBaseUrl(),
+                    server.getRequests() - fhirRequests[i], server.getErrors() - fhirErrors[i]);
+        }
+        System.out.print(jvm.report());
+    }
+
+    // count and total milliseconds of the hl7.stage timers, by route and stage
+    private static Map<String, double[]> stages(MeterRegistry registry) {
+        Map<String, double[]> stages = new TreeMap<>();
+        for (Timer timer : registry.find("hl7.stage").timers()) {
+            String key = timer.getId().getTag("route") + "|" + timer.getId().getTag("stage");
+            double[] values = stages.computeIfAbsent(key, k -> new double[2]);
+            values[0] += timer.count();
+            values[1] += timer.totalTime(TimeUnit.MILLISECONDS);
+        }
+        return stages;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
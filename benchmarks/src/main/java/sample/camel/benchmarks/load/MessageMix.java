@@ -0,0 +1,48 @@
+package sample.camel.benchmarks.load;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sample.camel.benchmarks.Corpus;
+import sample.camel.benchmarks.Hl7Generator;
+
+/**
+ * The messages of one driver: ADT^A04, ORU^R01 or both in turn, each from its
+ * own Hl7Generator seeded from the samples in resources/data.
+ */
+final class MessageMix {
+
+    private final Hl7Generator[] generators;
+    private final AtomicLong next = new AtomicLong();
+
+    private MessageMix(Hl7Generator[] generators) {
+        this.generators = generators;
+    }
+
+    /**
+     * @param types adt, oru or both
+     */
+    static MessageMix of(List<String> types, String prefix, long seed, int patients, int maxObservations)
+            throws IOException {
+        Hl7Generator[] generators = new Hl7Generator[types.size()];
+        for (int i = 0; i < generators.length; i++) {
+            String type = types.get(i).trim().toLowerCase();
+            String sample;
+            if ("adt".equals(type)) {
+                sample = Corpus.ADMISSION;
+            } else if ("oru".equals(type)) {
+                sample = Corpus.OBSERVATION;
+            } else {
+                throw new IllegalArgumentException("Unknown message type " + type + ", expected adt or oru");
+            }
+            generators[i] = new Hl7Generator(Corpus.read(sample), prefix + "-" + type, seed + i, patients,
+                    maxObservations);
+        }
+        return new MessageMix(generators);
+    }
+
+    String next() {
+        return generators[(int) (next.getAndIncrement() % generators.length)].next();
+    }
+}
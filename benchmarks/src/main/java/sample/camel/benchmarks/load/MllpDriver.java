@@ -0,0 +1,119 @@
+package sample.camel.benchmarks.load;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the messages to the MLLP input (FromMllp2FHIRRoute) over a fixed
+ * number of persistent TCP connections, as an HIS feed does.
+ * <p/>
+ * Messages are spread round robin over the connections. Each connection sends
+ * one message and waits for its acknowledgement before the next one, so
+ * messages queue up in the driver when the application is slower than the
+ * rate; their latency includes that wait. A message is successful when the
+ * acknowledgement is AA.
+ */
+final class MllpDriver extends LoadDriver {
+
+    private static final int START_BLOCK = 0x0b;
+    private static final int END_BLOCK = 0x1c;
+    private static final int CARRIAGE_RETURN = 0x0d;
+
+    private record Pending(String message, long due) {
+    }
+
+    private final Connection[] connections;
+    private final AtomicLong next = new AtomicLong();
+
+    MllpDriver(MessageMix messages, int port, int connectionCount) throws IOException {
+        super("mllp", messages);
+        this.connections = new Connection[Math.max(1, connectionCount)];
+        for (int i = 0; i < connections.length; i++) {
+            connections[i] = new Connection(new Socket("127.0.0.1", port), i);
+        }
+    }
+
+    @Override
+    String getRouteId() {
+        return "mllpregisterhl7-fhirserver";
+    }
+
+    @Override
+    void send(String message, long due) {
+        connections[(int) (next.getAndIncrement() % connections.length)].queue.add(new Pending(message, due));
+    }
+
+    @Override
+    void close() throws IOException {
+        for (Connection connection : connections) {
+            connection.thread.interrupt();
+            connection.socket.close();
+        }
+    }
+
+    private final class Connection implements Runnable {
+        private final Socket socket;
+        private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+        private final Thread thread;
+
+        private Connection(Socket socket, int number) {
+            this.socket = socket;
+            this.thread = new Thread(this, "MllpDriver-" + number);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                OutputStream out = socket.getOutputStream();
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                while (!Thread.currentThread().isInterrupted()) {
+                    Pending pending = queue.take();
+                    boolean accepted = false;
+                    try {
+                        out.write(START_BLOCK);
+                        out.write(pending.message().getBytes(StandardCharsets.UTF_8));
+                        out.write(END_BLOCK);
+                        out.write(CARRIAGE_RETURN);
+                        out.flush();
+                        accepted = readAck(in).contains("MSA|AA");
+                    } finally {
+                        completed(pending.due(), accepted);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // the connection is gone, the messages left in the queue are
+                // counted as pending
+            }
+        }
+
+        private String readAck(InputStream in) throws IOException {
+            ByteArrayOutputStream ack = new ByteArrayOutputStream(256);
+            int b;
+            while ((b = in.read()) != START_BLOCK) {
+                if (b < 0) {
+                    throw new IOException("Connection closed");
+                }
+            }
+            while ((b = in.read()) != END_BLOCK) {
+                if (b < 0) {
+                    throw new IOException("Connection closed");
+                }
+                ack.write(b);
+            }
+            in.read();
+            return ack.toString(StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package sample.camel.benchmarks.load;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+
+/**
+ * Sends the messages to the REST input, PUT /healthcare/hl7receiver
+ * (FromRegisterPut2FHIRRoute). A message is completed by its HTTP response,
+ * successful when the status is 2xx.
+ */
+final class RestDriver extends LoadDriver {
+
+    private final URI uri;
+    private final HttpClient client;
+
+    RestDriver(MessageMix messages, int port) {
+        super("rest", messages);
+        this.uri = URI.create("http://127.0.0.1:" + port + "/healthcare/hl7receiver");
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    @Override
+    String getRouteId() {
+        return "putregisterhl7-fhirserver";
+    }
+
+    @Override
+    void send(String message, long due) {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .header("Content-Type", "text/plain")
+                .PUT(HttpRequest.BodyPublishers.ofString(message))
+                .build();
+        client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> completed(due,
+                        error == null && response.statusCode() / 100 == 2));
+    }
+
+    @Override
+    void close() {
+        // the client has no close method before Java 21, its threads are daemons
+    }
+}
@@ -0,0 +1,40 @@
+package sample.camel.config;
+
+import java.io.File;
+
+import org.apache.camel.spi.IdempotentRepository;
+import org.apache.camel.support.processor.idempotent.FileIdempotentRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import sample.camel.processors.MeteredIdempotentRepository;
+
+/**
+ * Spring configuration of the repository of HL7 messages already sent to the
+ * FHIR server, used by the idempotent consumer of FhirUploadRoute.
+ * <p/>
+ * The keys (sending facility and message control ID) live in a least recently
+ * used cache of hl7.dedup.cache-size entries. Every new key is also appended to
+ * the file hl7.dedup.store, which is loaded again when the application starts,
+ * so replayed files and retried messages are recognised after a restart. When
+ * the file grows beyond hl7.dedup.max-store-size bytes it is rewritten with the
+ * keys of the cache only.
+ * <p/>
+ * See https://camel.apache.org/components/4.x/eips/idempotentConsumer-eip.html
+ * for more information about the idempotent consumer.
+ */
+@Configuration
+public class DeduplicationConfiguration {
+
+    @Bean("hl7MessageIdRepository")
+    public IdempotentRepository hl7MessageIdRepository(MeterRegistry meterRegistry,
+            @Value("${hl7.dedup.store:target/work/fhir/dedup/message-ids.dat}") String store,
+            @Value("${hl7.dedup.cache-size:100000}") int cacheSize,
+            @Value("${hl7.dedup.max-store-size:33554432}") long maxStoreSize) {
+        IdempotentRepository fileRepository = FileIdempotentRepository
+                .fileIdempotentRepository(new File(store), cacheSize, maxStoreSize);
+        return new MeteredIdempotentRepository(fileRepository, meterRegistry, "hl7.dedup");
+    }
+}
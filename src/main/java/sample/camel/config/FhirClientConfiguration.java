@@ -0,0 +1,48 @@
+package sample.camel.config;
+
+import java.util.Arrays;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+/**
+ * Spring configuration for the FHIR client shared by FhirTransactionBatcher and
+ * the fhir:// endpoint of FhirUploadRoute (option client=#fhirClient).
+ * <p/>
+ * Building a FhirContext is expensive, so a single one is created for the
+ * version set by the property fhirVersion and shared by every bean that needs
+ * to parse, serialize or talk to the server defined by the property serverUrl.
+ * <p/>
+ * The client keeps a pool of fhir.client.max-connections HTTP connections to
+ * the server, the upper bound of the requests in flight: raise it together
+ * with the number of threads when the routes run on virtual threads. Within it
+ * FhirConcurrencyLimiter adapts the limit to the latency of the server. With
+ * several servers (fhir.shards, see FhirShards) the clients of the shards share
+ * the pool, which keeps fhir.client.max-connections per server.
+ * <p/>
+ * See https://hapifhir.io/hapi-fhir/docs/client/generic_client.html
+ * for more information about the generic client.
+ */
+@Configuration
+public class FhirClientConfiguration {
+
+    @Bean
+    public FhirContext fhirContext(@Value("${fhirVersion}") String fhirVersion) {
+        return FhirContext.forCached(FhirVersionEnum.valueOf(fhirVersion.trim()));
+    }
+
+    @Bean
+    public IGenericClient fhirClient(FhirContext fhirContext, @Value("${serverUrl}") String serverUrl,
+            @Value("${fhir.client.max-connections:20}") int maxConnections,
+            @Value("${fhir.shards:}") String shards) {
+        int servers = Math.max(1, (int) Arrays.stream(shards.split(",")).filter(s -> !s.isBlank()).count());
+        fhirContext.getRestfulClientFactory().setPoolMaxTotal(maxConnections * servers);
+        fhirContext.getRestfulClientFactory().setPoolMaxPerRoute(maxConnections);
+        return fhirContext.newRestfulGenericClient(serverUrl.trim());
+    }
+}
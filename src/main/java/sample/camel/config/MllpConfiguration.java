@@ -0,0 +1,38 @@
+package sample.camel.config;
+
+import java.nio.charset.Charset;
+
+import org.apache.camel.component.hl7.HL7MLLPNettyDecoderFactory;
+import org.apache.camel.component.hl7.HL7MLLPNettyEncoderFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Spring configuration of the MLLP codec used by the netty listener of
+ * FromMllp2FHIRRoute.
+ * <p/>
+ * The decoder strips the MLLP start (0x0b) and end (0x1c 0x0d) blocks of each
+ * received frame and the encoder adds them to the acknowledgement.
+ * See https://camel.apache.org/components/4.x/dataformats/hl7-dataformat.html
+ * for more information about the HL7 MLLP codec.
+ */
+@Configuration
+public class MllpConfiguration {
+
+    @Bean("hl7decoder")
+    public HL7MLLPNettyDecoderFactory hl7decoder(@Value("${mllp.charset:UTF-8}") String charset) {
+        HL7MLLPNettyDecoderFactory decoder = new HL7MLLPNettyDecoderFactory();
+        decoder.setCharset(Charset.forName(charset));
+        decoder.setConvertLFtoCR(true);
+        return decoder;
+    }
+
+    @Bean("hl7encoder")
+    public HL7MLLPNettyEncoderFactory hl7encoder(@Value("${mllp.charset:UTF-8}") String charset) {
+        HL7MLLPNettyEncoderFactory encoder = new HL7MLLPNettyEncoderFactory();
+        encoder.setCharset(Charset.forName(charset));
+        encoder.setConvertLFtoCR(true);
+        return encoder;
+    }
+}
@@ -0,0 +1,76 @@
+package sample.camel.config;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelEvent;
+import org.apache.camel.Exchange;
+import org.apache.camel.support.EventNotifierSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import sample.camel.processors.VerifyHl7Type;
+
+/**
+ * Publishes the time from the start of the JVM to the first HL7 message
+ * processed, the gauge hl7.startup.first-message, which is what the senders
+ * see of a deploy or a scale out: the startup, the warm-up (see StartupWarmup)
+ * and the first run of every route.
+ * <p/>
+ * Camel Spring Boot adds every EventNotifier bean to the CamelContext. This one
+ * only looks at the completed exchanges that carry an HL7 message type (set by
+ * VerifyHl7Type), and stops listening once the first one is recorded, so it
+ * costs nothing afterwards. Spring Boot publishes the time to a ready
+ * application as application.ready.time.
+ */
+@Component("startupMetrics")
+public class StartupMetrics extends EventNotifierSupport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StartupMetrics.class);
+
+    private final MeterRegistry meterRegistry;
+    private volatile boolean recorded;
+
+    public StartupMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+        setIgnoreCamelContextEvents(true);
+        setIgnoreRouteEvents(true);
+        setIgnoreServiceEvents(true);
+        setIgnoreStepEvents(true);
+        setIgnoreExchangeCreatedEvent(true);
+        setIgnoreExchangeFailedEvents(true);
+        setIgnoreExchangeRedeliveryEvents(true);
+        setIgnoreExchangeSendingEvents(true);
+        setIgnoreExchangeSentEvents(true);
+        setIgnoreExchangeAsyncProcessingStartedEvents(true);
+    }
+
+    @Override
+    public boolean isEnabled(CamelEvent event) {
+        return !recorded && event instanceof CamelEvent.ExchangeCompletedEvent;
+    }
+
+    @Override
+    public void notify(CamelEvent event) throws Exception {
+        Exchange exchange = ((CamelEvent.ExchangeCompletedEvent) event).getExchange();
+        if (exchange.getIn().getHeader(VerifyHl7Type.MESSAGE_TYPE) == null) {
+            return;
+        }
+        synchronized (this) {
+            if (recorded) {
+                return;
+            }
+            recorded = true;
+        }
+        setIgnoreExchangeEvents(true);
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        TimeGauge.builder("hl7.startup.first-message", () -> uptime, TimeUnit.MILLISECONDS)
+                .description("Time from the start of the JVM to the first HL7 message processed")
+                .register(meterRegistry);
+        LOG.info("First HL7 message {} processed {} ms after the start of the JVM",
+                exchange.getIn().getHeader(VerifyHl7Type.CONTROL_ID), uptime);
+    }
+}
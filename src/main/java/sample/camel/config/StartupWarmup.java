@@ -0,0 +1,154 @@
+package sample.camel.config;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.support.DefaultExchange;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import sample.camel.fhir.FhirShards;
+import sample.camel.processors.Hl7MappingProcessor;
+import sample.camel.processors.Hl7Normalizer;
+import sample.camel.processors.OruTransactionBuilder;
+import sample.camel.processors.VerifyHl7Type;
+
+/**
+ * Does the expensive first-use work of the pipeline when the application
+ * starts, so the first real messages after a deploy do not pay for it.
+ * <p/>
+ * It runs once every bean is created and before the Camel routes start, so no
+ * message is received until it is done. With hl7.warmup.enabled=true it:
+ * <ul>
+ * <li>scans the FHIR resource definitions used by the routes in the shared
+ * FhirContext (see FhirClientConfiguration) and creates its JSON parser;</li>
+ * <li>runs hl7.warmup.iterations synthetic ADT^A04 and ORU^R01 messages
+ * through the in-memory steps (Hl7Normalizer, VerifyHl7Type, the declarative
+ * mappings, OruTransactionBuilder and the JSON serialization), which loads
+ * the classes and lets the JIT compile them;</li>
+ * <li>with hl7.warmup.fhir-server=true, reads the capability statement of
+ * every FHIR server (see FhirShards), which opens the first pooled connection and does the metadata
+ * check the HAPI client makes before its first request. A server that cannot
+ * be reached is logged and does not stop the startup. It is off by default:
+ * the call blocks the startup for up to the client timeout and reaches the
+ * real server on every boot, test and benchmark run.</li>
+ * </ul>
+ * Nothing is sent to the FHIR server and no store (duplicate check, change
+ * cache, spool) is touched. The time spent is published as the gauge
+ * hl7.startup.warmup, see also StartupMetrics.
+ */
+@Component("startupWarmup")
+public class StartupWarmup implements SmartInitializingSingleton {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StartupWarmup.class);
+
+    // The resources built by the routes and returned by the server
+    private static final List<String> RESOURCE_TYPES = List.of("Patient", "Observation", "DiagnosticReport",
+            "Bundle", "OperationOutcome", "CapabilityStatement");
+
+    private static final String ADT = "MSH|^~\\&|WARMUP|WARMUP|WARMUP|WARMUP|20240101120000||ADT^A04|WARMUP-ADT|P|2.4\r"
+            + "PID|1||WARMUP1^^^WARMUP^MR||Warmup^Patient^A||19800101|F|||Street 1^^City^^12345^USA||555-0100\r"
+            + "PV1|1|O\r";
+
+    private static final String ORU = "MSH|^~\\&|WARMUP|WARMUP|WARMUP|WARMUP|20240101120000||ORU^R01|WARMUP-ORU|P|2.4\r"
+            + "PID|1||WARMUP1^^^WARMUP^MR||Warmup^Patient^A||19800101|F\r"
+            + "ORC|RE|WARMUP-ORDER\r"
+            + "OBR|1|WARMUP-ORDER||24331-1^Lipid panel^LN|||20240101110000|||||||||||||||20240101120000||CH|F\r"
+            + "OBX|1|NM|2093-3^Cholesterol^LN||185|mg/dL^mg/dL^UCUM|<200|N|||F|||20240101110000\r"
+            + "OBX|2|CE|882-1^ABO and Rh group^LN||A+^A positive^L||||||F\r"
+            + "OBX|3|ST|8251-1^Comment^LN||Fasting sample||||||F\r"
+            + "OBX|4|TS|8665-2^Last menstrual period^LN||20231215||||||F\r";
+
+    private final CamelContext camelContext;
+    private final FhirContext fhirContext;
+    private final FhirShards shards;
+    private final Hl7MappingProcessor mappingProcessor;
+    private final OruTransactionBuilder oruTransactionBuilder;
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final int iterations;
+    private final boolean fhirServer;
+
+    public StartupWarmup(CamelContext camelContext, FhirContext fhirContext, FhirShards fhirShards,
+            Hl7MappingProcessor hl7MappingProcessor, OruTransactionBuilder oruTransactionBuilder,
+            MeterRegistry meterRegistry,
+            @Value("${hl7.warmup.enabled:true}") boolean enabled,
+            @Value("${hl7.warmup.iterations:500}") int iterations,
+            @Value("${hl7.warmup.fhir-server:false}") boolean fhirServer) {
+        this.camelContext = camelContext;
+        this.fhirContext = fhirContext;
+        this.shards = fhirShards;
+        this.mappingProcessor = hl7MappingProcessor;
+        this.oruTransactionBuilder = oruTransactionBuilder;
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.iterations = Math.max(1, iterations);
+        this.fhirServer = fhirServer;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        if (!enabled) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            for (String type : RESOURCE_TYPES) {
+                fhirContext.getResourceDefinition(type);
+            }
+            IParser parser = fhirContext.newJsonParser();
+            Processor normalizer = new Hl7Normalizer();
+            Processor verify = new VerifyHl7Type();
+            for (int i = 0; i < iterations; i++) {
+                run(parser, normalizer, verify, ADT, mappingProcessor);
+                run(parser, normalizer, verify, ORU, oruTransactionBuilder);
+            }
+        } catch (Exception e) {
+            // The warm-up is an optimization, the messages would fail the same way
+            LOG.warn("HL7 warm-up failed: {}", e.getMessage(), e);
+        }
+        if (fhirServer) {
+            for (FhirShards.Shard shard : shards.getShards()) {
+                try {
+                    shard.getClient().capabilities().ofType(CapabilityStatement.class).execute();
+                } catch (Exception e) {
+                    LOG.warn("FHIR server {} not reachable during the warm-up: {}", shard.getBaseUrl(),
+                            e.getMessage());
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        TimeGauge.builder("hl7.startup.warmup", () -> elapsed, TimeUnit.NANOSECONDS)
+                .description("Time spent warming up the HL7 and FHIR contexts at startup")
+                .register(meterRegistry);
+        LOG.info("HL7 and FHIR warm-up done in {} ms ({} synthetic messages)",
+                TimeUnit.NANOSECONDS.toMillis(elapsed), iterations * 2);
+    }
+
+    private void run(IParser parser, Processor normalizer, Processor verify, String message, Processor mapper)
+            throws Exception {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(message.getBytes(StandardCharsets.UTF_8));
+        normalizer.process(exchange);
+        verify.process(exchange);
+        mapper.process(exchange);
+        Object body = exchange.getIn().getBody();
+        String json = body instanceof IBaseResource
+                ? parser.encodeResourceToString((IBaseResource) body)
+                : body.toString();
+        parser.parseResource(json);
+    }
+}
@@ -0,0 +1,154 @@
+package sample.camel.fhir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+
+/**
+ * A compiled setter for a primitive element of a FHIR resource, written as a
+ * dotted path from the resource, for example name.family, gender or
+ * address.line.
+ * <p/>
+ * The path is resolved once against the HAPI runtime definitions of the
+ * resource (the same model the HAPI parsers use), so setting a value does no
+ * reflection or name lookup. Intermediate elements are created when they are
+ * missing and reused when they exist, so name.family and name.given fill the
+ * same HumanName. A repeating primitive (name.given) gets one value added per
+ * call, a single one (gender) is replaced.
+ * <p/>
+ * The special path id sets the logical id of the resource.
+ * <p/>
+ * Instances are immutable and thread safe.
+ */
+public final class FhirElementPath {
+
+    private final String path;
+    private final boolean id;
+    private final Step[] steps;
+
+    private record Step(String name, BaseRuntimeChildDefinition child, BaseRuntimeElementDefinition<?> element,
+            boolean repeating, int order) {
+    }
+
+    private FhirElementPath(String path, boolean id, Step[] steps) {
+        this.path = path;
+        this.id = id;
+        this.steps = steps;
+    }
+
+    /**
+     * Resolves the path against the definition of the resource type.
+     *
+     * @throws IllegalArgumentException if an element of the path does not exist
+     *                                  or the last one is not a primitive
+     */
+    public static FhirElementPath compile(RuntimeResourceDefinition resource, String path) {
+        String text = path.trim();
+        if ("id".equals(text)) {
+            return new FhirElementPath(text, true, new Step[0]);
+        }
+        List<Step> steps = new ArrayList<>();
+        BaseRuntimeElementCompositeDefinition<?> parent = resource;
+        String[] names = text.split("\\.");
+        for (int i = 0; i < names.length; i++) {
+            if (parent == null) {
+                throw new IllegalArgumentException(
+                        "Invalid FHIR path " + path + ", " + names[i - 1] + " has no children");
+            }
+            BaseRuntimeChildDefinition child = parent.getChildByName(names[i]);
+            if (child == null) {
+                throw new IllegalArgumentException("Invalid FHIR path " + path + ", " + parent.getName()
+                        + " has no element " + names[i]);
+            }
+            BaseRuntimeElementDefinition<?> element = child.getChildByName(names[i]);
+            steps.add(new Step(names[i], child, element, child.getMax() != 1, parent.getChildren().indexOf(child)));
+            parent = element instanceof BaseRuntimeElementCompositeDefinition
+                    ? (BaseRuntimeElementCompositeDefinition<?>) element
+                    : null;
+        }
+        Step last = steps.get(steps.size() - 1);
+        if (last.element().getChildType() != BaseRuntimeElementDefinition.ChildTypeEnum.PRIMITIVE_DATATYPE) {
+            throw new IllegalArgumentException("Invalid FHIR path " + path + ", " + last.element().getName()
+                    + " is not a primitive element");
+        }
+        return new FhirElementPath(text, false, steps.toArray(new Step[0]));
+    }
+
+    /**
+     * Returns the FHIR type of the element set, for example string, date or
+     * code, or id for the logical id.
+     */
+    public String getTypeName() {
+        return id ? "id" : steps[steps.length - 1].element().getName();
+    }
+
+    /** True for the special path id, the logical id of the resource. */
+    public boolean isId() {
+        return id;
+    }
+
+    /** Number of elements in the path, 0 for the logical id. */
+    public int depth() {
+        return steps.length;
+    }
+
+    /** Name of the element at the given depth, as it appears in FHIR JSON. */
+    public String name(int depth) {
+        return steps[depth].name();
+    }
+
+    /**
+     * Position of the element at the given depth among the children of its
+     * parent, the order in which the HAPI serializer writes them.
+     */
+    public int order(int depth) {
+        return steps[depth].order();
+    }
+
+    /** True when the element at the given depth may repeat (a JSON array). */
+    public boolean repeating(int depth) {
+        return steps[depth].repeating();
+    }
+
+    /**
+     * Sets the value, in the FHIR string format of the element type.
+     */
+    public void set(IBaseResource resource, String value) {
+        if (id) {
+            resource.setId(value);
+            return;
+        }
+        IBase target = resource;
+        for (int i = 0; i < steps.length - 1; i++) {
+            Step step = steps[i];
+            IBase next = step.child().getAccessor().getFirstValueOrNull(target).orElse(null);
+            if (next == null) {
+                next = step.element().newInstance(step.child().getInstanceConstructorArguments());
+                step.child().getMutator().addValue(target, next);
+            }
+            target = next;
+        }
+        Step leaf = steps[steps.length - 1];
+        IPrimitiveType<?> primitive = (IPrimitiveType<?>) leaf.element()
+                .newInstance(leaf.child().getInstanceConstructorArguments());
+        primitive.setValueAsString(value);
+        if (leaf.repeating()) {
+            leaf.child().getMutator().addValue(target, primitive);
+        } else {
+            leaf.child().getMutator().setValue(target, primitive);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
@@ -0,0 +1,108 @@
+package sample.camel.fhir;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A FHIR resource already serialized to JSON, as written by Hl7JsonWriter.
+ * <p/>
+ * It travels through the routes instead of a HAPI resource when the streaming
+ * JSON mode is on (fhir.json.streaming=true), and its bytes are sent as they
+ * are as the HTTP request body by FhirJsonSender.
+ * <p/>
+ * The position of the "id" member is remembered, so the content hash used by
+ * PatientChangeCache leaves it out and the id can be replaced by the server ID
+ * for an update without serializing the resource again.
+ */
+public final class FhirJsonPayload {
+
+    private final String resourceType;
+    private final String id;
+    private final byte[] json;
+    // the bytes ,"id":"..." in json, empty when there is no id
+    private final int idStart;
+    private final int idEnd;
+
+    public FhirJsonPayload(String resourceType, String id, byte[] json, int idStart, int idEnd) {
+        this.resourceType = resourceType;
+        this.id = id;
+        this.json = json;
+        this.idStart = idStart;
+        this.idEnd = idEnd;
+    }
+
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    /** The logical id of the resource, or null. */
+    public String getId() {
+        return id;
+    }
+
+    /** The JSON bytes, UTF-8 encoded. The array must not be modified. */
+    public byte[] getBytes() {
+        return json;
+    }
+
+    // position of the id member, kept by FhirSpool
+    int idStart() {
+        return idStart;
+    }
+
+    int idEnd() {
+        return idEnd;
+    }
+
+    /**
+     * Returns a SHA-256 digest of the JSON without the id member, the same
+     * bytes the HAPI serializer writes for the resource without id.
+     */
+    public byte[] contentDigest() {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(json, 0, idStart);
+            digest.update(json, idEnd, json.length - idEnd);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns a copy of this payload with another logical id.
+     */
+    public FhirJsonPayload withId(String newId) {
+        byte[] member = (",\"id\":\"" + escape(newId) + "\"").getBytes(StandardCharsets.UTF_8);
+        int tail = json.length - idEnd;
+        byte[] copy = new byte[idStart + member.length + tail];
+        System.arraycopy(json, 0, copy, 0, idStart);
+        System.arraycopy(member, 0, copy, idStart, member.length);
+        System.arraycopy(json, idEnd, copy, idStart + member.length, tail);
+        return new FhirJsonPayload(resourceType, newId, copy, idStart, idStart + member.length);
+    }
+
+    /**
+     * Returns a copy of this payload without the id member.
+     */
+    public FhirJsonPayload withoutId() {
+        if (idStart == idEnd) {
+            return this;
+        }
+        byte[] copy = new byte[json.length - (idEnd - idStart)];
+        System.arraycopy(json, 0, copy, 0, idStart);
+        System.arraycopy(json, idEnd, copy, idStart, json.length - idEnd);
+        return new FhirJsonPayload(resourceType, null, copy, idStart, idStart);
+    }
+
+    // ids are [A-Za-z0-9\-\.]{1,64} in FHIR, escape anyway
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    @Override
+    public String toString() {
+        return new String(json, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,342 @@
+package sample.camel.fhir;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * The FHIR servers the resources are written to, and the choice of the server
+ * of each patient.
+ * <p/>
+ * By default there is one shard, serverUrl, using the fhirClient bean. With the
+ * property fhir.shards, a comma separated list of base URLs, every resource is
+ * sent to the shard of its patient, chosen by consistent hashing of the
+ * patient identifier (PID-3.1) left in the header HL7PatientId by the mapping
+ * processors. Every resource of a patient lands on the same server, and the
+ * change cache (see PatientChangeCache) stays valid.
+ * <p/>
+ * Each shard owns fhir.shards.virtual-nodes points of a hash ring, placed by
+ * the hash of its URL, and a patient belongs to the first point at or after the
+ * hash of its identifier. Adding or removing a shard only moves the patients
+ * of the points it gains or loses, about 1/n of them, whatever the order of
+ * the list.
+ * <p/>
+ * Every fhir.shards.health-interval milliseconds the metadata of each shard is
+ * read; after fhir.shards.health-failures failed checks in a row the shard is
+ * down until a check succeeds again. With fhir.shards.failover=true the
+ * patients of a shard that is down go to the next shard of the ring that is
+ * up, so only they move; the resources written meanwhile stay on that shard.
+ * PatientChangeCache records the shard each Patient was written to, and a
+ * Patient the cache knows from another shard is neither updated by its server
+ * ID with If-Match nor referenced by it (see PatientChangeDetector and
+ * OruTransactionBuilder): it is sent as a conditional update on its
+ * identifier to the shard it goes to now, which finds or creates the Patient
+ * of that shard. Once the home shard is back the next change goes there the
+ * same way, so no request ever carries the server ID of another shard. With
+ * false they keep going to their shard and fail like a single server outage,
+ * spooled with fhir.spool.enabled=true.
+ * <p/>
+ * Metrics per shard, tagged with its URL: the timer fhir.shard.requests
+ * (throughput and latency of the HTTP requests, tagged with the status class),
+ * the gauge fhir.shard.up and the counter fhir.shard.failovers.
+ */
+@Component("fhirShards")
+public class FhirShards {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FhirShards.class);
+
+    /** The patient identifier the shard is chosen with. */
+    public static final String SHARD_KEY = "HL7PatientId";
+    /** The name of the chosen shard client in the Camel registry. */
+    public static final String SHARD = "HL7FhirShard";
+
+    /** One FHIR server. */
+    public static final class Shard {
+        private final String name;
+        private final String base;
+        private final IGenericClient client;
+        private final Counter failovers;
+        private volatile boolean up = true;
+        private int failedChecks;
+
+        private Shard(String name, String base, IGenericClient client, Counter failovers) {
+            this.name = name;
+            this.base = base;
+            this.client = client;
+            this.failovers = failovers;
+        }
+
+        /** The name of the client bean, for the fhir:// endpoint. */
+        public String getName() {
+            return name;
+        }
+
+        public String getBaseUrl() {
+            return base;
+        }
+
+        public IGenericClient getClient() {
+            return client;
+        }
+
+        public boolean isUp() {
+            return up;
+        }
+    }
+
+    private final List<Shard> shards;
+    private final long[] points;
+    private final int[] owners;
+    private final boolean failover;
+    private final int healthFailures;
+    private final ScheduledExecutorService health;
+    private final CamelContext camelContext;
+
+    public FhirShards(CamelContext camelContext, FhirContext fhirContext, IGenericClient fhirClient,
+            MeterRegistry meterRegistry,
+            @Value("${serverUrl}") String serverUrl,
+            @Value("${fhir.shards:}") String urls,
+            @Value("${fhir.shards.virtual-nodes:128}") int virtualNodes,
+            @Value("${fhir.shards.failover:true}") boolean failover,
+            @Value("${fhir.shards.health-interval:5000}") long healthInterval,
+            @Value("${fhir.shards.health-failures:2}") int healthFailures) {
+        this.camelContext = camelContext;
+        this.failover = failover;
+        this.healthFailures = Math.max(1, healthFailures);
+
+        List<String> bases = new ArrayList<>();
+        for (String url : urls.split(",")) {
+            if (!url.isBlank()) {
+                bases.add(trimSlash(url.trim()));
+            }
+        }
+        if (bases.isEmpty()) {
+            bases.add(trimSlash(serverUrl.trim()));
+        }
+
+        List<Shard> list = new ArrayList<>();
+        for (int i = 0; i < bases.size(); i++) {
+            String base = bases.get(i);
+            IGenericClient client = bases.size() == 1 ? fhirClient : fhirContext.newRestfulGenericClient(base);
+            Shard shard = new Shard("fhirShard" + i, base, client, Counter.builder("fhir.shard.failovers")
+                    .description("Resources sent to another shard because theirs was down")
+                    .tag("shard", base)
+                    .register(meterRegistry));
+            client.registerInterceptor(new ShardMetrics(meterRegistry, base));
+            Gauge.builder("fhir.shard.up", shard, s -> s.up ? 1 : 0)
+                    .description("1 when the FHIR shard passes its health check")
+                    .tag("shard", base)
+                    .register(meterRegistry);
+            camelContext.getRegistry().bind(shard.name, client);
+            list.add(shard);
+        }
+        this.shards = Collections.unmodifiableList(list);
+
+        // The ring: virtualNodes points per shard, sorted by hash
+        int nodes = Math.max(1, virtualNodes);
+        long[][] ring = new long[shards.size() * nodes][];
+        for (int s = 0; s < shards.size(); s++) {
+            for (int v = 0; v < nodes; v++) {
+                ring[s * nodes + v] = new long[] { hash(shards.get(s).base + "#" + v), s };
+            }
+        }
+        Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[ring.length];
+        this.owners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = ring[i][0];
+            owners[i] = (int) ring[i][1];
+        }
+
+        if (shards.size() > 1) {
+            this.health = camelContext.getExecutorServiceManager()
+                    .newSingleThreadScheduledExecutor(this, "FhirShardHealth");
+            long interval = Math.max(100, healthInterval);
+            health.scheduleWithFixedDelay(this::checkHealth, interval, interval, TimeUnit.MILLISECONDS);
+            LOG.info("Sharding FHIR resources over {} servers: {}", shards.size(), bases);
+        } else {
+            this.health = null;
+        }
+    }
+
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    public boolean isSharded() {
+        return shards.size() > 1;
+    }
+
+    /**
+     * Returns the shard of the patient of the exchange (header HL7PatientId)
+     * and leaves its name in the header HL7FhirShard.
+     */
+    public Shard assign(Exchange exchange) {
+        Shard shard = select(exchange.getIn().getHeader(SHARD_KEY, String.class));
+        exchange.getIn().setHeader(SHARD, shard.name);
+        return shard;
+    }
+
+    /**
+     * Returns the base URL of the shard the exchange was written to, named in
+     * the header HL7FhirShard by assign, or of the only shard. Null when the
+     * exchange was not assigned a shard.
+     */
+    public String writtenTo(Exchange exchange) {
+        if (shards.size() == 1) {
+            return shards.get(0).base;
+        }
+        String name = exchange.getIn().getHeader(SHARD, String.class);
+        for (Shard shard : shards) {
+            if (shard.name.equals(name)) {
+                return shard.base;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the shard of a patient identifier: its owner on the ring, or the
+     * next shard up when the owner is down and failover is on.
+     */
+    public Shard select(String key) {
+        return select(key, true);
+    }
+
+    /**
+     * Returns the shard select would choose now, without counting a failover,
+     * to tell whether a patient still goes to the shard it was written to.
+     */
+    public Shard locate(String key) {
+        return select(key, false);
+    }
+
+    private Shard select(String key, boolean count) {
+        if (shards.size() == 1) {
+            return shards.get(0);
+        }
+        int i = Arrays.binarySearch(points, hash(key == null ? "" : key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        if (i == points.length) {
+            i = 0;
+        }
+        Shard owner = shards.get(owners[i]);
+        if (owner.up || !failover) {
+            return owner;
+        }
+        for (int n = 1; n < points.length; n++) {
+            Shard next = shards.get(owners[(i + n) % points.length]);
+            if (next.up) {
+                if (count) {
+                    owner.failovers.increment();
+                }
+                return next;
+            }
+        }
+        // every shard is down, the outage handling of the routes takes over
+        return owner;
+    }
+
+    private void checkHealth() {
+        for (Shard shard : shards) {
+            boolean ok;
+            try {
+                shard.client.fetchResourceFromUrl(CapabilityStatement.class, shard.base + "/metadata?_summary=true");
+                ok = true;
+            } catch (Exception e) {
+                ok = false;
+                LOG.debug("Health check of FHIR shard {} failed: {}", shard.base, e.getMessage());
+            }
+            synchronized (shard) {
+                if (ok) {
+                    shard.failedChecks = 0;
+                    if (!shard.up) {
+                        LOG.info("FHIR shard {} is up again", shard.base);
+                    }
+                    shard.up = true;
+                } else if (++shard.failedChecks >= healthFailures && shard.up) {
+                    shard.up = false;
+                    LOG.warn("FHIR shard {} is down after {} failed health checks", shard.base,
+                            shard.failedChecks);
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (health != null) {
+            camelContext.getExecutorServiceManager().shutdown(health);
+        }
+    }
+
+    // 64 bit FNV-1a of the UTF-8 bytes, mixed so close strings spread over the ring
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static String trimSlash(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    // Times the HTTP requests of one shard, by status class
+    private static final class ShardMetrics implements IClientInterceptor {
+        private final MeterRegistry meterRegistry;
+        private final String shard;
+
+        private ShardMetrics(MeterRegistry meterRegistry, String shard) {
+            this.meterRegistry = meterRegistry;
+            this.shard = shard;
+        }
+
+        @Override
+        public void interceptRequest(IHttpRequest request) {
+            // the response carries the stopwatch of the request
+        }
+
+        @Override
+        public void interceptResponse(IHttpResponse response) {
+            Timer.builder("fhir.shard.requests")
+                    .description("HTTP requests to a FHIR shard")
+                    .tag("shard", shard)
+                    .tag("status", response.getStatus() / 100 + "xx")
+                    .register(meterRegistry)
+                    .record(response.getRequestStopWatch().getMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package sample.camel.fhir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * A durable local queue of the FHIR resources that could not be sent because
+ * the FHIR server was unreachable, see FhirSpoolGuard and FhirSpoolDrainer.
+ * <p/>
+ * The spool is an append-only journal in the directory fhir.spool.dir, split
+ * in segment files of fhir.spool.segment-size bytes that are memory-mapped, so
+ * an append is a copy into the page cache without a system call. Every record
+ * is written as:
+ * <pre>
+ * int length | int CRC32C | entry bytes
+ * </pre>
+ * The length is written last, so a record cut by a crash reads as the end of
+ * the journal. A zero length or a wrong CRC ends a segment. Records are read
+ * in order; the position of the next record to send is kept in the memory
+ * mapped file spool.checkpoint, and a segment is deleted once it has been read
+ * completely. Entries are delivered at least once: after a crash the records
+ * sent since the last checkpoint are sent again.
+ * <p/>
+ * Appended records survive a crash of the process. With fhir.spool.sync=true
+ * every append is also forced to the disk, which survives a power loss too
+ * but costs a disk flush per message.
+ * <p/>
+ * The entries are kept as FhirJsonPayload, a HAPI resource is serialized with
+ * the id it had before the upload was attempted (the patient identifier set
+ * by the mappers), with the HL7 headers of the message. FhirSpoolDrainer sends
+ * them through PatientChangeDetector again, so a Patient known to the change
+ * cache is still sent as an update of the server resource.
+ * <p/>
+ * The entries waiting for each patient (header HL7PatientId) are counted, see
+ * hasPending: FhirSpoolGuard spools the new messages of a patient that still
+ * has entries here, so they are not sent before the older ones. The number of waiting
+ * entries is the gauge fhir.spool.depth, the appended and drained entries the
+ * counters fhir.spool.appended and fhir.spool.drained.
+ */
+@Component("fhirSpool")
+public class FhirSpool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FhirSpool.class);
+
+    // length and CRC of a record
+    private static final int RECORD_HEADER = 8;
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String CHECKPOINT = "spool.checkpoint";
+
+    /** A spooled resource and the HL7 headers of its message. */
+    public record Entry(Map<String, String> headers, FhirJsonPayload payload) {
+    }
+
+    private final FhirContext fhirContext;
+    private final boolean enabled;
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean sync;
+    private final Counter appended;
+    private final Counter drained;
+
+    // every segment not completely read yet, by number
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    private MappedByteBuffer checkpoint;
+    private long writeSegment;
+    private int writePosition;
+    private long readSegment;
+    private int readPosition;
+    private long depth;
+    // waiting entries by patient identifier, entries without one are not counted
+    private final Map<String, Integer> pending = new HashMap<>();
+
+    public FhirSpool(FhirContext fhirContext, MeterRegistry meterRegistry,
+            @Value("${fhir.spool.enabled:false}") boolean enabled,
+            @Value("${fhir.spool.dir:target/work/fhir/spool}") String directory,
+            @Value("${fhir.spool.segment-size:67108864}") int segmentSize,
+            @Value("${fhir.spool.sync:false}") boolean sync) {
+        this.fhirContext = fhirContext;
+        this.enabled = enabled;
+        this.directory = Paths.get(directory.trim());
+        this.segmentSize = Math.max(64 * 1024, segmentSize);
+        this.sync = sync;
+        this.appended = Counter.builder("fhir.spool.appended")
+                .description("Resources written to the spool")
+                .register(meterRegistry);
+        this.drained = Counter.builder("fhir.spool.drained")
+                .description("Resources taken from the spool")
+                .register(meterRegistry);
+        Gauge.builder("fhir.spool.depth", this, FhirSpool::getDepth)
+                .description("Resources waiting in the spool")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @PostConstruct
+    public synchronized void open() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                segments.put(segmentNumber(file), map(file));
+            }
+        }
+        checkpoint = map(directory.resolve(CHECKPOINT), 16);
+        readSegment = checkpoint.getLong(0);
+        readPosition = checkpoint.getInt(8);
+
+        // segments older than the checkpoint were read before a crash
+        while (!segments.isEmpty() && segments.firstKey() < readSegment) {
+            delete(segments.pollFirstEntry().getKey());
+        }
+        if (segments.isEmpty()) {
+            long first = Math.max(1, readSegment);
+            segments.put(first, map(segmentFile(first)));
+        }
+        if (readSegment != segments.firstKey()) {
+            readSegment = segments.firstKey();
+            readPosition = 0;
+        }
+        writeSegment = segments.lastKey();
+        writePosition = end(segments.lastEntry().getValue(), 0);
+
+        for (Map.Entry<Long, MappedByteBuffer> segment : segments.entrySet()) {
+            int position = segment.getKey() == readSegment ? readPosition : 0;
+            int next;
+            while ((next = next(segment.getValue(), position)) > 0) {
+                count(decode(segment.getValue(), position), 1);
+                depth++;
+                position = next;
+            }
+        }
+        saveCheckpoint();
+        if (depth > 0) {
+            LOG.info("{} resources waiting in the FHIR spool {}", depth, directory);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (!enabled) {
+            return;
+        }
+        segments.values().forEach(MappedByteBuffer::force);
+        if (checkpoint != null) {
+            checkpoint.force();
+        }
+    }
+
+    /**
+     * Serializes a HAPI resource the way Hl7JsonWriter would, with the given
+     * logical id (none when null) instead of the one the resource has now.
+     */
+    public FhirJsonPayload toPayload(IBaseResource resource, String id) {
+        IParser parser = fhirContext.newJsonParser();
+        parser.setOmitResourceId(true);
+        byte[] json = parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+        String type = fhirContext.getResourceType(resource);
+        // the id goes right after "resourceType":"...", see FhirJsonPayload.withId
+        int idPosition = ("{\"resourceType\":\"" + type + "\"").length();
+        FhirJsonPayload payload = new FhirJsonPayload(type, null, json, idPosition, idPosition);
+        return id == null ? payload : payload.withId(id);
+    }
+
+    /**
+     * Appends an entry at the end of the journal.
+     */
+    public synchronized void append(Entry entry) throws IOException {
+        if (!enabled) {
+            throw new IllegalStateException("The FHIR spool is disabled");
+        }
+        byte[] bytes = encode(entry);
+        if (RECORD_HEADER + bytes.length > segmentSize) {
+            throw new IOException("The resource (" + bytes.length + " bytes) does not fit in a spool segment");
+        }
+        if (writePosition + RECORD_HEADER + bytes.length > segmentSize) {
+            writeSegment++;
+            writePosition = 0;
+            segments.put(writeSegment, map(segmentFile(writeSegment)));
+        }
+        MappedByteBuffer segment = segments.get(writeSegment);
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        segment.put(writePosition + RECORD_HEADER, bytes);
+        segment.putInt(writePosition + 4, (int) crc.getValue());
+        segment.putInt(writePosition, bytes.length);
+        if (sync) {
+            segment.force(writePosition, RECORD_HEADER + bytes.length);
+        }
+        writePosition += RECORD_HEADER + bytes.length;
+        count(entry, 1);
+        depth++;
+        appended.increment();
+    }
+
+    /**
+     * Returns up to max entries from the head of the journal, without removing
+     * them, see ack.
+     */
+    public synchronized List<Entry> peek(int max) {
+        List<Entry> entries = new ArrayList<>();
+        if (!enabled) {
+            return entries;
+        }
+        long segmentNumber = readSegment;
+        int position = readPosition;
+        while (entries.size() < max) {
+            MappedByteBuffer segment = segments.get(segmentNumber);
+            int next = next(segment, position);
+            if (next > 0) {
+                entries.add(decode(segment, position));
+                position = next;
+            } else if (segmentNumber < writeSegment) {
+                segmentNumber = segments.higherKey(segmentNumber);
+                position = 0;
+            } else {
+                break;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Removes count entries from the head of the journal, after they were
+     * handled. Segments read completely are deleted.
+     */
+    public synchronized void ack(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            int next;
+            while ((next = next(segments.get(readSegment), readPosition)) < 0) {
+                if (readSegment >= writeSegment) {
+                    saveCheckpoint();
+                    return;
+                }
+                segments.remove(readSegment);
+                delete(readSegment);
+                readSegment = segments.firstKey();
+                readPosition = 0;
+            }
+            count(decode(segments.get(readSegment), readPosition), -1);
+            readPosition = next;
+            depth--;
+            drained.increment();
+        }
+        saveCheckpoint();
+    }
+
+    public synchronized long getDepth() {
+        return depth;
+    }
+
+    /**
+     * Tells whether entries of the patient are waiting, or any entry when the
+     * patient is not known.
+     */
+    public synchronized boolean hasPending(String patientId) {
+        return patientId == null ? depth > 0 : pending.containsKey(patientId);
+    }
+
+    /** The patient of an entry, the header HL7PatientId, or null. */
+    public static String patientId(Entry entry) {
+        return entry.headers().get(FhirShards.SHARD_KEY);
+    }
+
+    private void count(Entry entry, int delta) {
+        String patientId = patientId(entry);
+        if (patientId != null) {
+            pending.merge(patientId, delta, (a, b) -> a + b == 0 ? null : a + b);
+        }
+    }
+
+    // Returns the position after the record at position, or -1 when there is
+    // no valid record there.
+    private int next(MappedByteBuffer segment, int position) {
+        if (position + RECORD_HEADER > segment.capacity()) {
+            return -1;
+        }
+        int length = segment.getInt(position);
+        if (length <= 0 || position + RECORD_HEADER + length > segment.capacity()) {
+            return -1;
+        }
+        byte[] bytes = new byte[length];
+        segment.get(position + RECORD_HEADER, bytes);
+        CRC32C crc = new CRC32C();
+        crc.update(bytes);
+        return (int) crc.getValue() == segment.getInt(position + 4) ? position + RECORD_HEADER + length : -1;
+    }
+
+    private int end(MappedByteBuffer segment, int position) {
+        int next;
+        while ((next = next(segment, position)) > 0) {
+            position = next;
+        }
+        return position;
+    }
+
+    private static byte[] encode(Entry entry) throws IOException {
+        FhirJsonPayload payload = entry.payload();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.getBytes().length + 256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(entry.headers().size());
+        for (Map.Entry<String, String> header : entry.headers().entrySet()) {
+            out.writeUTF(header.getKey());
+            out.writeUTF(header.getValue());
+        }
+        out.writeUTF(payload.getResourceType());
+        out.writeBoolean(payload.getId() != null);
+        if (payload.getId() != null) {
+            out.writeUTF(payload.getId());
+        }
+        out.writeInt(payload.idStart());
+        out.writeInt(payload.idEnd());
+        out.writeInt(payload.getBytes().length);
+        out.write(payload.getBytes());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Entry decode(MappedByteBuffer segment, int position) {
+        byte[] bytes = new byte[segment.getInt(position)];
+        segment.get(position + RECORD_HEADER, bytes);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            int headerCount = in.readInt();
+            Map<String, String> headers = new LinkedHashMap<>();
+            for (int i = 0; i < headerCount; i++) {
+                headers.put(in.readUTF(), in.readUTF());
+            }
+            String type = in.readUTF();
+            String id = in.readBoolean() ? in.readUTF() : null;
+            int idStart = in.readInt();
+            int idEnd = in.readInt();
+            byte[] json = new byte[in.readInt()];
+            in.readFully(json);
+            return new Entry(headers, new FhirJsonPayload(type, id, json, idStart, idEnd));
+        } catch (IOException e) {
+            // the CRC was checked, the bytes are the ones written
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void saveCheckpoint() {
+        checkpoint.putLong(0, readSegment);
+        checkpoint.putInt(8, readPosition);
+        if (sync) {
+            checkpoint.force();
+        }
+    }
+
+    private MappedByteBuffer map(Path file) throws IOException {
+        return map(file, segmentSize);
+    }
+
+    private static MappedByteBuffer map(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, (int) Math.min(channel.size(),
+                    Integer.MAX_VALUE)));
+        }
+    }
+
+    private Path segmentFile(long number) {
+        return directory.resolve(String.format("%s%012d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private static long segmentNumber(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private void delete(long number) {
+        try {
+            Files.deleteIfExists(segmentFile(number));
+        } catch (IOException e) {
+            LOG.warn("Cannot delete the spool segment {}: {}", segmentFile(number), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package sample.camel.fhir;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Remembers, for every patient identifier, a hash of the last resource sent to
+ * the FHIR server together with the ID and version the server assigned to it
+ * and the base URL of that server (the shard, see FhirShards). A server ID is
+ * only valid on the server that assigned it.
+ * <p/>
+ * PatientChangeDetector uses it to skip a resource identical to the last one
+ * sent, and to turn a changed one into an update of the server resource with
+ * If-Match, instead of creating a new resource.
+ * <p/>
+ * The cache keeps the fhir.cache.size most recently used patients. When the
+ * cache is enabled (fhir.cache.enabled) and fhir.cache.store names a file, every change is appended to it as it
+ * happens (one tab separated line per patient, a removal is the key and a
+ * dash), so a crash or a kill -9 loses nothing the operating system was handed.
+ * The file is read again on startup and rewritten with the live entries only
+ * on startup, on shutdown and when it holds twice fhir.cache.size lines. With
+ * the cache disabled the file is neither read nor written.
+ * <p/>
+ * A patient missing from the cache, never sent, evicted or removed after a
+ * failure, is not created again: the writers send it as a conditional update on
+ * its identifier (see identifierSearch), which updates the Patient already on
+ * the server or creates it.
+ */
+@Component("patientChangeCache")
+public class PatientChangeCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PatientChangeCache.class);
+
+    /** What the cache knows about the last resource sent for a patient. */
+    public record Entry(String hash, String serverId, String version, String shard) {
+    }
+
+    private static final String REMOVED = "-";
+
+    private final FhirContext fhirContext;
+    private final Path store;
+    private final int maxEntries;
+    private final Map<String, Entry> entries;
+    private OutputStream journal;
+    private int journalLines;
+
+    public PatientChangeCache(FhirContext fhirContext,
+            @Value("${fhir.cache.enabled:false}") boolean enabled,
+            @Value("${fhir.cache.size:100000}") int size,
+            @Value("${fhir.cache.store:}") String store) {
+        this.fhirContext = fhirContext;
+        this.store = !enabled || store == null || store.isBlank() ? null : Paths.get(store.trim());
+        this.maxEntries = Math.max(1, size);
+        this.entries = new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    public synchronized void put(String key, Entry entry) {
+        entries.put(key, entry);
+        append(line(key, entry));
+    }
+
+    public synchronized void remove(String key) {
+        if (entries.remove(key) != null) {
+            append(key + "\t" + REMOVED);
+        }
+    }
+
+    /**
+     * Returns the search of the Patient with the given identifier (PID-3.1,
+     * the identifier.value of the mappings), for example identifier=123, used
+     * for conditional creates and updates.
+     */
+    public static String identifierSearch(String patientId) {
+        String escaped = patientId.replace("\\", "\\\\").replace("|", "\\|").replace(",", "\\,")
+                .replace("$", "\\$");
+        return "identifier=" + URLEncoder.encode(escaped, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a hash of the content of the resource. The id and meta elements
+     * are left out, they change between the local and the server copy.
+     */
+    public String hash(Resource resource) {
+        Resource content = resource.copy();
+        content.setIdElement(null);
+        content.setMeta(null);
+        IParser parser = fhirContext.newJsonParser();
+        byte[] json = parser.encodeResourceToString(content).getBytes(StandardCharsets.UTF_8);
+        try {
+            return toHash(MessageDigest.getInstance("SHA-256").digest(json));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the hash of a resource serialized by Hl7JsonWriter. It is the
+     * same hash as the one of the equivalent HAPI resource.
+     */
+    public String hash(FhirJsonPayload payload) {
+        return toHash(payload.contentDigest());
+    }
+
+    // 128 bits are plenty to tell two versions of a patient apart
+    private static String toHash(byte[] digest) {
+        return HexFormat.of().formatHex(digest, 0, 16);
+    }
+
+    @PostConstruct
+    public void load() {
+        if (store == null || !Files.exists(store)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(store, StandardCharsets.UTF_8)) {
+            String line;
+            synchronized (this) {
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length == 5) {
+                        entries.put(fields[0], new Entry(fields[1], fields[2], fields[3], fields[4]));
+                    } else if (fields.length == 4) {
+                        // written before the shard was kept, matches no shard
+                        entries.put(fields[0], new Entry(fields[1], fields[2], fields[3], ""));
+                    } else if (fields.length == 2 && REMOVED.equals(fields[1])) {
+                        entries.remove(fields[0]);
+                    }
+                }
+            }
+            LOG.info("Loaded {} patients from {}", entries.size(), store);
+        } catch (IOException e) {
+            LOG.warn("Cannot read the patient cache {}, starting empty: {}", store, e.getMessage());
+        }
+        synchronized (this) {
+            compact();
+        }
+    }
+
+    @PreDestroy
+    public synchronized void save() {
+        if (store == null) {
+            return;
+        }
+        compact();
+        closeJournal();
+    }
+
+    // must be called holding the lock
+    private void append(String line) {
+        if (store == null) {
+            return;
+        }
+        if (journalLines >= 2 * maxEntries) {
+            compact();
+        }
+        try {
+            if (journal == null) {
+                Files.createDirectories(store.toAbsolutePath().getParent());
+                journal = Files.newOutputStream(store, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            // one write per change, nothing waits in a user space buffer
+            journal.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            journalLines++;
+        } catch (IOException e) {
+            LOG.warn("Cannot write the patient cache {}: {}", store, e.getMessage());
+            closeJournal();
+        }
+    }
+
+    // Rewrites the file with the live entries, must be called holding the lock
+    private void compact() {
+        if (store == null) {
+            return;
+        }
+        closeJournal();
+        try {
+            Path parent = store.toAbsolutePath().getParent();
+            Files.createDirectories(parent);
+            Path temp = Files.createTempFile(parent, store.getFileName().toString(), ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    writer.write(line(e.getKey(), e.getValue()));
+                    writer.newLine();
+                }
+            }
+            Files.move(temp, store, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journalLines = entries.size();
+        } catch (IOException e) {
+            LOG.warn("Cannot write the patient cache {}: {}", store, e.getMessage());
+        }
+    }
+
+    private static String line(String key, Entry entry) {
+        return key + "\t" + entry.hash() + "\t" + entry.serverId() + "\t" + entry.version() + "\t" + entry.shard();
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                LOG.debug("Cannot close the patient cache {}: {}", store, e.getMessage());
+            }
+            journal = null;
+        }
+    }
+}
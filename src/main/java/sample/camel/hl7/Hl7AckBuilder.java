@@ -0,0 +1,88 @@
+package sample.camel.hl7;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds HL7 v2 acknowledgements (ACK messages) from the MSH of the message
+ * being acknowledged, without parsing or re-encoding the original message.
+ * <p/>
+ * The sending and receiving application and facility are swapped, the trigger
+ * event, processing ID and version are copied, and MSA-2 echoes the control ID
+ * of the original message (MSH-10). The separators of the original message are
+ * used.
+ * <p/>
+ * Acknowledgement codes:
+ * <ul>
+ * <li>AA: application accept, the message was processed.</li>
+ * <li>AE: application error, the message was valid but processing failed.</li>
+ * <li>AR: application reject, the message was not accepted at all.</li>
+ * </ul>
+ */
+public final class Hl7AckBuilder {
+
+    public static final String ACCEPT = "AA";
+    public static final String ERROR = "AE";
+    public static final String REJECT = "AR";
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+    private static final String ID_PREFIX = Long.toString(System.currentTimeMillis(), 36) + "-";
+    private static final AtomicLong ID_SEQUENCE = new AtomicLong();
+
+    private Hl7AckBuilder() {
+    }
+
+    /**
+     * Builds the acknowledgement of the message with the given MSH. The text, if
+     * any, is sent in MSA-3.
+     */
+    public static String build(MshHeader msh, String ackCode, String text) {
+        char fs = msh.getFieldSeparator();
+        StringBuilder ack = new StringBuilder(160);
+        ack.append("MSH").append(fs).append(msh.getEncodingCharacters())
+                .append(fs).append(msh.getField(5))
+                .append(fs).append(msh.getField(6))
+                .append(fs).append(msh.getField(3))
+                .append(fs).append(msh.getField(4))
+                .append(fs).append(LocalDateTime.now().format(TIMESTAMP))
+                .append(fs)
+                .append(fs).append("ACK").append(msh.getComponentSeparator()).append(msh.getTriggerEvent())
+                .append(fs).append(nextControlId())
+                .append(fs).append(msh.getField(11))
+                .append(fs).append(msh.getField(12))
+                .append('\r');
+        appendMsa(ack, fs, ackCode, msh.getControlId(), text, msh.getEncodingCharacters());
+        return ack.toString();
+    }
+
+    /**
+     * Builds a reject acknowledgement for a message whose MSH could not be read,
+     * using the default separators.
+     */
+    public static String reject(String text) {
+        StringBuilder ack = new StringBuilder(120);
+        ack.append("MSH|^~\\&|||||").append(LocalDateTime.now().format(TIMESTAMP))
+                .append("||ACK|").append(nextControlId()).append("|P|2.4\r");
+        appendMsa(ack, '|', REJECT, "", text, "^~\\&");
+        return ack.toString();
+    }
+
+    private static void appendMsa(StringBuilder ack, char fs, String ackCode, String controlId, String text,
+            String encodingCharacters) {
+        ack.append("MSA").append(fs).append(ackCode).append(fs).append(controlId);
+        if (text != null && !text.isEmpty()) {
+            ack.append(fs);
+            // the text is free text, separators in it would break the message
+            for (int i = 0; i < text.length() && i < 80; i++) {
+                char c = text.charAt(i);
+                ack.append(c == fs || encodingCharacters.indexOf(c) >= 0 || c == '\r' || c == '\n' ? ' ' : c);
+            }
+        }
+        ack.append('\r');
+    }
+
+    private static String nextControlId() {
+        return ID_PREFIX + ID_SEQUENCE.incrementAndGet();
+    }
+}
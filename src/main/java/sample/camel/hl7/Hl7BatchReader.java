@@ -0,0 +1,184 @@
+package sample.camel.hl7;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads the HL7 v2 messages of a batch stream one at a time.
+ * <p/>
+ * The stream is read through a channel in fixed size chunks, so a batch file
+ * of hundreds of MB is never held in memory: only the chunk, the current
+ * segment and the current message are kept. Two kinds of batches are accepted,
+ * and can be mixed:
+ * <ul>
+ * <li>HL7 batch protocol: messages wrapped in FHS/BHS ... BTS/FTS segments.
+ * The wrapper segments are dropped and every MSH starts a new message.</li>
+ * <li>MLLP framing: each message between a 0x0b start block and a 0x1c end
+ * block, as written by MLLP loggers and replay tools.</li>
+ * </ul>
+ * Segments may be terminated by \r, \n or \r\n; the messages returned always
+ * use \r. Lines before the first MSH are ignored.
+ * <p/>
+ * The reader is an Iterator so it can be given to the Camel splitter, which
+ * closes it when the split ends. It is not thread safe.
+ */
+public class Hl7BatchReader implements Iterator<String>, Closeable {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int START_BLOCK = 0x0b;
+    private static final int END_BLOCK = 0x1c;
+
+    private final ReadableByteChannel channel;
+    private final Charset charset;
+    private final ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+
+    private byte[] line = new byte[1024];
+    private int lineLength;
+    private byte[] message = new byte[8 * 1024];
+    private int messageLength;
+
+    private boolean endOfStream;
+    private boolean finished;
+    private String next;
+    private long count;
+
+    public Hl7BatchReader(ReadableByteChannel channel, Charset charset) {
+        this.channel = channel;
+        this.charset = charset;
+        this.chunk.flip();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !finished) {
+            try {
+                next = readNext();
+            } catch (IOException e) {
+                close();
+                throw new UncheckedIOException(e);
+            }
+            if (next == null) {
+                finished = true;
+                close();
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String result = next;
+        next = null;
+        count++;
+        return result;
+    }
+
+    /**
+     * The number of messages returned so far.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing more to read anyway
+        }
+    }
+
+    private String readNext() throws IOException {
+        while (true) {
+            int b = nextByte();
+            if (b < 0) {
+                String ready = lineLength > 0 ? endSegment(false) : null;
+                return ready != null ? ready : finishMessage();
+            }
+            if (b == START_BLOCK) {
+                continue;
+            }
+            if (b == '\r' || b == '\n' || b == END_BLOCK) {
+                String ready = endSegment(b == END_BLOCK);
+                if (ready != null) {
+                    return ready;
+                }
+            } else {
+                if (lineLength == line.length) {
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                line[lineLength++] = (byte) b;
+            }
+        }
+    }
+
+    // Handles the segment in the line buffer, returns the previous message when
+    // this segment closes it.
+    private String endSegment(boolean endBlock) {
+        String ready = null;
+        if (lineLength >= 3) {
+            if (isSegment("MSH")) {
+                ready = finishMessage();
+                appendSegment();
+            } else if (isSegment("FHS") || isSegment("BHS") || isSegment("BTS") || isSegment("FTS")) {
+                ready = finishMessage();
+            } else if (messageLength > 0) {
+                appendSegment();
+            }
+        }
+        lineLength = 0;
+        if (endBlock && ready == null) {
+            ready = finishMessage();
+        }
+        return ready;
+    }
+
+    private boolean isSegment(String name) {
+        return line[0] == name.charAt(0) && line[1] == name.charAt(1) && line[2] == name.charAt(2);
+    }
+
+    private void appendSegment() {
+        int needed = messageLength + lineLength + 1;
+        if (needed > message.length) {
+            message = Arrays.copyOf(message, Math.max(needed, message.length * 2));
+        }
+        System.arraycopy(line, 0, message, messageLength, lineLength);
+        messageLength += lineLength;
+        message[messageLength++] = '\r';
+    }
+
+    private String finishMessage() {
+        if (messageLength == 0) {
+            return null;
+        }
+        String result = new String(message, 0, messageLength, charset);
+        messageLength = 0;
+        return result;
+    }
+
+    private int nextByte() throws IOException {
+        while (!chunk.hasRemaining()) {
+            if (endOfStream) {
+                return -1;
+            }
+            chunk.clear();
+            int read = channel.read(chunk);
+            chunk.flip();
+            if (read < 0) {
+                endOfStream = true;
+            }
+        }
+        return chunk.get() & 0xff;
+    }
+}
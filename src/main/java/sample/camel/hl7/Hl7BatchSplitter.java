@@ -0,0 +1,69 @@
+package sample.camel.hl7;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.InvalidPayloadException;
+import org.apache.camel.component.file.GenericFile;
+import org.apache.camel.support.ExchangeHelper;
+
+/**
+ * Bean used by the Camel splitter to turn a batch of HL7 v2 messages into an
+ * iterator of single messages, see Hl7BatchReader.
+ * <p/>
+ * A local file (the body of a file: consumer) is read through a FileChannel,
+ * without converting the body first. Any other body is read as an InputStream.
+ * The charset of the exchange is used, UTF-8 by default.
+ * <p/>
+ * Gzip compressed batches are recognised by their first two bytes (0x1f 0x8b)
+ * and decompressed while they are read, whatever the file name or the
+ * Content-Encoding of the request.
+ * <p/>
+ * Example: .split(method(new Hl7BatchSplitter(), "split")).streaming()
+ */
+public class Hl7BatchSplitter {
+
+    private static final int GZIP_MAGIC_1 = 0x1f;
+    private static final int GZIP_MAGIC_2 = 0x8b;
+
+    public Hl7BatchReader split(Exchange exchange) throws IOException, InvalidPayloadException {
+        Charset charset = Charset.forName(ExchangeHelper.getCharsetName(exchange));
+        Object body = exchange.getIn().getBody();
+        if (body instanceof GenericFile && ((GenericFile<?>) body).getFile() instanceof File) {
+            File file = (File) ((GenericFile<?>) body).getFile();
+            if (isGzip(file)) {
+                return new Hl7BatchReader(Channels.newChannel(gunzip(Files.newInputStream(file.toPath()))), charset);
+            }
+            return new Hl7BatchReader(FileChannel.open(file.toPath(), StandardOpenOption.READ), charset);
+        }
+        InputStream in = new BufferedInputStream(exchange.getIn().getMandatoryBody(InputStream.class));
+        in.mark(2);
+        boolean gzip = in.read() == GZIP_MAGIC_1 && in.read() == GZIP_MAGIC_2;
+        in.reset();
+        return new Hl7BatchReader(Channels.newChannel(gzip ? gunzip(in) : in), charset);
+    }
+
+    private static boolean isGzip(File file) throws IOException {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            return in.read() == GZIP_MAGIC_1 && in.read() == GZIP_MAGIC_2;
+        }
+    }
+
+    private static InputStream gunzip(InputStream in) throws IOException {
+        try {
+            return new GZIPInputStream(in, 64 * 1024);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package sample.camel.hl7;
+
+/**
+ * A compiled reference to a value of an HL7 v2 message, written the usual way:
+ * SEG-field[.component[.subcomponent]], with an optional repetition number
+ * after the field, for example PID-5.1, PID-3(2).1 or MSH-9.2.
+ * <p/>
+ * Numbers start at 1. When the component or subcomponent is left out the first
+ * one is read, the same as the HAPI Terser does, and when the repetition is
+ * left out the first repetition is read.
+ * <p/>
+ * Instances are immutable, they are created once when a mapping is loaded and
+ * used with RawHl7Message.get for every message.
+ */
+public final class Hl7FieldPath {
+
+    private final String path;
+    private final String segment;
+    private final int field;
+    private final int repetition;
+    private final int component;
+    private final int subcomponent;
+
+    private Hl7FieldPath(String path, String segment, int field, int repetition, int component,
+            int subcomponent) {
+        this.path = path;
+        this.segment = segment;
+        this.field = field;
+        this.repetition = repetition;
+        this.component = component;
+        this.subcomponent = subcomponent;
+    }
+
+    /**
+     * Compiles a path like PID-5.1.
+     *
+     * @throws IllegalArgumentException if the path is not valid
+     */
+    public static Hl7FieldPath compile(String path) {
+        String text = path.trim();
+        int dash = text.indexOf('-');
+        if (dash != 3) {
+            throw new IllegalArgumentException("Invalid HL7 path " + path + ", expected SEG-field.component");
+        }
+        String segment = text.substring(0, 3);
+        String[] parts = text.substring(dash + 1).split("\\.");
+        if (parts.length > 3) {
+            throw new IllegalArgumentException("Invalid HL7 path " + path + ", too many components");
+        }
+        try {
+            String fieldPart = parts[0];
+            int repetition = 1;
+            int open = fieldPart.indexOf('(');
+            if (open > 0 && fieldPart.endsWith(")")) {
+                repetition = Integer.parseInt(fieldPart.substring(open + 1, fieldPart.length() - 1));
+                fieldPart = fieldPart.substring(0, open);
+            }
+            int field = Integer.parseInt(fieldPart);
+            int component = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+            int subcomponent = parts.length > 2 ? Integer.parseInt(parts[2]) : 1;
+            if (field < 1 || repetition < 1 || component < 1 || subcomponent < 1) {
+                throw new IllegalArgumentException("Invalid HL7 path " + path + ", numbers start at 1");
+            }
+            return new Hl7FieldPath(text, segment, field, repetition, component, subcomponent);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid HL7 path " + path, e);
+        }
+    }
+
+    public String getSegment() {
+        return segment;
+    }
+
+    public int getField() {
+        return field;
+    }
+
+    public int getRepetition() {
+        return repetition;
+    }
+
+    public int getComponent() {
+        return component;
+    }
+
+    public int getSubcomponent() {
+        return subcomponent;
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
@@ -0,0 +1,104 @@
+package sample.camel.hl7;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * Converts HL7 v2 TS/DTM values to the FHIR date, dateTime and instant string
+ * formats, keeping the precision of the HL7 value.
+ * <p/>
+ * An HL7 timestamp is YYYY[MM[DD[HH[MM[SS[.S[S[S[S]]]]]]]]][+/-ZZZZ], so
+ * 20010803, 19810813000000 and 201111211031+0100 are all valid. The FHIR
+ * date is cut to the day (1981-08-13), and a dateTime keeps what the sender
+ * gave, down to the fraction of a second. FHIR requires a time zone when there
+ * is a time, the zone of the value is used and, when the sender gave none,
+ * the offset of the given default zone at that moment.
+ * <p/>
+ * The conversion works on the characters, without SimpleDateFormat, so it is
+ * thread safe and does not allocate a formatter per message.
+ */
+public final class Hl7Timestamps {
+
+    private Hl7Timestamps() {
+    }
+
+    /**
+     * Converts the timestamp to a FHIR date: YYYY, YYYY-MM or YYYY-MM-DD.
+     *
+     * @throws IllegalArgumentException if the value is not an HL7 timestamp
+     */
+    public static String toFhirDate(String ts) {
+        int digits = digits(ts);
+        StringBuilder out = new StringBuilder(10);
+        out.append(ts, 0, 4);
+        if (digits >= 6) {
+            out.append('-').append(ts, 4, 6);
+        }
+        if (digits >= 8) {
+            out.append('-').append(ts, 6, 8);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Converts the timestamp to a FHIR dateTime, with the precision of the
+     * value: YYYY, YYYY-MM, YYYY-MM-DD or YYYY-MM-DDThh:mm[:ss[.s]]+zz:zz.
+     *
+     * @throws IllegalArgumentException if the value is not an HL7 timestamp
+     */
+    public static String toFhirDateTime(String ts, ZoneId defaultZone) {
+        int digits = digits(ts);
+        if (digits < 10) {
+            return toFhirDate(ts);
+        }
+        StringBuilder out = new StringBuilder(29);
+        out.append(ts, 0, 4).append('-').append(ts, 4, 6).append('-').append(ts, 6, 8)
+                .append('T').append(ts, 8, 10).append(':');
+        // FHIR needs at least the minutes
+        out.append(digits >= 12 ? ts.substring(10, 12) : "00").append(':');
+        out.append(digits >= 14 ? ts.substring(12, 14) : "00");
+        int position = digits;
+        if (position < ts.length() && ts.charAt(position) == '.') {
+            int fraction = position + 1;
+            while (fraction < ts.length() && Character.isDigit(ts.charAt(fraction))) {
+                fraction++;
+            }
+            if (fraction > position + 1) {
+                out.append(ts, position, fraction);
+            }
+            position = fraction;
+        }
+        out.append(zone(ts, position, digits, defaultZone));
+        return out.toString();
+    }
+
+    // Number of leading digits, validated against the TS lengths
+    private static int digits(String ts) {
+        if (ts == null) {
+            throw new IllegalArgumentException("Empty HL7 timestamp");
+        }
+        int digits = 0;
+        while (digits < ts.length() && digits < 14 && Character.isDigit(ts.charAt(digits))) {
+            digits++;
+        }
+        if (digits < 4 || digits % 2 != 0) {
+            throw new IllegalArgumentException("Invalid HL7 timestamp " + ts);
+        }
+        return digits;
+    }
+
+    private static String zone(String ts, int position, int digits, ZoneId defaultZone) {
+        if (position + 5 <= ts.length() && (ts.charAt(position) == '+' || ts.charAt(position) == '-')) {
+            return ts.substring(position, position + 3) + ":" + ts.substring(position + 3, position + 5);
+        }
+        LocalDateTime local = LocalDateTime.of(
+                Integer.parseInt(ts, 0, 4, 10),
+                Integer.parseInt(ts, 4, 6, 10),
+                Integer.parseInt(ts, 6, 8, 10),
+                Integer.parseInt(ts, 8, 10, 10),
+                digits >= 12 ? Integer.parseInt(ts, 10, 12, 10) : 0);
+        ZoneOffset offset = defaultZone.getRules().getOffset(local);
+        return offset == ZoneOffset.UTC ? "Z" : offset.getId();
+    }
+}
@@ -0,0 +1,180 @@
+package sample.camel.hl7;
+
+import java.nio.charset.StandardCharsets;
+
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * The fields of the MSH segment of an HL7 v2 message, read straight from the
+ * raw text without the HAPI parser.
+ * <p/>
+ * Only the first segment is scanned and only MSH-1 to MSH-12 are kept, which
+ * is enough to know the message type (MSH-9), the message control ID (MSH-10),
+ * the processing ID (MSH-11) and the version (MSH-12), to route the message and
+ * to build an acknowledgement. The separators declared in MSH-1 and MSH-2 are
+ * honoured, so messages that do not use |^~\&amp; are read correctly too.
+ * <p/>
+ * Field numbers follow the HL7 convention: MSH-1 is the field separator itself
+ * and MSH-2 the encoding characters.
+ */
+public final class MshHeader {
+
+    private static final int LAST_FIELD = 12;
+    private static final char START_BLOCK = 0x0b;
+
+    private final char fieldSeparator;
+    private final String[] fields;
+
+    private MshHeader(char fieldSeparator, String[] fields) {
+        this.fieldSeparator = fieldSeparator;
+        this.fields = fields;
+    }
+
+    /**
+     * Reads the MSH segment at the start of the message. Leading white space and
+     * an MLLP start block are skipped.
+     *
+     * @throws HL7Exception if the message does not start with an MSH segment
+     */
+    public static MshHeader parse(CharSequence message) throws HL7Exception {
+        int length = message.length();
+        int start = 0;
+        while (start < length
+                && (message.charAt(start) == START_BLOCK || Character.isWhitespace(message.charAt(start)))) {
+            start++;
+        }
+        if (length - start < 8 || message.charAt(start) != 'M' || message.charAt(start + 1) != 'S'
+                || message.charAt(start + 2) != 'H') {
+            throw new HL7Exception("The message does not start with an MSH segment");
+        }
+
+        char fieldSeparator = message.charAt(start + 3);
+        String[] fields = new String[LAST_FIELD + 1];
+        fields[1] = String.valueOf(fieldSeparator);
+        int field = 2;
+        int fieldStart = start + 4;
+        for (int i = fieldStart; i <= length && field <= LAST_FIELD; i++) {
+            char c = i < length ? message.charAt(i) : '\r';
+            if (c == fieldSeparator || c == '\r' || c == '\n') {
+                fields[field++] = message.subSequence(fieldStart, i).toString();
+                fieldStart = i + 1;
+                if (c != fieldSeparator) {
+                    break;
+                }
+            }
+        }
+        if (fields[2] == null || fields[2].isEmpty()) {
+            throw new HL7Exception("MSH-2 encoding characters are missing");
+        }
+        return new MshHeader(fieldSeparator, fields);
+    }
+
+    /**
+     * Reads the MSH segment at the start of the raw bytes of a message. Only the
+     * bytes of the first segment are decoded.
+     *
+     * @throws HL7Exception if the message does not start with an MSH segment
+     */
+    public static MshHeader parse(byte[] message, int offset, int length) throws HL7Exception {
+        int end = offset + length;
+        int start = offset;
+        while (start < end && (message[start] == START_BLOCK || Character.isWhitespace(message[start]))) {
+            start++;
+        }
+        int segmentEnd = start;
+        while (segmentEnd < end && message[segmentEnd] != '\r' && message[segmentEnd] != '\n') {
+            segmentEnd++;
+        }
+        // HL7 delimiters and the MSH-1..12 values we read are plain ASCII
+        return parse(new String(message, start, segmentEnd - start, StandardCharsets.ISO_8859_1));
+    }
+
+    public char getFieldSeparator() {
+        return fieldSeparator;
+    }
+
+    public char getComponentSeparator() {
+        return fields[2].charAt(0);
+    }
+
+    public String getEncodingCharacters() {
+        return fields[2];
+    }
+
+    /**
+     * Returns the raw value of MSH-n, or an empty string when the field is not
+     * present. Only MSH-1 to MSH-12 are available.
+     */
+    public String getField(int number) {
+        if (number < 1 || number > LAST_FIELD) {
+            throw new IllegalArgumentException("Only MSH-1 to MSH-" + LAST_FIELD + " are available");
+        }
+        String value = fields[number];
+        return value == null ? "" : value;
+    }
+
+    /**
+     * Returns component n (starting at 1) of MSH-field, or an empty string.
+     */
+    public String getComponent(int field, int component) {
+        String value = getField(field);
+        char separator = getComponentSeparator();
+        int start = 0;
+        for (int i = 1; i < component; i++) {
+            start = value.indexOf(separator, start);
+            if (start < 0) {
+                return "";
+            }
+            start++;
+        }
+        int end = value.indexOf(separator, start);
+        return end < 0 ? value.substring(start) : value.substring(start, end);
+    }
+
+    public String getSendingApplication() {
+        return getComponent(3, 1);
+    }
+
+    public String getSendingFacility() {
+        return getComponent(4, 1);
+    }
+
+    public String getReceivingApplication() {
+        return getComponent(5, 1);
+    }
+
+    public String getReceivingFacility() {
+        return getComponent(6, 1);
+    }
+
+    /** MSH-9.1, for example ADT or ORU. */
+    public String getMessageType() {
+        return getComponent(9, 1);
+    }
+
+    /** MSH-9.2, for example A04 or R01. */
+    public String getTriggerEvent() {
+        return getComponent(9, 2);
+    }
+
+    /** MSH-10, the message control ID. */
+    public String getControlId() {
+        return getField(10);
+    }
+
+    /** MSH-11.1, the processing ID (P, T or D). */
+    public String getProcessingId() {
+        return getComponent(11, 1);
+    }
+
+    /** MSH-12.1, for example 2.4. */
+    public String getVersionId() {
+        return getComponent(12, 1);
+    }
+
+    @Override
+    public String toString() {
+        return "MSH[" + getMessageType() + "^" + getTriggerEvent() + ", " + getControlId() + ", "
+                + getVersionId() + "]";
+    }
+}
@@ -0,0 +1,227 @@
+package sample.camel.hl7;
+
+import java.util.Arrays;
+
+import ca.uhn.hl7v2.HL7Exception;
+
+/**
+ * A read only view of the raw text of an HL7 v2 message that returns single
+ * values (see Hl7FieldPath) without the HAPI parser.
+ * <p/>
+ * The message is scanned once to find where each segment starts and ends.
+ * Reading a value then only walks the separators of its segment and allocates
+ * nothing but the returned String. Segments may end with \r, \n or \r\n and
+ * the separators declared in MSH-1 and MSH-2 are honoured.
+ * <p/>
+ * Values are returned unescaped (\F\, \S\, \R\, \T\ and \E\). Empty values and
+ * the HL7 null value "" are returned as null.
+ * <p/>
+ * Instances are not thread safe, create one per message.
+ */
+public final class RawHl7Message {
+
+    private static final char START_BLOCK = 0x0b;
+    private static final String HL7_NULL = "\"\"";
+
+    private final String raw;
+    private final char fieldSeparator;
+    private final char componentSeparator;
+    private final char repetitionSeparator;
+    private final char escapeCharacter;
+    private final char subcomponentSeparator;
+
+    private int count;
+    private String[] names = new String[16];
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+
+    public RawHl7Message(String raw) throws HL7Exception {
+        this.raw = raw;
+        int start = 0;
+        while (start < raw.length() && (raw.charAt(start) == START_BLOCK || Character.isWhitespace(raw.charAt(start)))) {
+            start++;
+        }
+        if (!raw.startsWith("MSH", start) || raw.length() - start < 8) {
+            throw new HL7Exception("The message does not start with an MSH segment");
+        }
+        fieldSeparator = raw.charAt(start + 3);
+        componentSeparator = raw.charAt(start + 4);
+        repetitionSeparator = raw.charAt(start + 5);
+        escapeCharacter = raw.charAt(start + 6);
+        subcomponentSeparator = raw.charAt(start + 7) == fieldSeparator ? '&' : raw.charAt(start + 7);
+        index(start);
+    }
+
+    private void index(int from) {
+        int length = raw.length();
+        int start = from;
+        while (start < length) {
+            int end = start;
+            while (end < length && raw.charAt(end) != '\r' && raw.charAt(end) != '\n') {
+                end++;
+            }
+            if (end - start >= 3) {
+                if (count == names.length) {
+                    names = Arrays.copyOf(names, count * 2);
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                names[count] = raw.substring(start, start + 3);
+                starts[count] = start;
+                ends[count] = end;
+                count++;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Returns the number of segments with the given name.
+     */
+    public int count(String segment) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (names[i].equals(segment)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns the value at the given path in the first segment with its name,
+     * or null when it is empty or not present.
+     */
+    public String get(Hl7FieldPath path) {
+        return get(path, 1);
+    }
+
+    /**
+     * Returns the value at the given path in the occurrence (starting at 1) of
+     * its segment, or null when it is empty or not present.
+     */
+    public String get(Hl7FieldPath path, int occurrence) {
+        int segment = find(path.getSegment(), occurrence);
+        if (segment < 0) {
+            return null;
+        }
+        return getInSegment(segment, path);
+    }
+
+    /**
+     * Returns the number of segments of the message.
+     */
+    public int getSegmentCount() {
+        return count;
+    }
+
+    /**
+     * Returns the name of the segment at the given index (starting at 0), so
+     * segment groups such as OBR followed by its OBX can be walked in order.
+     */
+    public String getSegmentName(int index) {
+        return names[index];
+    }
+
+    /**
+     * Returns the value at the given path in the segment at the given index
+     * (starting at 0), or null when it is empty or not present. The segment
+     * name of the path is not checked.
+     */
+    public String getInSegment(int segment, Hl7FieldPath path) {
+        int start = starts[segment];
+        int end = ends[segment];
+        boolean msh = "MSH".equals(path.getSegment());
+        if (msh && path.getField() == 1) {
+            return String.valueOf(fieldSeparator);
+        }
+        if (msh && path.getField() == 2) {
+            return raw.substring(start + 4, next(start + 4, end, fieldSeparator));
+        }
+
+        if (end <= start + 4) {
+            return null;
+        }
+
+        // MSH-1 is the separator itself, so MSH fields are one position before
+        int field = msh ? path.getField() - 1 : path.getField();
+        int from = skip(start + 4, end, fieldSeparator, field - 1);
+        int to = next(from, end, fieldSeparator);
+        from = skip(from, to, repetitionSeparator, path.getRepetition() - 1);
+        to = next(from, to, repetitionSeparator);
+        from = skip(from, to, componentSeparator, path.getComponent() - 1);
+        to = next(from, to, componentSeparator);
+        from = skip(from, to, subcomponentSeparator, path.getSubcomponent() - 1);
+        to = next(from, to, subcomponentSeparator);
+        if (from >= to) {
+            return null;
+        }
+        String value = raw.substring(from, to);
+        if (HL7_NULL.equals(value)) {
+            return null;
+        }
+        return value.indexOf(escapeCharacter) < 0 ? value : unescape(value);
+    }
+
+    private int find(String segment, int occurrence) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (names[i].equals(segment) && ++n == occurrence) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Returns the position after the n-th separator found from position from,
+    // or limit when there are not so many separators
+    private int skip(int from, int limit, char separator, int n) {
+        int i = from;
+        for (int found = 0; found < n; found++) {
+            while (i < limit && raw.charAt(i) != separator) {
+                i++;
+            }
+            if (i >= limit) {
+                return limit;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private int next(int from, int limit, char separator) {
+        int i = from;
+        while (i < limit && raw.charAt(i) != separator) {
+            i++;
+        }
+        return i;
+    }
+
+    private String unescape(String value) {
+        StringBuilder out = new StringBuilder(value.length());
+        int i = 0;
+        while (i < value.length()) {
+            char c = value.charAt(i);
+            int close = c == escapeCharacter ? value.indexOf(escapeCharacter, i + 1) : -1;
+            if (close == i + 2) {
+                char code = value.charAt(i + 1);
+                char replacement = switch (code) {
+                case 'F' -> fieldSeparator;
+                case 'S' -> componentSeparator;
+                case 'R' -> repetitionSeparator;
+                case 'T' -> subcomponentSeparator;
+                case 'E' -> escapeCharacter;
+                default -> 0;
+                };
+                if (replacement != 0) {
+                    out.append(replacement);
+                    i = close + 1;
+                    continue;
+                }
+            }
+            out.append(c);
+            i++;
+        }
+        return out.toString();
+    }
+}
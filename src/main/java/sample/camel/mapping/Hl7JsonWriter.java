@@ -0,0 +1,209 @@
+package sample.camel.mapping;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import sample.camel.fhir.FhirElementPath;
+import sample.camel.fhir.FhirJsonPayload;
+
+/**
+ * Writes the FHIR JSON of a mapping straight from the HL7 values, without
+ * building the HAPI resource first.
+ * <p/>
+ * The FHIR paths of the mapping rules are arranged once in a tree ordered the
+ * way the HAPI serializer orders the elements (the order of the child
+ * definitions), so the output is byte for byte what
+ * FhirContext.newJsonParser().encodeResourceToString writes for the resource
+ * Hl7Mapping.map builds: same member order, arrays for repeating elements,
+ * numbers and booleans unquoted and empty elements left out. The golden files
+ * of Hl7JsonWriterGoldenTest hold both outputs for every mapped message type.
+ * <p/>
+ * The JSON is generated with a Jackson streaming generator into a per-thread
+ * buffer reused from message to message, only the final byte array is
+ * allocated.
+ * <p/>
+ * Instances are immutable and thread safe.
+ */
+final class Hl7JsonWriter {
+
+    private static final JsonFactory JSON = new JsonFactory();
+    // Buffers bigger than this are not kept between messages
+    private static final int MAX_RETAINED_BUFFER = 256 * 1024;
+    private static final ThreadLocal<ByteArrayOutputStream> BUFFER =
+            ThreadLocal.withInitial(() -> new ByteArrayOutputStream(4096));
+
+    // An element of the resource, with the rules that set it (a leaf) or its
+    // child elements (a composite)
+    private static final class Node {
+        private final String name;
+        private final int order;
+        private final boolean repeating;
+        private final String type;
+        private final List<Integer> rules = new ArrayList<>();
+        private final List<Node> children = new ArrayList<>();
+
+        private Node(String name, int order, boolean repeating, String type) {
+            this.name = name;
+            this.order = order;
+            this.repeating = repeating;
+            this.type = type;
+        }
+
+        private Node child(String childName, int childOrder, boolean childRepeating, String childType) {
+            for (Node child : children) {
+                if (child.name.equals(childName)) {
+                    return child;
+                }
+            }
+            Node child = new Node(childName, childOrder, childRepeating, childType);
+            children.add(child);
+            children.sort(Comparator.comparingInt(n -> n.order));
+            return child;
+        }
+    }
+
+    private final String resourceType;
+    private final Node root = new Node(null, 0, false, null);
+    private final List<Integer> idRules = new ArrayList<>();
+
+    Hl7JsonWriter(String resourceType, List<Hl7Mapping.FieldRule> rules) {
+        this.resourceType = resourceType;
+        for (int i = 0; i < rules.size(); i++) {
+            FhirElementPath path = rules.get(i).to();
+            if (path.isId()) {
+                idRules.add(i);
+                continue;
+            }
+            Node node = root;
+            for (int depth = 0; depth < path.depth(); depth++) {
+                boolean leaf = depth == path.depth() - 1;
+                node = node.child(path.name(depth), path.order(depth), path.repeating(depth),
+                        leaf ? path.getTypeName() : null);
+            }
+            node.rules.add(i);
+        }
+    }
+
+    /**
+     * Writes the resource, values holds the converted value of every rule, null
+     * when the rule sets nothing.
+     */
+    FhirJsonPayload write(String[] values) {
+        ByteArrayOutputStream out = BUFFER.get();
+        out.reset();
+        try (JsonGenerator json = JSON.createGenerator(out)) {
+            json.writeStartObject();
+            json.writeStringField("resourceType", resourceType);
+            json.flush();
+            int idStart = out.size();
+            String id = last(idRules, values);
+            if (id != null) {
+                json.writeStringField("id", id);
+                json.flush();
+            }
+            int idEnd = out.size();
+            writeChildren(json, root, values);
+            json.writeEndObject();
+            json.flush();
+            byte[] bytes = out.toByteArray();
+            if (out.size() > MAX_RETAINED_BUFFER) {
+                BUFFER.remove();
+            }
+            return new FhirJsonPayload(resourceType, id, bytes, idStart, idEnd);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeChildren(JsonGenerator json, Node node, String[] values) throws IOException {
+        for (Node child : node.children) {
+            if (child.type != null) {
+                writeLeaf(json, child, values);
+            } else if (hasValue(child, values)) {
+                json.writeFieldName(child.name);
+                if (child.repeating) {
+                    json.writeStartArray();
+                }
+                json.writeStartObject();
+                writeChildren(json, child, values);
+                json.writeEndObject();
+                if (child.repeating) {
+                    json.writeEndArray();
+                }
+            }
+        }
+    }
+
+    // A repeating primitive gets every value, a single one the last value, as
+    // Hl7Mapping.map does with addValue and setValue
+    private void writeLeaf(JsonGenerator json, Node leaf, String[] values) throws IOException {
+        if (leaf.repeating) {
+            boolean started = false;
+            for (int rule : leaf.rules) {
+                if (values[rule] != null) {
+                    if (!started) {
+                        json.writeArrayFieldStart(leaf.name);
+                        started = true;
+                    }
+                    writeValue(json, leaf.type, values[rule]);
+                }
+            }
+            if (started) {
+                json.writeEndArray();
+            }
+        } else {
+            String value = last(leaf.rules, values);
+            if (value != null) {
+                json.writeFieldName(leaf.name);
+                writeValue(json, leaf.type, value);
+            }
+        }
+    }
+
+    private void writeValue(JsonGenerator json, String type, String value) throws IOException {
+        switch (type) {
+        case "boolean":
+            json.writeBoolean(Boolean.parseBoolean(value));
+            break;
+        case "integer":
+        case "positiveInt":
+        case "unsignedInt":
+        case "decimal":
+            json.writeNumber(value);
+            break;
+        default:
+            json.writeString(value);
+        }
+    }
+
+    private boolean hasValue(Node node, String[] values) {
+        for (int rule : node.rules) {
+            if (values[rule] != null) {
+                return true;
+            }
+        }
+        for (Node child : node.children) {
+            if (hasValue(child, values)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String last(List<Integer> rules, String[] values) {
+        String value = null;
+        for (int rule : rules) {
+            if (values[rule] != null) {
+                value = values[rule];
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,151 @@
+package sample.camel.mapping;
+
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import sample.camel.fhir.FhirElementPath;
+import sample.camel.fhir.FhirJsonPayload;
+import sample.camel.hl7.Hl7FieldPath;
+import sample.camel.hl7.Hl7Timestamps;
+import sample.camel.hl7.RawHl7Message;
+
+/**
+ * A compiled HL7 v2 to FHIR mapping, loaded from a YAML file by
+ * Hl7MappingRegistry.
+ * <p/>
+ * Every field rule reads one value from the raw message (Hl7FieldPath) and
+ * sets it on one element of the resource (FhirElementPath). Both paths are
+ * resolved when the mapping is loaded, so mapping a message is a loop over the
+ * rules without parsing the message into HAPI structures, building getter
+ * chains or looking names up.
+ * <p/>
+ * Values are converted according to the FHIR type of the element: HL7
+ * timestamps become FHIR dates or dateTimes keeping their precision (see
+ * Hl7Timestamps), and a rule may translate codes with a value table (for
+ * example M to male), where * is the value used for any other code.
+ * <p/>
+ * The same values can be written straight to FHIR JSON with writeJson, see
+ * Hl7JsonWriter.
+ * <p/>
+ * Instances are immutable and thread safe.
+ */
+public final class Hl7Mapping {
+
+    /** One rule of the mapping, from an HL7 value to a FHIR element. */
+    public record FieldRule(Hl7FieldPath from, FhirElementPath to, Map<String, String> values) {
+    }
+
+    private final String name;
+    private final List<String> messageTypes;
+    private final RuntimeResourceDefinition resource;
+    private final List<FieldRule> rules;
+    private final ZoneId zone;
+    private final Hl7JsonWriter jsonWriter;
+
+    Hl7Mapping(String name, List<String> messageTypes, RuntimeResourceDefinition resource, List<FieldRule> rules,
+            ZoneId zone) {
+        this.name = name;
+        this.messageTypes = List.copyOf(messageTypes);
+        this.resource = resource;
+        this.rules = List.copyOf(rules);
+        this.zone = zone;
+        this.jsonWriter = new Hl7JsonWriter(resource.getName(), this.rules);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** The message types handled, as type^trigger, for example ADT^A04. */
+    public List<String> getMessageTypes() {
+        return messageTypes;
+    }
+
+    public String getResourceType() {
+        return resource.getName();
+    }
+
+    public List<FieldRule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Builds the resource from the message. Empty HL7 values leave the element
+     * unset.
+     */
+    public IBaseResource map(RawHl7Message message) {
+        String[] values = values(message);
+        IBaseResource target = resource.newInstance();
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                continue;
+            }
+            FieldRule rule = rules.get(i);
+            try {
+                rule.to().set(target, values[i]);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Mapping " + name + ": cannot set " + rule.to() + " from "
+                        + rule.from() + " value " + values[i] + ": " + e.getMessage(), e);
+            }
+        }
+        return target;
+    }
+
+    /**
+     * Writes the JSON of the resource map would build, without building it.
+     */
+    public FhirJsonPayload writeJson(RawHl7Message message) {
+        return jsonWriter.write(values(message));
+    }
+
+    // The translated and converted value of every rule, null when it sets nothing
+    private String[] values(RawHl7Message message) {
+        String[] values = new String[rules.size()];
+        for (int i = 0; i < values.length; i++) {
+            FieldRule rule = rules.get(i);
+            String value = message.get(rule.from());
+            if (rule.values() != null) {
+                value = translate(rule.values(), value);
+            }
+            if (value == null) {
+                continue;
+            }
+            try {
+                values[i] = convert(rule.to().getTypeName(), value);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Mapping " + name + ": cannot convert " + rule.from() + " value "
+                        + value + " to " + rule.to().getTypeName() + ": " + e.getMessage(), e);
+            }
+        }
+        return values;
+    }
+
+    private String translate(Map<String, String> values, String value) {
+        if (value != null) {
+            String translated = values.get(value);
+            if (translated == null) {
+                translated = values.get(value.toUpperCase());
+            }
+            if (translated != null) {
+                return translated;
+            }
+        }
+        return values.get("*");
+    }
+
+    private String convert(String type, String value) {
+        switch (type) {
+        case "date":
+            return Hl7Timestamps.toFhirDate(value);
+        case "dateTime":
+        case "instant":
+            return Hl7Timestamps.toFhirDateTime(value, zone);
+        default:
+            return value;
+        }
+    }
+}
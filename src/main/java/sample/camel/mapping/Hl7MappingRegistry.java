@@ -0,0 +1,129 @@
+package sample.camel.mapping;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.stereotype.Component;
+import org.yaml.snakeyaml.LoaderOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import sample.camel.fhir.FhirElementPath;
+import sample.camel.hl7.Hl7FieldPath;
+
+/**
+ * Loads and compiles the declarative HL7 v2 to FHIR mappings.
+ * <p/>
+ * The mappings are YAML files found by the property hl7.mappings, by default
+ * classpath:mappings/*.yaml. A mapping names the message types it handles, the
+ * FHIR resource it builds and one rule per value:
+ *
+ * <pre>
+ * name: adt-patient
+ * messageTypes: [ "ADT^A04", "ADT^A08" ]
+ * resource: Patient
+ * fields:
+ *   - from: PID-5.1
+ *     to: name.family
+ *   - from: PID-8
+ *     to: gender
+ *     values: { M: male, F: female, "*": unknown }
+ * </pre>
+ *
+ * Every file is compiled when the application starts (see Hl7Mapping), so a
+ * wrong HL7 or FHIR path stops the startup instead of failing on the first
+ * message. Supporting a new message type only needs a new file.
+ */
+@Component("hl7Mappings")
+public class Hl7MappingRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Hl7MappingRegistry.class);
+
+    private final Map<String, Hl7Mapping> byMessageType = new HashMap<>();
+
+    public Hl7MappingRegistry(FhirContext fhirContext,
+            @Value("${hl7.mappings:classpath:mappings/*.yaml}") String locations,
+            @Value("${hl7.mappings.time-zone:}") String timeZone) throws IOException {
+        ZoneId zone = timeZone.isBlank() ? ZoneId.systemDefault() : ZoneId.of(timeZone.trim());
+        PathMatchingResourcePatternResolver resolver = new PathMatchingResourcePatternResolver();
+        for (String location : locations.split(",")) {
+            for (Resource file : resolver.getResources(location.trim())) {
+                Hl7Mapping mapping = load(fhirContext, file, zone);
+                for (String messageType : mapping.getMessageTypes()) {
+                    Hl7Mapping previous = byMessageType.putIfAbsent(messageType, mapping);
+                    if (previous != null) {
+                        throw new IllegalStateException("Message type " + messageType + " is mapped by "
+                                + previous.getName() + " and " + mapping.getName());
+                    }
+                }
+                LOG.info("Loaded HL7 mapping {} from {}: {} to {}", mapping.getName(), file.getFilename(),
+                        mapping.getMessageTypes(), mapping.getResourceType());
+            }
+        }
+    }
+
+    /**
+     * Returns the mapping of the message type and trigger event, or null when
+     * there is none.
+     */
+    public Hl7Mapping get(String messageType, String triggerEvent) {
+        return byMessageType.get(messageType + "^" + triggerEvent);
+    }
+
+    public boolean supports(String messageType, String triggerEvent) {
+        return get(messageType, triggerEvent) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Hl7Mapping load(FhirContext fhirContext, Resource file, ZoneId zone) throws IOException {
+        Map<String, Object> yaml;
+        try (InputStream in = file.getInputStream()) {
+            yaml = new Yaml(new SafeConstructor(new LoaderOptions())).load(in);
+        }
+        String where = file.getFilename();
+        String name = string(yaml, "name", where);
+        List<String> messageTypes = (List<String>) required(yaml, "messageTypes", where);
+        RuntimeResourceDefinition resource = fhirContext.getResourceDefinition(string(yaml, "resource", where));
+
+        List<Hl7Mapping.FieldRule> rules = new ArrayList<>();
+        for (Map<String, Object> field : (List<Map<String, Object>>) required(yaml, "fields", where)) {
+            Map<String, String> values = null;
+            if (field.get("values") != null) {
+                values = new LinkedHashMap<>();
+                for (Map.Entry<?, ?> e : ((Map<?, ?>) field.get("values")).entrySet()) {
+                    values.put(String.valueOf(e.getKey()), String.valueOf(e.getValue()));
+                }
+            }
+            rules.add(new Hl7Mapping.FieldRule(
+                    Hl7FieldPath.compile(string(field, "from", where)),
+                    FhirElementPath.compile(resource, string(field, "to", where)),
+                    values));
+        }
+        return new Hl7Mapping(name, messageTypes, resource, rules, zone);
+    }
+
+    private static Object required(Map<String, Object> yaml, String key, String where) {
+        Object value = yaml == null ? null : yaml.get(key);
+        if (value == null) {
+            throw new IllegalArgumentException("HL7 mapping " + where + " has no " + key);
+        }
+        return value;
+    }
+
+    private static String string(Map<String, Object> yaml, String key, String where) {
+        return String.valueOf(required(yaml, key, where));
+    }
+}
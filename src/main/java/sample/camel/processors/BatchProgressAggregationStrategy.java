@@ -0,0 +1,108 @@
+package sample.camel.processors;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.AggregationStrategy;
+import org.apache.camel.Exchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Aggregation strategy used when splitting a batch of HL7 messages.
+ * <p/>
+ * It does not keep the split messages, it only counts their results using the
+ * HTTP response code set by the register and observation pipelines:
+ * 200 is counted as created, 202 as spooled (see FhirSpoolGuard), 400 as rejected and anything else (or no code at
+ * all, for example when the message could not be parsed) as failed. Every
+ * progressInterval messages a progress line is logged, and when the split is
+ * over the body is replaced by the final summary.
+ * <p/>
+ * See https://camel.apache.org/components/4.x/eips/split-eip.html
+ * for more information about the splitter and aggregation strategies.
+ */
+public class BatchProgressAggregationStrategy implements AggregationStrategy {
+
+    public static final String PROGRESS = "HL7BatchProgress";
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchProgressAggregationStrategy.class);
+
+    private final long progressInterval;
+
+    public BatchProgressAggregationStrategy(long progressInterval) {
+        this.progressInterval = progressInterval;
+    }
+
+    @Override
+    public Exchange aggregate(Exchange oldExchange, Exchange newExchange) {
+        Exchange result = oldExchange != null ? oldExchange : newExchange;
+        Progress progress = result.getProperty(PROGRESS, Progress.class);
+        if (progress == null) {
+            progress = new Progress();
+            result.setProperty(PROGRESS, progress);
+        }
+
+        String code = newExchange.getMessage().getHeader(Exchange.HTTP_RESPONSE_CODE, String.class);
+        long total;
+        if (newExchange.getException() == null && "200".equals(code)) {
+            total = progress.record(progress.created);
+        } else if (newExchange.getException() == null && "202".equals(code)) {
+            total = progress.record(progress.spooled);
+        } else if (newExchange.getException() == null && "400".equals(code)) {
+            total = progress.record(progress.rejected);
+        } else {
+            total = progress.record(progress.failed);
+        }
+        if (progressInterval > 0 && total % progressInterval == 0) {
+            LOG.info("Batch {}: {}", result.getMessage().getHeader(Exchange.FILE_NAME), progress);
+        }
+        return result;
+    }
+
+    @Override
+    public void onCompletion(Exchange exchange) {
+        Progress progress = exchange.getProperty(PROGRESS, Progress.class);
+        exchange.getMessage().setBody(progress != null ? progress.toString() : "no messages found");
+    }
+
+    /**
+     * The counters of one batch.
+     */
+    public static final class Progress {
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong created = new AtomicLong();
+        private final AtomicLong spooled = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+
+        private long record(AtomicLong counter) {
+            counter.incrementAndGet();
+            return total.incrementAndGet();
+        }
+
+        public long getTotal() {
+            return total.get();
+        }
+
+        public long getCreated() {
+            return created.get();
+        }
+
+        public long getSpooled() {
+            return spooled.get();
+        }
+
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        @Override
+        public String toString() {
+            return total + " messages, " + created + " created, " + spooled + " spooled, " + rejected + " rejected, "
+                    + failed + " failed";
+        }
+    }
+}
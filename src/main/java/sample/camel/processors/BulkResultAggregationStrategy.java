@@ -0,0 +1,103 @@
+package sample.camel.processors;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.camel.AggregationStrategy;
+import org.apache.camel.Exchange;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Aggregation strategy used when splitting the body of a bulk REST request,
+ * see FromBulkPut2FHIRRoute.
+ * <p/>
+ * It keeps one small result per message, not the message itself: its position
+ * in the request, MSH-10, the message type, the HTTP response code set by the
+ * register and observation pipelines, the FHIR resource ID left by
+ * OutcomeProcessor and the outcome text or the error. When the split is over
+ * the body is replaced by the JSON array of the results, in the order of the
+ * messages in the request, for example:
+ * <pre>
+ * [{"index":0,"controlId":"MSG0001","messageType":"ADT^A04","code":200,
+ *   "resourceId":"Patient/123/_history/1","outcome":"Created Patient with ID: 123 In the FHIR server."}]
+ * </pre>
+ * The counters of the request are kept as a BatchProgressAggregationStrategy.Progress
+ * in the exchange property HL7BatchProgress.
+ * <p/>
+ * The array is not streamed back while the messages are processed: the
+ * results are buffered in the exchange property HL7BulkResults and the JSON is
+ * written once, after the last message. The messages finish out of order and
+ * the HTTP response of the REST consumer is only sent when the route is done,
+ * so a streamed array would not reach the client earlier. Only the small
+ * Result records are buffered, about a hundred bytes per message; callers with
+ * very large bodies should send several requests.
+ */
+public class BulkResultAggregationStrategy implements AggregationStrategy {
+
+    public static final String RESULTS = "HL7BulkResults";
+
+    private static final ObjectMapper JSON = new ObjectMapper()
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    /** The result of one message of the request. */
+    public record Result(int index, String controlId, String messageType, int code, String resourceId,
+            String outcome, String error) {
+    }
+
+    private final BatchProgressAggregationStrategy progress = new BatchProgressAggregationStrategy(0);
+
+    @Override
+    public Exchange aggregate(Exchange oldExchange, Exchange newExchange) {
+        Exchange result = progress.aggregate(oldExchange, newExchange);
+        @SuppressWarnings("unchecked")
+        List<Result> results = result.getProperty(RESULTS, List.class);
+        if (results == null) {
+            results = new ArrayList<>();
+            result.setProperty(RESULTS, results);
+        }
+        results.add(result(newExchange));
+        return result;
+    }
+
+    @Override
+    public void onCompletion(Exchange exchange) {
+        @SuppressWarnings("unchecked")
+        List<Result> results = exchange.getProperty(RESULTS, List.class);
+        if (results == null) {
+            return;
+        }
+        results.sort(Comparator.comparingInt(Result::index));
+        try {
+            exchange.getMessage().setBody(JSON.writeValueAsString(results));
+        } catch (JsonProcessingException e) {
+            exchange.setException(e);
+        }
+    }
+
+    private static Result result(Exchange exchange) {
+        Integer index = exchange.getProperty(Exchange.SPLIT_INDEX, Integer.class);
+        String controlId = exchange.getMessage().getHeader(VerifyHl7Type.CONTROL_ID, String.class);
+        String type = exchange.getMessage().getHeader(VerifyHl7Type.MESSAGE_TYPE, String.class);
+        String event = exchange.getMessage().getHeader(VerifyHl7Type.TRIGGER_EVENT, String.class);
+        String messageType = type == null ? null : event == null ? type : type + "^" + event;
+
+        Exception exception = exchange.getException();
+        if (exception == null) {
+            exception = exchange.getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class);
+        }
+        Integer code = exchange.getMessage().getHeader(Exchange.HTTP_RESPONSE_CODE, Integer.class);
+        if (exception != null) {
+            return new Result(index != null ? index : -1, controlId, messageType,
+                    code != null && code >= 400 ? code : 500, null, null, exception.getMessage());
+        }
+        int status = code != null ? code : 500;
+        String text = exchange.getMessage().getBody(String.class);
+        return new Result(index != null ? index : -1, controlId, messageType, status,
+                exchange.getProperty(OutcomeProcessor.RESOURCE_ID, String.class),
+                status < 400 ? text : null, status < 400 ? null : text);
+    }
+}
@@ -0,0 +1,151 @@
+package sample.camel.processors;
+
+import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * A circuit breaker in front of the FHIR server, used by FhirSpoolGuard and
+ * FhirSpoolDrainer.
+ * <p/>
+ * While it is closed every call goes through. After
+ * fhir.breaker.failure-threshold outage failures in a row (see isOutage) it
+ * opens: no call is made and the resources are spooled straight away. When the
+ * open period is over the breaker is half open and lets one call through: a
+ * success closes it, a failure opens it again for a longer period.
+ * <p/>
+ * The open period is an exponential backoff with jitter: it starts at
+ * fhir.breaker.backoff-initial milliseconds, doubles on every failed attempt up
+ * to fhir.breaker.backoff-max, and a random part of up to half of it is taken
+ * off, so several nodes do not retry at the same moment.
+ * <p/>
+ * The state is published as the gauge fhir.breaker.state (0 closed, 1 half
+ * open, 2 open) and the number of times it opened as fhir.breaker.opened.
+ */
+@Component("fhirCircuitBreaker")
+public class FhirCircuitBreaker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FhirCircuitBreaker.class);
+
+    public enum State {
+        CLOSED, HALF_OPEN, OPEN
+    }
+
+    private final int failureThreshold;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final Counter opened;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private int attempts;
+    private long openUntil;
+    private long trialStarted;
+
+    public FhirCircuitBreaker(MeterRegistry meterRegistry,
+            @Value("${fhir.breaker.failure-threshold:5}") int failureThreshold,
+            @Value("${fhir.breaker.backoff-initial:1000}") long initialBackoff,
+            @Value("${fhir.breaker.backoff-max:60000}") long maxBackoff) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.initialBackoff = Math.max(1, initialBackoff);
+        this.maxBackoff = Math.max(this.initialBackoff, maxBackoff);
+        this.opened = Counter.builder("fhir.breaker.opened")
+                .description("Times the FHIR circuit breaker opened")
+                .register(meterRegistry);
+        Gauge.builder("fhir.breaker.state", this, breaker -> breaker.getState().ordinal())
+                .description("FHIR circuit breaker state, 0 closed, 1 half open, 2 open")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Returns true when a call to the FHIR server may be made now. A true
+     * result must be followed by onSuccess or onFailure.
+     */
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            if (now - openUntil < 0) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            trialStarted = now;
+            return true;
+        default:
+            // one trial at a time, unless the trial never reported back
+            if (now - trialStarted > TimeUnit.MILLISECONDS.toNanos(maxBackoff)) {
+                trialStarted = now;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            LOG.info("FHIR server is available again, circuit breaker closed");
+        }
+        state = State.CLOSED;
+        failures = 0;
+        attempts = 0;
+    }
+
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN || (state == State.CLOSED && ++failures >= failureThreshold)) {
+            attempts++;
+            long backoff = Math.min(maxBackoff, initialBackoff << Math.min(attempts - 1, 30));
+            long delay = backoff - ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            openUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            state = State.OPEN;
+            failures = 0;
+            opened.increment();
+            LOG.warn("FHIR server unavailable, circuit breaker open for {} ms (attempt {})", delay, attempts);
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * Tells whether an exception means the FHIR server could not be reached
+     * or is overloaded, so the resource should be spooled and retried, rather
+     * than rejected for its content: connection and timeout errors, 429 and
+     * 5xx answers, and requests refused by FhirConcurrencyLimiter.
+     */
+    public static boolean isOutage(Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException || cause instanceof FhirClientConnectionException
+                    || cause instanceof org.apache.http.ProtocolException
+                    || cause instanceof RejectedExecutionException) {
+                return true;
+            }
+            if (cause instanceof BaseServerResponseException) {
+                int status = ((BaseServerResponseException) cause).getStatusCode();
+                return status == 0 || status == 429 || status >= 500;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,269 @@
+package sample.camel.processors;
+
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.NamedNode;
+import org.apache.camel.Processor;
+import org.apache.camel.model.ProcessDefinition;
+import org.apache.camel.model.ToDefinition;
+import org.apache.camel.model.ToDynamicDefinition;
+import org.apache.camel.spi.InterceptStrategy;
+import org.apache.camel.support.processor.DelegateAsyncProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * An adaptive limit of the requests in flight to the FHIR server.
+ * <p/>
+ * As an InterceptStrategy (added to the CamelContext by Camel Spring Boot, like
+ * StageMetrics) it wraps every step of the routes that calls the server: the
+ * fhir:// endpoints, FhirJsonSender, FhirConditionalUpdater and
+ * FhirTransactionSender. FhirTransactionBatcher calls execute() around its
+ * transaction requests.
+ * <p/>
+ * A request waits for a free slot up to fhir.limiter.max-wait milliseconds and
+ * then fails with a RejectedExecutionException, which FhirCircuitBreaker treats
+ * as an outage: with fhir.spool.enabled=true the resource is spooled instead
+ * of lost.
+ * <p/>
+ * The limit follows the server (AIMD): it starts at fhir.limiter.initial-limit
+ * and grows by one every limit successful responses while the slots are used.
+ * An outage (connection error, timeout, 429 or 5xx, see
+ * FhirCircuitBreaker.isOutage) or a response slower than
+ * fhir.limiter.latency-tolerance times the usual latency multiplies it by
+ * fhir.limiter.backoff-ratio, at most once per usual latency, so one burst of
+ * slow answers counts once. The usual latency is the moving average of the
+ * last fhir.limiter.window responses. The limit stays between
+ * fhir.limiter.min-limit and fhir.limiter.max-limit, by default the HTTP pool
+ * of the client (fhir.client.max-connections).
+ * <p/>
+ * With several FHIR servers (see FhirShards) there is one limit for all of
+ * them, so a slow shard lowers it for the others too; FhirShards takes a shard
+ * that fails its health checks out of the ring.
+ * <p/>
+ * Metrics: the gauges fhir.limiter.limit and fhir.limiter.in-flight, the timer
+ * fhir.limiter.queue-wait (time waiting for a slot) and the counter
+ * fhir.limiter.rejected.
+ */
+@Component("fhirConcurrencyLimiter")
+public class FhirConcurrencyLimiter implements InterceptStrategy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FhirConcurrencyLimiter.class);
+
+    // The processors that make one request to the FHIR server
+    private static final Set<Class<?>> SENDERS = Set.of(FhirJsonSender.class, FhirConditionalUpdater.class,
+            FhirTransactionSender.class);
+
+    private final boolean enabled;
+    private final double minLimit;
+    private final double maxLimit;
+    private final long maxWait;
+    private final double tolerance;
+    private final double backoffRatio;
+    private final double smoothing;
+    private final Timer queueWait;
+    private final Counter rejected;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    private double usualLatency;
+    private long lastDecrease;
+
+    public FhirConcurrencyLimiter(MeterRegistry meterRegistry,
+            @Value("${fhir.limiter.enabled:false}") boolean enabled,
+            @Value("${fhir.limiter.initial-limit:10}") int initialLimit,
+            @Value("${fhir.limiter.min-limit:1}") int minLimit,
+            @Value("${fhir.limiter.max-limit:${fhir.client.max-connections:20}}") int maxLimit,
+            @Value("${fhir.limiter.max-wait:5000}") long maxWait,
+            @Value("${fhir.limiter.latency-tolerance:2.0}") double tolerance,
+            @Value("${fhir.limiter.backoff-ratio:0.7}") double backoffRatio,
+            @Value("${fhir.limiter.window:500}") int window) {
+        this.enabled = enabled;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.maxWait = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWait));
+        this.tolerance = Math.max(1.0, tolerance);
+        this.backoffRatio = Math.min(0.95, Math.max(0.1, backoffRatio));
+        this.smoothing = 1.0 / Math.max(1, window);
+        this.queueWait = Timer.builder("fhir.limiter.queue-wait")
+                .description("Time waiting for a free slot of the FHIR concurrency limit")
+                .register(meterRegistry);
+        this.rejected = Counter.builder("fhir.limiter.rejected")
+                .description("FHIR requests rejected after waiting fhir.limiter.max-wait")
+                .register(meterRegistry);
+        Gauge.builder("fhir.limiter.limit", this, FhirConcurrencyLimiter::getLimit)
+                .description("Current limit of FHIR requests in flight")
+                .register(meterRegistry);
+        Gauge.builder("fhir.limiter.in-flight", this, FhirConcurrencyLimiter::getInFlight)
+                .description("FHIR requests in flight")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public Processor wrapProcessorInInterceptors(CamelContext context, NamedNode definition, Processor target,
+            Processor nextTarget) throws Exception {
+        if (!enabled || !isFhirRequest(context, definition)) {
+            return target;
+        }
+        return new DelegateAsyncProcessor(target) {
+            @Override
+            public boolean process(Exchange exchange, AsyncCallback callback) {
+                long started;
+                try {
+                    started = acquire();
+                } catch (RejectedExecutionException e) {
+                    exchange.setException(e);
+                    callback.done(true);
+                    return true;
+                }
+                return processor.process(exchange, doneSync -> {
+                    Exception exception = exchange.getException();
+                    release(started, exception != null && FhirCircuitBreaker.isOutage(exception));
+                    callback.done(doneSync);
+                });
+            }
+        };
+    }
+
+    /**
+     * Runs one request to the FHIR server within the limit.
+     */
+    public <T> T execute(Supplier<T> request) {
+        long started = acquire();
+        boolean outage = true;
+        try {
+            T result = request.get();
+            outage = false;
+            return result;
+        } catch (RuntimeException e) {
+            outage = FhirCircuitBreaker.isOutage(e);
+            throw e;
+        } finally {
+            release(started, outage);
+        }
+    }
+
+    /**
+     * Waits for a free slot and returns the time the request starts, to give
+     * back to release.
+     */
+    public long acquire() {
+        long start = System.nanoTime();
+        if (!enabled) {
+            return start;
+        }
+        lock.lock();
+        try {
+            long remaining = maxWait;
+            while (inFlight >= (int) limit) {
+                if (remaining <= 0) {
+                    rejected.increment();
+                    throw new RejectedExecutionException("The FHIR server is at its concurrency limit of "
+                            + (int) limit + ", waited " + TimeUnit.NANOSECONDS.toMillis(maxWait) + " ms");
+                }
+                remaining = available.awaitNanos(remaining);
+            }
+            inFlight++;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for the FHIR concurrency limit", e);
+        } finally {
+            lock.unlock();
+        }
+        long now = System.nanoTime();
+        queueWait.record(now - start, TimeUnit.NANOSECONDS);
+        return now;
+    }
+
+    /**
+     * Gives the slot back and adjusts the limit with the latency of the
+     * request, or with its failure when the server is overloaded or down.
+     */
+    public void release(long started, boolean outage) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.nanoTime();
+        double latency = now - started;
+        lock.lock();
+        try {
+            boolean wasFull = inFlight >= (int) limit;
+            inFlight--;
+            if (outage || (usualLatency > 0 && latency > tolerance * usualLatency)) {
+                // decrease at most once per usual round trip
+                if (now - lastDecrease > usualLatency) {
+                    double previous = limit;
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                    lastDecrease = now;
+                    LOG.debug("FHIR concurrency limit {} -> {} ({})", (int) previous, (int) limit,
+                            outage ? "outage" : "latency " + TimeUnit.NANOSECONDS.toMillis((long) latency) + " ms");
+                }
+            } else if (wasFull || inFlight + 1 >= limit / 2) {
+                // only grow while the current limit is actually used
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+            if (!outage) {
+                usualLatency = usualLatency == 0 ? latency : usualLatency + (latency - usualLatency) * smoothing;
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean isFhirRequest(CamelContext context, NamedNode definition) {
+        if (definition instanceof ToDefinition) {
+            String uri = ((ToDefinition) definition).getUri();
+            return uri != null && uri.startsWith("fhir:");
+        }
+        if (definition instanceof ToDynamicDefinition) {
+            String uri = ((ToDynamicDefinition) definition).getUri();
+            return uri != null && uri.startsWith("fhir:");
+        }
+        if (definition instanceof ProcessDefinition) {
+            ProcessDefinition process = (ProcessDefinition) definition;
+            Object processor = process.getProcessor();
+            if (processor == null && process.getRef() != null) {
+                processor = context.getRegistry().lookupByName(process.getRef());
+            }
+            return processor != null && SENDERS.contains(processor.getClass());
+        }
+        return false;
+    }
+}
@@ -0,0 +1,81 @@
+package sample.camel.processors;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import sample.camel.fhir.FhirJsonPayload;
+import sample.camel.fhir.FhirShards;
+
+/**
+ * A Camel Processor that writes the Patient in the body to the FHIR server as
+ * an update, after PatientChangeDetector.
+ * <p/>
+ * A changed Patient updates the server resource only if it is still at the
+ * version found by PatientChangeDetector (If-Match header). If someone else
+ * changed or deleted it in the meantime (412, 404 or 410) it is sent again as
+ * a conditional update on its identifier, the URL of the property
+ * FhirCondition, as a new Patient is: the server updates the Patient with that
+ * identifier or creates it, so a lost or stale cache entry never makes a
+ * second Patient. The update goes to the server of the patient, see
+ * FhirShards.
+ * <p/>
+ * A FhirJsonPayload body (fhir.json.streaming=true) is handed to
+ * FhirJsonSender, which sends the same PUT with the JSON bytes as they are.
+ * <p/>
+ * The body is replaced with the MethodOutcome, which OutcomeProcessor reads.
+ * See https://hl7.org/fhir/R4/http.html#concurrency for more information.
+ */
+@Component("fhirConditionalUpdater")
+public class FhirConditionalUpdater implements Processor {
+
+    private final FhirShards shards;
+    private final FhirJsonSender jsonSender;
+
+    public FhirConditionalUpdater(FhirShards fhirShards, FhirJsonSender fhirJsonSender) {
+        this.shards = fhirShards;
+        this.jsonSender = fhirJsonSender;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        if (exchange.getIn().getBody() instanceof FhirJsonPayload) {
+            jsonSender.process(exchange);
+            return;
+        }
+        Resource resource = exchange.getIn().getMandatoryBody(Resource.class);
+        String version = exchange.getProperty(PatientChangeDetector.IF_MATCH, String.class);
+        String condition = exchange.getProperty(PatientChangeDetector.CONDITION, String.class);
+        IGenericClient client = shards.assign(exchange).getClient();
+        MethodOutcome outcome;
+        if (version == null) {
+            outcome = conditionalUpdate(client, resource, condition);
+        } else {
+            try {
+                outcome = client.update()
+                        .resource(resource)
+                        .withAdditionalHeader("If-Match", "W/\"" + version + "\"")
+                        .execute();
+            } catch (BaseServerResponseException e) {
+                if (condition == null || !PatientChangeDetector.isStale(e)) {
+                    throw e;
+                }
+                outcome = conditionalUpdate(client, resource, condition);
+            }
+        }
+        exchange.getIn().setBody(outcome);
+    }
+
+    private static MethodOutcome conditionalUpdate(IGenericClient client, Resource resource, String condition) {
+        // the id would have to match the one of the Patient found by the server
+        resource.setIdElement(null);
+        return client.update()
+                .resource(resource)
+                .conditionalByUrl(condition)
+                .execute();
+    }
+}
@@ -0,0 +1,119 @@
+package sample.camel.processors;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.hl7.fhir.r4.model.IdType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import sample.camel.fhir.FhirJsonPayload;
+import sample.camel.fhir.FhirShards;
+
+/**
+ * A Camel Processor that sends the FhirJsonPayload in the body to the FHIR
+ * server as it is, without parsing or serializing it again.
+ * <p/>
+ * When PatientChangeDetector left a version in the property FhirIfMatch, the
+ * server resource is updated (PUT [base]/[type]/[id] with If-Match). A Patient
+ * with the property FhirCondition and no version, or whose If-Match update
+ * found a stale copy (412, 404 or 410), is sent as a conditional update
+ * (PUT [base]/Patient?identifier=...), like FhirConditionalUpdater does for a
+ * HAPI resource. Any other payload is created (POST [base]/[type]). The
+ * request goes to the server of the patient, see FhirShards.
+ * <p/>
+ * The body is replaced with a MethodOutcome built from the Location header of
+ * the answer, so OutcomeProcessor handles both kinds of bodies the same way. A
+ * status other than 2xx is thrown as the matching HAPI exception (for example
+ * PreconditionFailedException for 412), as the HAPI client does.
+ */
+@Component("fhirJsonSender")
+public class FhirJsonSender implements Processor {
+
+    private static final String FHIR_JSON = "application/fhir+json";
+
+    private final FhirShards shards;
+    private final HttpClient client;
+    private final Duration timeout;
+
+    public FhirJsonSender(FhirShards fhirShards,
+            @Value("${fhir.json.timeout:10000}") long timeout) {
+        this.shards = fhirShards;
+        this.timeout = Duration.ofMillis(timeout);
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(this.timeout)
+                .build();
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        FhirJsonPayload payload = exchange.getIn().getMandatoryBody(FhirJsonPayload.class);
+        String version = exchange.getProperty(PatientChangeDetector.IF_MATCH, String.class);
+        String condition = exchange.getProperty(PatientChangeDetector.CONDITION, String.class);
+        String serverBase = shards.assign(exchange).getBaseUrl();
+
+        HttpResponse<String> response;
+        if (version != null && payload.getId() != null) {
+            HttpRequest.Builder request = request()
+                    .uri(URI.create(serverBase + "/" + payload.getResourceType() + "/" + payload.getId()))
+                    .header("If-Match", "W/\"" + version + "\"");
+            response = client.send(request.PUT(body(payload)).build(), HttpResponse.BodyHandlers.ofString());
+            if (condition != null && PatientChangeDetector.isStale(failure(response))) {
+                response = conditionalUpdate(serverBase, payload, condition);
+            }
+        } else if (condition != null) {
+            response = conditionalUpdate(serverBase, payload, condition);
+        } else {
+            HttpRequest.Builder request = request()
+                    .uri(URI.create(serverBase + "/" + payload.getResourceType()));
+            response = client.send(request.POST(body(payload)).build(), HttpResponse.BodyHandlers.ofString());
+        }
+        BaseServerResponseException failure = failure(response);
+        if (failure != null) {
+            throw failure;
+        }
+        MethodOutcome outcome = new MethodOutcome();
+        response.headers().firstValue("Location")
+                .or(() -> response.headers().firstValue("Content-Location"))
+                .ifPresent(location -> outcome.setId(new IdType(location)));
+        outcome.setCreated(response.statusCode() == 201);
+        exchange.getIn().setBody(outcome);
+    }
+
+    private HttpResponse<String> conditionalUpdate(String serverBase, FhirJsonPayload payload, String condition)
+            throws Exception {
+        // the id would have to match the one of the Patient found by the server
+        FhirJsonPayload withoutId = payload.withoutId();
+        HttpRequest.Builder request = request().uri(URI.create(serverBase + "/" + condition));
+        return client.send(request.PUT(body(withoutId)).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpRequest.Builder request() {
+        return HttpRequest.newBuilder()
+                .timeout(timeout)
+                .header("Content-Type", FHIR_JSON + "; charset=UTF-8")
+                .header("Accept", FHIR_JSON)
+                // only the Location header is read
+                .header("Prefer", "return=minimal");
+    }
+
+    private static HttpRequest.BodyPublisher body(FhirJsonPayload payload) {
+        return HttpRequest.BodyPublishers.ofByteArray(payload.getBytes());
+    }
+
+    // A status other than 2xx as the matching HAPI exception, or null
+    private static BaseServerResponseException failure(HttpResponse<String> response) {
+        if (response.statusCode() / 100 == 2) {
+            return null;
+        }
+        return BaseServerResponseException.newInstance(response.statusCode(), response.body());
+    }
+}
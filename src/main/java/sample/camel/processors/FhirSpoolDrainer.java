@@ -0,0 +1,183 @@
+package sample.camel.processors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import sample.camel.fhir.FhirSpool;
+
+/**
+ * A Camel Processor that sends the resources waiting in the FhirSpool to the
+ * FHIR server, called by the timer route fhirspool-drain of FhirUploadRoute.
+ * <p/>
+ * Every call drains the spool until it is empty or FhirCircuitBreaker stops
+ * it. Each round takes up to fhir.spool.drain-round entries from the head of
+ * the journal and groups them by patient (header HL7PatientId, an entry
+ * without one is a group of its own). The entries of a patient are sent one
+ * after the other, in journal order; up to fhir.spool.drain-parallelism
+ * patients are sent at the same time through direct:fhirSend, so the change
+ * detection and, with fhir.batch.enabled=true, the transaction Bundles work as
+ * for live messages and the entries of different patients share a Bundle.
+ * While the breaker is half open a single entry is sent to probe the server.
+ * <p/>
+ * After the first outage failure no new entry is sent. The entries before the
+ * first one not sent or failed with an outage are removed from the journal,
+ * the others stay at the head and the breaker decides when to try again.
+ * Nothing is appended again at the end, so the journal keeps the order of
+ * every patient, and FhirSpoolGuard spools the live messages of a patient
+ * with entries still waiting. An entry of another patient that was sent after
+ * that point is sent again in the next round (the spool delivers at least
+ * once); a Patient is then found unchanged by the change cache. An entry
+ * rejected by the server (for example a 400 or a 412) is logged and dropped,
+ * it would never succeed; they are counted in fhir.spool.rejected.
+ */
+@Component("fhirSpoolDrainer")
+public class FhirSpoolDrainer implements Processor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FhirSpoolDrainer.class);
+
+    /** The result of sending one entry, null when it was not sent. */
+    private record Result(boolean outage, String rejection) {
+    }
+
+    private static final Result SENT = new Result(false, null);
+    private static final Result OUTAGE = new Result(true, null);
+
+    private final CamelContext camelContext;
+    private final FhirSpool spool;
+    private final FhirCircuitBreaker breaker;
+    private final ProducerTemplate template;
+    private final ExecutorService executor;
+    private final int round;
+    private final Counter rejected;
+
+    public FhirSpoolDrainer(CamelContext camelContext, MeterRegistry meterRegistry, FhirSpool fhirSpool,
+            FhirCircuitBreaker fhirCircuitBreaker,
+            @Value("${fhir.spool.drain-parallelism:8}") int parallelism,
+            @Value("${fhir.spool.drain-round:500}") int round) {
+        this.camelContext = camelContext;
+        this.spool = fhirSpool;
+        this.breaker = fhirCircuitBreaker;
+        this.round = Math.max(1, round);
+        this.template = fhirSpool.isEnabled() ? camelContext.createProducerTemplate() : null;
+        this.executor = fhirSpool.isEnabled()
+                ? camelContext.getExecutorServiceManager().newFixedThreadPool(this, "FhirSpoolDrain",
+                        Math.max(1, parallelism))
+                : null;
+        this.rejected = Counter.builder("fhir.spool.rejected")
+                .description("Spooled resources rejected by the FHIR server and dropped")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void process(Exchange timer) throws Exception {
+        boolean drained = false;
+        while (true) {
+            List<FhirSpool.Entry> entries = spool.peek(round);
+            if (entries.isEmpty()) {
+                if (drained) {
+                    LOG.info("FHIR spool is empty");
+                }
+                return;
+            }
+            boolean probe = !breaker.isClosed();
+            if (!breaker.tryAcquire()) {
+                return;
+            }
+            if (probe) {
+                entries = entries.subList(0, 1);
+            }
+
+            // the positions of the entries of each patient, in journal order
+            Map<String, List<Integer>> patients = new LinkedHashMap<>();
+            for (int i = 0; i < entries.size(); i++) {
+                String patientId = FhirSpool.patientId(entries.get(i));
+                patients.computeIfAbsent(patientId != null ? patientId : "#" + i, k -> new ArrayList<>()).add(i);
+            }
+            Result[] results = new Result[entries.size()];
+            AtomicBoolean outage = new AtomicBoolean();
+            List<Future<?>> sent = new ArrayList<>(patients.size());
+            for (List<Integer> positions : patients.values()) {
+                sent.add(executor.submit(() -> {
+                    for (int i : positions) {
+                        if (outage.get()) {
+                            return;
+                        }
+                        results[i] = send(entries.get(i));
+                        if (results[i].outage()) {
+                            outage.set(true);
+                            return;
+                        }
+                    }
+                }));
+            }
+            for (Future<?> patient : sent) {
+                patient.get();
+            }
+
+            // the entries handled, up to the first one not sent or failed
+            int done = 0;
+            while (done < results.length && results[done] != null && !results[done].outage()) {
+                if (results[done].rejection() != null) {
+                    FhirSpool.Entry entry = entries.get(done);
+                    rejected.increment();
+                    LOG.error("Dropping spooled {} {} rejected by the FHIR server: {}",
+                            entry.payload().getResourceType(), entry.headers().get(VerifyHl7Type.CONTROL_ID),
+                            results[done].rejection());
+                }
+                done++;
+            }
+            if (done > 0) {
+                spool.ack(done);
+                drained = true;
+            }
+            if (outage.get()) {
+                // the server is down again, keep the rest where it is
+                breaker.onFailure();
+                return;
+            }
+            breaker.onSuccess();
+        }
+    }
+
+    private Result send(FhirSpool.Entry entry) {
+        Exchange result = template.send("direct:fhirSend", exchange -> {
+            exchange.getIn().setHeaders(new HashMap<>(entry.headers()));
+            exchange.getIn().setBody(entry.payload());
+        });
+        Exception exception = result.getException();
+        String code = result.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE, String.class);
+        if (exception != null && FhirCircuitBreaker.isOutage(exception)) {
+            return OUTAGE;
+        }
+        if (exception != null || code == null || !code.startsWith("2")) {
+            return new Result(false, String.valueOf(
+                    exception != null ? exception.getMessage() : result.getIn().getBody(String.class)));
+        }
+        return SENT;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            camelContext.getExecutorServiceManager().shutdownGraceful(executor);
+        }
+    }
+}
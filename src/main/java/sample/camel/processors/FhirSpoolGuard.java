@@ -0,0 +1,106 @@
+package sample.camel.processors;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import sample.camel.fhir.FhirJsonPayload;
+import sample.camel.fhir.FhirShards;
+import sample.camel.fhir.FhirSpool;
+
+/**
+ * A Camel Processor that sends the resource to direct:fhirSend and keeps it in
+ * the FhirSpool when the FHIR server is unavailable, see FhirUploadRoute
+ * (fhir.spool.enabled=true).
+ * <p/>
+ * When FhirCircuitBreaker is open the resource is spooled without calling the
+ * server. It is spooled too while older resources of the same patient (header
+ * HL7PatientId, any resource when there is none) are still in the spool, so a
+ * live update never overtakes a spooled one that FhirSpoolDrainer would send
+ * after it. Otherwise it is sent, and an outage failure (connection error,
+ * timeout, 429 or 5xx, see FhirCircuitBreaker.isOutage) is counted by the
+ * breaker and the resource spooled instead of failing the message. Any other
+ * failure, for example a resource rejected by the server, is left to the
+ * calling route as before.
+ * <p/>
+ * A spooled message is answered with the HTTP response code 202: it is safely
+ * stored and FhirSpoolDrainer sends it when the server is back. The resource
+ * is kept as it was before the upload was attempted, with the HL7 headers of
+ * the message. Its id is taken before the upload too: PatientChangeDetector
+ * replaces it with the server ID or removes it, and the drainer needs the
+ * patient identifier to find the Patient in the change cache again, or a
+ * changed Patient would be created a second time instead of updated.
+ */
+@Component("fhirSpoolGuard")
+public class FhirSpoolGuard implements Processor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FhirSpoolGuard.class);
+
+    private final FhirSpool spool;
+    private final FhirCircuitBreaker breaker;
+    private final ProducerTemplate template;
+
+    public FhirSpoolGuard(CamelContext camelContext, FhirSpool fhirSpool, FhirCircuitBreaker fhirCircuitBreaker) {
+        this.spool = fhirSpool;
+        this.breaker = fhirCircuitBreaker;
+        this.template = fhirSpool.isEnabled() ? camelContext.createProducerTemplate() : null;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        Object resource = exchange.getIn().getBody();
+        String id = resource instanceof IBaseResource ? ((IBaseResource) resource).getIdElement().getIdPart() : null;
+        if (spool.hasPending(exchange.getIn().getHeader(FhirShards.SHARD_KEY, String.class))) {
+            spool(exchange, resource, id, "older messages of the patient are spooled");
+            return;
+        }
+        if (!breaker.tryAcquire()) {
+            spool(exchange, resource, id, "circuit breaker open");
+            return;
+        }
+
+        template.send("direct:fhirSend", exchange);
+        Exception exception = exchange.getException();
+        if (exception != null && FhirCircuitBreaker.isOutage(exception)) {
+            breaker.onFailure();
+            exchange.setException(null);
+            exchange.removeProperty(Exchange.EXCEPTION_CAUGHT);
+            spool(exchange, resource, id, exception.getMessage());
+        } else {
+            breaker.onSuccess();
+        }
+    }
+
+    // A FhirJsonPayload is immutable, the detector replaces it instead of
+    // changing its id; a HAPI resource is serialized with the id it had.
+    private void spool(Exchange exchange, Object resource, String id, String reason) throws Exception {
+        FhirJsonPayload payload = resource instanceof FhirJsonPayload
+                ? (FhirJsonPayload) resource
+                : spool.toPayload((IBaseResource) resource, id);
+        spool.append(new FhirSpool.Entry(hl7Headers(exchange), payload));
+        LOG.warn("Spooled {} {} ({}), {} waiting", payload.getResourceType(),
+                exchange.getIn().getHeader(VerifyHl7Type.CONTROL_ID), reason, spool.getDepth());
+        exchange.getIn().setBody(payload.getResourceType()
+                + " spooled, it will be sent when the FHIR server is available.");
+        exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "202");
+    }
+
+    // The headers set by VerifyHl7Type, needed again when the resource is sent
+    private static Map<String, String> hl7Headers(Exchange exchange) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        exchange.getIn().getHeaders().forEach((name, value) -> {
+            if (name.startsWith("HL7") && value instanceof String) {
+                headers.put(name, (String) value);
+            }
+        });
+        return headers;
+    }
+}
@@ -0,0 +1,297 @@
+package sample.camel.processors;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.support.AsyncProcessorSupport;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import jakarta.annotation.PreDestroy;
+import sample.camel.fhir.FhirJsonPayload;
+import sample.camel.fhir.FhirShards;
+
+/**
+ * A Camel AsyncProcessor that groups FHIR resources into transaction Bundles.
+ * <p/>
+ * Every exchange that reaches this processor carries one resource, for example
+ * the Patient built by Hl7Register2FhirPatientProcessor. The exchange is parked
+ * until the pending Bundle holds fhir.batch.size entries or its first entry is
+ * fhir.batch.timeout milliseconds old. The Bundle is then posted to the FHIR
+ * server in a single round trip and every parked exchange is resumed with its
+ * own Bundle.BundleEntryResponseComponent as body, so OutcomeProcessor can
+ * still report success or failure per source file or REST caller.
+ * <p/>
+ * With several FHIR servers (see FhirShards) a batch is split by the server of
+ * the patient of each entry, one Bundle per server, sent one after the other.
+ * <p/>
+ * A FhirJsonPayload body (fhir.json.streaming=true) is parsed back into a
+ * resource, the Bundle is serialized as a whole.
+ * <p/>
+ * Resources flagged as changed by PatientChangeDetector are sent as PUT entries
+ * with If-Match, the other Patients it saw as conditional PUT entries on their
+ * identifier (property FhirCondition), the rest as POST entries. A changed
+ * Patient whose If-Match finds a stale copy (412, 404 or 410) is sent again as
+ * a conditional PUT, so a stale cache entry does not create a second Patient.
+ * <p/>
+ * A transaction is all or nothing. When the server rejects a Bundle with more
+ * than one entry for its content (a 4xx answer other than 429), the entries
+ * are sent again one by one so a single bad resource does not fail the rest of
+ * the batch. An outage (see FhirCircuitBreaker.isOutage) fails every entry at
+ * once, for the breaker and the spool to handle, rather than multiplying the
+ * requests to a server that is down.
+ * <p/>
+ * The sender threads are only started with the first resource, so the bean
+ * costs nothing with fhir.batch.enabled=false.
+ * <p/>
+ * Because the exchange is completed asynchronously, the consumer thread is free
+ * to pick the next file or request while the Bundle is filling up. The request
+ * itself waits for a slot of FhirConcurrencyLimiter on the sender thread.
+ * See https://camel.apache.org/manual/asynchronous-routing-engine.html
+ * and https://hl7.org/fhir/R4/http.html#transaction for more information.
+ */
+@Component("fhirTransactionBatcher")
+public class FhirTransactionBatcher extends AsyncProcessorSupport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FhirTransactionBatcher.class);
+
+    private final FhirContext fhirContext;
+    private final FhirShards shards;
+    private final FhirConcurrencyLimiter limiter;
+    private final int batchSize;
+    private final long batchTimeout;
+    private final int senders;
+    private final CamelContext camelContext;
+    private ScheduledExecutorService executor;
+
+    private final Object lock = new Object();
+    private List<PendingEntry> pending;
+    private ScheduledFuture<?> timer;
+
+    public FhirTransactionBatcher(CamelContext camelContext, FhirContext fhirContext, FhirShards fhirShards,
+            FhirConcurrencyLimiter fhirConcurrencyLimiter,
+            @Value("${fhir.batch.size:50}") int batchSize,
+            @Value("${fhir.batch.timeout:500}") long batchTimeout,
+            @Value("${fhir.batch.senders:2}") int senders) {
+        this.fhirContext = fhirContext;
+        this.shards = fhirShards;
+        this.limiter = fhirConcurrencyLimiter;
+        this.batchSize = Math.max(1, batchSize);
+        this.batchTimeout = batchTimeout;
+        this.senders = Math.max(1, senders);
+        this.camelContext = camelContext;
+        this.pending = new ArrayList<>(this.batchSize);
+    }
+
+    @Override
+    public boolean process(Exchange exchange, AsyncCallback callback) {
+        Resource resource;
+        try {
+            resource = toResource(exchange);
+        } catch (Exception e) {
+            exchange.setException(e);
+            callback.done(true);
+            return true;
+        }
+
+        List<PendingEntry> full = null;
+        ScheduledExecutorService executor;
+        synchronized (lock) {
+            executor = executor();
+            pending.add(new PendingEntry(exchange, callback, resource));
+            if (pending.size() >= batchSize) {
+                full = drain();
+            } else if (timer == null) {
+                timer = executor.schedule(this::flush, batchTimeout, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full != null) {
+            List<PendingEntry> batch = full;
+            executor.execute(() -> send(batch));
+        }
+        // the exchange is completed later by send()
+        return false;
+    }
+
+    /**
+     * Sends whatever is pending, used by the age timer and on shutdown.
+     */
+    public void flush() {
+        List<PendingEntry> batch;
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                timer = null;
+                return;
+            }
+            batch = drain();
+        }
+        send(batch);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+        synchronized (lock) {
+            if (executor != null) {
+                camelContext.getExecutorServiceManager().shutdown(executor);
+            }
+        }
+    }
+
+    // must be called holding the lock
+    private ScheduledExecutorService executor() {
+        if (executor == null) {
+            // Camel thread pools use virtual threads when camel.threads.virtual.enabled
+            executor = camelContext.getExecutorServiceManager()
+                    .newScheduledThreadPool(this, "FhirTransactionBatcher", senders);
+        }
+        return executor;
+    }
+
+    // must be called holding the lock
+    private List<PendingEntry> drain() {
+        List<PendingEntry> batch = pending;
+        pending = new ArrayList<>(batchSize);
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        return batch;
+    }
+
+    private void send(List<PendingEntry> batch) {
+        if (!shards.isSharded()) {
+            send(shards.getShards().get(0).getClient(), batch);
+            return;
+        }
+        Map<FhirShards.Shard, List<PendingEntry>> byShard = new LinkedHashMap<>();
+        for (PendingEntry entry : batch) {
+            byShard.computeIfAbsent(shards.assign(entry.exchange), s -> new ArrayList<>()).add(entry);
+        }
+        for (Map.Entry<FhirShards.Shard, List<PendingEntry>> part : byShard.entrySet()) {
+            send(part.getKey().getClient(), part.getValue());
+        }
+    }
+
+    private void send(IGenericClient client, List<PendingEntry> batch) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+        for (PendingEntry entry : batch) {
+            String ifMatch = entry.exchange.getProperty(PatientChangeDetector.IF_MATCH, String.class);
+            String condition = entry.exchange.getProperty(PatientChangeDetector.CONDITION, String.class);
+            if (ifMatch != null && !entry.conditional) {
+                // a changed resource already on the server, see PatientChangeDetector
+                String url = entry.resource.fhirType() + "/" + entry.resource.getIdElement().getIdPart();
+                bundle.addEntry()
+                        .setFullUrl(client.getServerBase() + "/" + url)
+                        .setResource(entry.resource)
+                        .getRequest()
+                        .setMethod(Bundle.HTTPVerb.PUT)
+                        .setUrl(url)
+                        .setIfMatch("W/\"" + ifMatch + "\"");
+            } else if (condition != null) {
+                // the id would have to match the one of the Patient found by the server
+                entry.resource.setIdElement(null);
+                bundle.addEntry()
+                        .setFullUrl(IdType.newRandomUuid().getValue())
+                        .setResource(entry.resource)
+                        .getRequest()
+                        .setMethod(Bundle.HTTPVerb.PUT)
+                        .setUrl(condition);
+            } else {
+                bundle.addEntry()
+                        .setFullUrl(IdType.newRandomUuid().getValue())
+                        .setResource(entry.resource)
+                        .getRequest()
+                        .setMethod(Bundle.HTTPVerb.POST)
+                        .setUrl(entry.resource.fhirType());
+            }
+        }
+
+        try {
+            LOG.debug("Sending transaction Bundle with {} entries to {}", batch.size(), client.getServerBase());
+            Bundle response = limiter.execute(() -> client.transaction().withBundle(bundle).execute());
+            if (response.getEntry().size() != batch.size()) {
+                throw new IllegalStateException("Transaction response has " + response.getEntry().size()
+                        + " entries, expected " + batch.size());
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).complete(response.getEntry().get(i).getResponse());
+            }
+        } catch (BaseServerResponseException e) {
+            PendingEntry first = batch.get(0);
+            if (batch.size() == 1 && !first.conditional && PatientChangeDetector.isStale(e)
+                    && first.exchange.getProperty(PatientChangeDetector.CONDITION) != null) {
+                LOG.debug("Stale If-Match for {}, sending a conditional update", first.resource.getIdElement());
+                first.conditional = true;
+                send(client, batch);
+            } else if (batch.size() == 1 || FhirCircuitBreaker.isOutage(e)) {
+                for (PendingEntry entry : batch) {
+                    entry.fail(e);
+                }
+            } else {
+                LOG.warn("Transaction Bundle with {} entries rejected ({}), retrying entries one by one",
+                        batch.size(), e.getMessage());
+                for (PendingEntry entry : batch) {
+                    send(client, List.of(entry));
+                }
+            }
+        } catch (Exception e) {
+            for (PendingEntry entry : batch) {
+                entry.fail(e);
+            }
+        }
+    }
+
+    private Resource toResource(Exchange exchange) throws Exception {
+        Object body = exchange.getIn().getBody();
+        if (body instanceof Resource) {
+            return (Resource) body;
+        }
+        if (body instanceof FhirJsonPayload) {
+            return (Resource) fhirContext.newJsonParser().parseResource(body.toString());
+        }
+        String json = exchange.getIn().getMandatoryBody(String.class);
+        return (Resource) fhirContext.newJsonParser().parseResource(json);
+    }
+
+    private static final class PendingEntry {
+        private final Exchange exchange;
+        private final AsyncCallback callback;
+        private final Resource resource;
+        // sent as a conditional update even when it has an If-Match
+        private boolean conditional;
+
+        private PendingEntry(Exchange exchange, AsyncCallback callback, Resource resource) {
+            this.exchange = exchange;
+            this.callback = callback;
+            this.resource = resource;
+        }
+
+        private void complete(Bundle.BundleEntryResponseComponent response) {
+            exchange.getIn().setBody(response);
+            callback.done(false);
+        }
+
+        private void fail(Exception e) {
+            exchange.setException(e);
+            callback.done(false);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package sample.camel.processors;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.hl7.fhir.r4.model.Bundle;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import sample.camel.fhir.FhirJsonPayload;
+import sample.camel.fhir.FhirShards;
+
+/**
+ * A Camel Processor that posts the transaction Bundle built for one message
+ * (see OruTransactionBuilder) to the FHIR server in a single round trip.
+ * <p/>
+ * The Bundle is sent by itself, also when fhir.batch.enabled=true: its
+ * entries reference each other by urn:uuid, so they are not mixed with the
+ * entries of other messages by FhirTransactionBatcher. A Bundle spooled during
+ * an outage comes back as a FhirJsonPayload (see FhirSpool) and is parsed
+ * again. Every entry is about the patient of the message, so the Bundle goes
+ * to the server of that patient, see FhirShards.
+ * <p/>
+ * The body is replaced by the transaction-response Bundle, handled by
+ * OutcomeProcessor. The transaction is all or nothing, a rejected Bundle is
+ * thrown by the client as the matching HAPI exception.
+ */
+@Component("fhirTransactionSender")
+public class FhirTransactionSender implements Processor {
+
+    private final FhirContext fhirContext;
+    private final FhirShards shards;
+
+    public FhirTransactionSender(FhirContext fhirContext, FhirShards fhirShards) {
+        this.fhirContext = fhirContext;
+        this.shards = fhirShards;
+    }
+
+    /**
+     * Tells whether the body is a transaction Bundle to send with this
+     * processor.
+     */
+    public static boolean isTransaction(Object body) {
+        if (body instanceof Bundle) {
+            return ((Bundle) body).getType() == Bundle.BundleType.TRANSACTION;
+        }
+        return body instanceof FhirJsonPayload && "Bundle".equals(((FhirJsonPayload) body).getResourceType());
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        Object body = exchange.getIn().getBody();
+        Bundle bundle = body instanceof Bundle
+                ? (Bundle) body
+                : fhirContext.newJsonParser().parseResource(Bundle.class, body.toString());
+        IGenericClient client = shards.assign(exchange).getClient();
+        exchange.getIn().setBody(client.transaction().withBundle(bundle).execute());
+    }
+}
@@ -0,0 +1,324 @@
+package sample.camel.processors;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.LoggingLevel;
+import org.apache.camel.component.file.GenericFile;
+import org.apache.camel.component.file.GenericFileEndpoint;
+import org.apache.camel.component.file.GenericFileExclusiveReadLockStrategy;
+import org.apache.camel.component.file.GenericFileOperations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Splits the files of an input directory shared by several nodes (instances of
+ * the application on one shared volume), so every file is processed by one
+ * node.
+ * <p/>
+ * With hl7.claims.enabled=true the file consumers of the routes use this bean
+ * as their read lock (option exclusiveReadLockStrategy=#fileClaims). Before a
+ * file is processed the node claims it by creating [input]/.claims/[file name]
+ * with its node name, an atomic create that only one node wins; the others
+ * skip the file quietly. The claim is removed once the file is moved to .camel
+ * or, on a failure, left in place for the next poll of any node. The consumers
+ * also list the files in random order (shuffle=true), so the nodes do not all
+ * try the same file first.
+ * <p/>
+ * A node holds at most hl7.claims.max-held claims, the files it has started
+ * and not finished (queued on the patient lanes for example). Beyond it the
+ * files are left to the other nodes, so a slow node does not sit on a backlog
+ * the faster ones could process: the work is pulled by whoever has room.
+ * <p/>
+ * Every node touches [input]/.claims/.nodes/[node] every third of
+ * hl7.claims.lease milliseconds. When a node has not done it for a whole lease
+ * (it crashed or was killed), the first node to notice renames its heartbeat
+ * file, an atomic move only one node wins, and deletes the claims of that
+ * node, so its files are processed again by the others: a file is processed
+ * at least once, and the messages the dead node had already sent are sent
+ * again (the duplicate check of hl7.dedup.store is local to each node). The
+ * lease must be much longer than a pause of a node and than the clock
+ * difference between the nodes, the modification times of the shared volume
+ * are compared with the local clock.
+ * <p/>
+ * The node name is hl7.claims.node, by default the host name and the process
+ * id, so several JVMs of one host are different nodes.
+ * <p/>
+ * Metrics: the gauge hl7.claims.held, the counters hl7.claims.acquired,
+ * hl7.claims.skipped (tagged with the reason, taken by another node or full)
+ * and hl7.claims.reclaimed (claims of dead nodes released).
+ */
+@Component("fileClaims")
+public class FileClaims implements GenericFileExclusiveReadLockStrategy<File> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileClaims.class);
+
+    /** The file consumer options that use the claims. */
+    public static final String CONSUMER_OPTIONS = "exclusiveReadLockStrategy=#fileClaims&shuffle=true";
+
+    private static final String CLAIMS = ".claims";
+    private static final String NODES = ".nodes";
+    // A heartbeat renamed by the node releasing the claims of a dead node
+    private static final String REAPED_BY = "@";
+
+    private final CamelContext camelContext;
+    private final String node;
+    private final byte[] nodeBytes;
+    private final long lease;
+    private final int maxHeld;
+    private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+    private final Set<Path> held = ConcurrentHashMap.newKeySet();
+    private final Counter acquired;
+    private final Counter taken;
+    private final Counter full;
+    private final Counter reclaimed;
+    private ScheduledExecutorService heartbeat;
+
+    public FileClaims(CamelContext camelContext, MeterRegistry meterRegistry,
+            @Value("${hl7.claims.node:}") String node,
+            @Value("${hl7.claims.lease:60000}") long lease,
+            @Value("${hl7.claims.max-held:100}") int maxHeld) {
+        this.camelContext = camelContext;
+        this.node = (node.isBlank() ? defaultNode() : node.trim()).replaceAll("[^A-Za-z0-9_.-]", "_");
+        this.nodeBytes = this.node.getBytes(StandardCharsets.UTF_8);
+        this.lease = Math.max(3000, lease);
+        this.maxHeld = Math.max(1, maxHeld);
+        this.acquired = Counter.builder("hl7.claims.acquired")
+                .description("Input files claimed by this node")
+                .register(meterRegistry);
+        this.taken = skipped(meterRegistry, "taken");
+        this.full = skipped(meterRegistry, "full");
+        this.reclaimed = Counter.builder("hl7.claims.reclaimed")
+                .description("Claims of dead nodes released by this node")
+                .register(meterRegistry);
+        Gauge.builder("hl7.claims.held", held, Set::size)
+                .description("Input files claimed and not finished by this node")
+                .register(meterRegistry);
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    @Override
+    public void prepareOnStartup(GenericFileOperations<File> operations, GenericFileEndpoint<File> endpoint)
+            throws Exception {
+        Path directory = Paths.get(endpoint.getConfiguration().getDirectory()).toAbsolutePath();
+        Files.createDirectories(directory.resolve(CLAIMS).resolve(NODES));
+        touch(directory);
+        directories.add(directory);
+        synchronized (this) {
+            if (heartbeat == null) {
+                heartbeat = camelContext.getExecutorServiceManager()
+                        .newSingleThreadScheduledExecutor(this, "FileClaimsHeartbeat");
+                heartbeat.scheduleWithFixedDelay(this::heartbeat, lease / 3, lease / 3, TimeUnit.MILLISECONDS);
+            }
+        }
+        LOG.info("Node {} claims the files of {} (lease {} ms)", node, directory, lease);
+    }
+
+    @Override
+    public boolean acquireExclusiveReadLock(GenericFileOperations<File> operations, GenericFile<File> file,
+            Exchange exchange) throws Exception {
+        if (held.size() >= maxHeld) {
+            full.increment();
+            return false;
+        }
+        Path path = file.getFile().toPath();
+        Path claim = claim(path);
+        try {
+            Files.write(claim, nodeBytes, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        } catch (FileAlreadyExistsException e) {
+            taken.increment();
+            return false;
+        }
+        // another node may have processed and moved it since it was listed
+        if (!Files.exists(path)) {
+            Files.deleteIfExists(claim);
+            taken.increment();
+            return false;
+        }
+        held.add(claim);
+        acquired.increment();
+        return true;
+    }
+
+    @Override
+    public void releaseExclusiveReadLockOnCommit(GenericFileOperations<File> operations, GenericFile<File> file,
+            Exchange exchange) throws Exception {
+        release(file);
+    }
+
+    @Override
+    public void releaseExclusiveReadLockOnRollback(GenericFileOperations<File> operations, GenericFile<File> file,
+            Exchange exchange) throws Exception {
+        release(file);
+    }
+
+    @Override
+    public void releaseExclusiveReadLockOnAbort(GenericFileOperations<File> operations, GenericFile<File> file,
+            Exchange exchange) throws Exception {
+        release(file);
+    }
+
+    @Override
+    public void setTimeout(long timeout) {
+        // a claim is taken at once or not at all
+    }
+
+    @Override
+    public void setCheckInterval(long checkInterval) {
+        // a claim is taken at once or not at all
+    }
+
+    @Override
+    public void setReadLockLoggingLevel(LoggingLevel readLockLoggingLevel) {
+        // skipped files are counted in hl7.claims.skipped
+    }
+
+    @Override
+    public void setMarkerFiler(boolean markerFile) {
+        // the claim is the marker file
+    }
+
+    @Override
+    public void setDeleteOrphanLockFiles(boolean deleteOrphanLockFiles) {
+        // the claims of dead nodes are released by the heartbeat, never at startup
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (heartbeat != null) {
+            camelContext.getExecutorServiceManager().shutdown(heartbeat);
+        }
+        // a clean stop leaves no heartbeat to wait for
+        for (Path directory : directories) {
+            try {
+                Files.deleteIfExists(directory.resolve(CLAIMS).resolve(NODES).resolve(node));
+            } catch (IOException e) {
+                LOG.debug("Cannot remove the heartbeat of {} in {}: {}", node, directory, e.getMessage());
+            }
+        }
+    }
+
+    private void release(GenericFile<File> file) throws IOException {
+        Path claim = claim(file.getFile().toPath());
+        held.remove(claim);
+        // the claim may have been released by another node that thought this one dead
+        if (node.equals(owner(claim))) {
+            Files.deleteIfExists(claim);
+        }
+    }
+
+    private void heartbeat() {
+        long now = System.currentTimeMillis();
+        for (Path directory : directories) {
+            Path nodes = directory.resolve(CLAIMS).resolve(NODES);
+            try {
+                if (!Files.exists(nodes.resolve(node)) && !held.isEmpty()) {
+                    LOG.warn("Node {} missed its heartbeat in {}, its {} files in progress may be processed again"
+                            + " by other nodes", node, directory, held.size());
+                }
+                touch(directory);
+                try (DirectoryStream<Path> peers = Files.newDirectoryStream(nodes)) {
+                    for (Path peer : peers) {
+                        String name = peer.getFileName().toString();
+                        if (!name.equals(node) && now - Files.getLastModifiedTime(peer).toMillis() > lease) {
+                            reap(directory, peer, name);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warn("Heartbeat of node {} in {} failed: {}", node, directory, e.getMessage());
+            }
+        }
+    }
+
+    // Releases the claims of a dead node, or finishes the job of a node that
+    // died while doing it
+    private void reap(Path directory, Path peer, String name) throws IOException {
+        int separator = name.indexOf(REAPED_BY);
+        String dead = separator < 0 ? name : name.substring(0, separator);
+        Path reaping = peer.resolveSibling(dead + REAPED_BY + node);
+        try {
+            Files.move(peer, reaping, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            // another node got there first
+            return;
+        }
+        Files.setLastModifiedTime(reaping, FileTime.fromMillis(System.currentTimeMillis()));
+        int released = 0;
+        try (DirectoryStream<Path> claims = Files.newDirectoryStream(directory.resolve(CLAIMS),
+                path -> Files.isRegularFile(path))) {
+            for (Path claim : claims) {
+                if (dead.equals(owner(claim)) && Files.deleteIfExists(claim)) {
+                    released++;
+                }
+            }
+        }
+        Files.deleteIfExists(reaping);
+        reclaimed.increment(released);
+        LOG.warn("Node {} stopped its heartbeat in {}, released its {} claimed files", dead, directory, released);
+    }
+
+    private void touch(Path directory) throws IOException {
+        Path file = directory.resolve(CLAIMS).resolve(NODES).resolve(node);
+        if (!Files.exists(file)) {
+            Files.write(file, nodeBytes);
+        }
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    private static Path claim(Path file) {
+        return file.resolveSibling(CLAIMS).resolve(file.getFileName().toString());
+    }
+
+    private static String owner(Path claim) throws IOException {
+        try {
+            return new String(Files.readAllBytes(claim), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static String defaultNode() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "node";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+
+    private static Counter skipped(MeterRegistry meterRegistry, String reason) {
+        return Counter.builder("hl7.claims.skipped")
+                .description("Input files left to other nodes")
+                .tag("reason", reason)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,67 @@
+package sample.camel.processors;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.hl7v2.HL7Exception;
+import sample.camel.fhir.FhirJsonPayload;
+import sample.camel.fhir.FhirShards;
+import sample.camel.hl7.Hl7FieldPath;
+import sample.camel.hl7.RawHl7Message;
+import sample.camel.mapping.Hl7Mapping;
+import sample.camel.mapping.Hl7MappingRegistry;
+
+/**
+ * A Camel Processor that converts the raw HL7 v2 message in the body to a FHIR
+ * resource with the declarative mapping of its message type, see
+ * Hl7MappingRegistry and the files in resources/mappings.
+ * <p/>
+ * The message type and trigger event headers set by VerifyHl7Type choose the
+ * mapping. The message is not unmarshalled into HAPI structures, the mapping
+ * reads the values it needs straight from the raw text, so there is no
+ * .unmarshal().hl7() step before this processor.
+ * <p/>
+ * The FHIR resource replaces the body. A message type without a mapping fails
+ * with an HL7Exception. The patient identifier (PID-3.1) is left in the header
+ * HL7PatientId, which chooses the FHIR server of the patient, see FhirShards.
+ * <p/>
+ * With fhir.json.streaming=true the body is instead a FhirJsonPayload, the JSON
+ * written straight from the HL7 values by Hl7JsonWriter, and no HAPI resource
+ * is built or serialized on the way to the server (see FhirJsonSender). That
+ * the JSON is the one HAPI writes is checked by the golden file tests of
+ * Hl7JsonWriterGoldenTest, run them after changing a mapping.
+ */
+@Component("hl7MappingProcessor")
+public class Hl7MappingProcessor implements Processor {
+
+    private static final Hl7FieldPath PATIENT_ID = Hl7FieldPath.compile("PID-3.1");
+
+    private final Hl7MappingRegistry mappings;
+    private final boolean streaming;
+
+    public Hl7MappingProcessor(Hl7MappingRegistry hl7Mappings,
+            @Value("${fhir.json.streaming:false}") boolean streaming) {
+        this.mappings = hl7Mappings;
+        this.streaming = streaming;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        String type = exchange.getIn().getHeader(VerifyHl7Type.MESSAGE_TYPE, String.class);
+        String event = exchange.getIn().getHeader(VerifyHl7Type.TRIGGER_EVENT, String.class);
+        Hl7Mapping mapping = mappings.get(type, event);
+        if (mapping == null) {
+            throw new HL7Exception("No HL7 mapping for message type " + type + "^" + event);
+        }
+        RawHl7Message message = new RawHl7Message(exchange.getIn().getMandatoryBody(String.class));
+        exchange.getIn().setHeader(FhirShards.SHARD_KEY, message.get(PATIENT_ID));
+        if (!streaming) {
+            exchange.getIn().setBody(mapping.map(message));
+            return;
+        }
+        FhirJsonPayload payload = mapping.writeJson(message);
+        exchange.getIn().setBody(payload);
+    }
+}
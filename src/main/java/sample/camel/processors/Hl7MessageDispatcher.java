@@ -0,0 +1,295 @@
+package sample.camel.processors;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.ThreadPoolProfileBuilder;
+import org.apache.camel.support.AsyncProcessorSupport;
+import org.apache.camel.util.concurrent.ThreadPoolRejectedPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * A Camel AsyncProcessor that sends every HL7 message to the pipeline of its
+ * message type, trigger event and version, read from the headers set by
+ * VerifyHl7Type.
+ * <p/>
+ * The table is built once when the application starts from the property
+ * hl7.dispatch.routes, a comma separated list of TYPE^EVENT[^VERSION]=target:
+ *
+ * <pre>
+ * hl7.dispatch.routes=ADT^A04=register,ADT^A08=register,ORU^R01^2.5=observation
+ * hl7.dispatch.register.endpoint=direct:hl7Register
+ * hl7.dispatch.register.threads=8
+ * hl7.dispatch.register.max-concurrent=64
+ * hl7.dispatch.register.max-queue=1000
+ * </pre>
+ *
+ * The default table is ADT^A04=register, the only type the REST input took
+ * before; the other mapped types are added to it when they are wanted. ADT
+ * updates (A08, A31) need fhir.cache.enabled=true to update the Patient
+ * instead of creating another one.
+ * <p/>
+ * A key without a version (or with *) matches every version, a key with a
+ * version wins over it. Finding the target of a message is a hash lookup, so
+ * supporting a new message type is a line of configuration and costs nothing
+ * to the other types. An unknown target or a target without an endpoint stops
+ * the startup.
+ * <p/>
+ * Each target has its own limits. With threads=0 (the default) the message is
+ * processed on the caller thread, otherwise on a pool of that many threads
+ * reserved for the target, so a slow pipeline cannot take the threads of the
+ * others. The pool is created by the ExecutorServiceManager of Camel, like the
+ * other pools of the application, and its queue is bounded: max-concurrent
+ * messages when it is set, otherwise max-queue (1000 by default).
+ * max-concurrent is the number of messages of the target in progress or
+ * waiting for a thread; beyond it, or when the queue of the pool is full, the
+ * message is refused with a 503 and a Retry-After of hl7.dispatch.retry-after
+ * seconds (0 is no limit). A message type without a target is refused with a
+ * 400, as before.
+ * <p/>
+ * The messages are counted in hl7.dispatch.messages, tagged with the message
+ * type, the target and the outcome (dispatched or rejected), the unsupported
+ * ones in hl7.dispatch.unsupported. The messages in progress of every target
+ * are published as the gauge hl7.dispatch.in-flight.
+ */
+@Component("hl7Dispatcher")
+public class Hl7MessageDispatcher extends AsyncProcessorSupport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Hl7MessageDispatcher.class);
+
+    private static final String ANY_VERSION = "*";
+
+    /** A pipeline messages are dispatched to, with its own limits. */
+    private static final class Target {
+        private final String name;
+        private final String endpoint;
+        private final ExecutorService executor;
+        private final int maxConcurrent;
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private Target(String name, String endpoint, ExecutorService executor, int maxConcurrent) {
+            this.name = name;
+            this.endpoint = endpoint;
+            this.executor = executor;
+            this.maxConcurrent = maxConcurrent;
+        }
+
+        private boolean tryAcquire() {
+            if (maxConcurrent <= 0) {
+                inFlight.incrementAndGet();
+                return true;
+            }
+            while (true) {
+                int current = inFlight.get();
+                if (current >= maxConcurrent) {
+                    return false;
+                }
+                if (inFlight.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void release() {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /** The target of a key of the table, with the counters of that key. */
+    private record Route(Target target, Counter dispatched, Counter rejected) {
+    }
+
+    private final Map<String, Route> routes = new HashMap<>();
+    private final Map<String, Target> targets = new LinkedHashMap<>();
+    private final CamelContext camelContext;
+    private final ProducerTemplate template;
+    private final Counter unsupported;
+    private final String retryAfter;
+
+    public Hl7MessageDispatcher(CamelContext camelContext, MeterRegistry meterRegistry, Environment environment,
+            @Value("${hl7.dispatch.routes:ADT^A04=register}") String table,
+            @Value("${hl7.dispatch.retry-after:5}") int retryAfter) {
+        this.camelContext = camelContext;
+        this.retryAfter = String.valueOf(Math.max(0, retryAfter));
+        for (String entry : table.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("HL7 dispatch entry " + entry.trim() + " has no target");
+            }
+            String key = key(entry.substring(0, equals).trim());
+            String name = entry.substring(equals + 1).trim();
+            Target target = targets.computeIfAbsent(name, n -> target(n, camelContext, environment, meterRegistry));
+            String message = key.endsWith("^" + ANY_VERSION) ? key.substring(0, key.length() - 2) : key;
+            Route route = new Route(target,
+                    counter(meterRegistry, message, name, "dispatched"),
+                    counter(meterRegistry, message, name, "rejected"));
+            Route previous = routes.putIfAbsent(key, route);
+            if (previous != null) {
+                throw new IllegalStateException("Message type " + message + " is dispatched to "
+                        + previous.target().name + " and " + name);
+            }
+        }
+        for (Map.Entry<String, Route> route : routes.entrySet()) {
+            LOG.info("Dispatching HL7 {} to {} ({})", route.getKey(), route.getValue().target().name,
+                    route.getValue().target().endpoint);
+        }
+        this.unsupported = Counter.builder("hl7.dispatch.unsupported")
+                .description("HL7 messages refused because no pipeline handles their type")
+                .register(meterRegistry);
+        this.template = camelContext.createProducerTemplate();
+    }
+
+    /**
+     * Tells whether a message of this type, trigger event and version has a
+     * target, used to check a message before it is queued.
+     */
+    public boolean supports(String messageType, String triggerEvent, String version) {
+        return route(messageType, triggerEvent, version) != null;
+    }
+
+    @Override
+    public boolean process(Exchange exchange, AsyncCallback callback) {
+        String type = exchange.getIn().getHeader(VerifyHl7Type.MESSAGE_TYPE, String.class);
+        String event = exchange.getIn().getHeader(VerifyHl7Type.TRIGGER_EVENT, String.class);
+        String version = exchange.getIn().getHeader(VerifyHl7Type.VERSION_ID, String.class);
+        Route route = route(type, event, version);
+        if (route == null) {
+            unsupported.increment();
+            LOG.warn("Received unsupported HL7 message: {}^{} version {}", type, event, version);
+            exchange.getIn().setBody("ERROR: Unexpected type message " + type + "^" + event
+                    + ", there is no mapping for it.");
+            exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, 400);
+            callback.done(true);
+            return true;
+        }
+
+        Target target = route.target();
+        if (!target.tryAcquire()) {
+            reject(exchange, route, type + "^" + event);
+            callback.done(true);
+            return true;
+        }
+        route.dispatched().increment();
+
+        if (target.executor == null) {
+            try {
+                template.send(target.endpoint, exchange);
+            } finally {
+                target.release();
+            }
+            callback.done(true);
+            return true;
+        }
+        try {
+            target.executor.execute(() -> {
+                try {
+                    template.send(target.endpoint, exchange);
+                } finally {
+                    target.release();
+                    callback.done(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the queue of the pool is full, or the pool is shutting down
+            target.release();
+            reject(exchange, route, type + "^" + event);
+            callback.done(true);
+            return true;
+        }
+        return false;
+    }
+
+    private void reject(Exchange exchange, Route route, String message) {
+        route.rejected().increment();
+        LOG.warn("Too many {} messages in progress, rejected {}", route.target().name,
+                exchange.getIn().getHeader(VerifyHl7Type.CONTROL_ID));
+        exchange.getIn().setBody("ERROR: Too many " + message + " messages in progress, retry later.");
+        exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, 503);
+        exchange.getIn().setHeader("Retry-After", retryAfter);
+    }
+
+    private Route route(String type, String event, String version) {
+        String key = type + "^" + event;
+        Route route = routes.get(key + "^" + version);
+        return route != null ? route : routes.get(key + "^" + ANY_VERSION);
+    }
+
+    // TYPE^EVENT or TYPE^EVENT^VERSION, the version * when there is none
+    private static String key(String message) {
+        String[] parts = message.split("\\^");
+        if (parts.length < 2 || parts.length > 3 || parts[0].isBlank() || parts[1].isBlank()) {
+            throw new IllegalArgumentException("HL7 dispatch key " + message
+                    + " is not TYPE^EVENT or TYPE^EVENT^VERSION");
+        }
+        String version = parts.length == 3 && !parts[2].isBlank() ? parts[2].trim() : ANY_VERSION;
+        return parts[0].trim() + "^" + parts[1].trim() + "^" + version;
+    }
+
+    private static Target target(String name, CamelContext camelContext, Environment environment,
+            MeterRegistry meterRegistry) {
+        String prefix = "hl7.dispatch." + name + ".";
+        String endpoint = environment.getProperty(prefix + "endpoint");
+        if (endpoint == null || endpoint.isBlank()) {
+            throw new IllegalStateException("HL7 dispatch target " + name + " has no " + prefix + "endpoint");
+        }
+        int threads = environment.getProperty(prefix + "threads", Integer.class, 0);
+        int maxConcurrent = environment.getProperty(prefix + "max-concurrent", Integer.class, 0);
+        int maxQueue = environment.getProperty(prefix + "max-queue", Integer.class, 1000);
+        // The messages waiting for a thread are bounded by max-concurrent, or
+        // by max-queue without it; a full queue is refused with a 503
+        ExecutorService executor = threads <= 0 ? null
+                : camelContext.getExecutorServiceManager().newThreadPool(Hl7MessageDispatcher.class,
+                        "Hl7Dispatch-" + name,
+                        new ThreadPoolProfileBuilder("hl7Dispatch-" + name)
+                                .poolSize(threads)
+                                .maxPoolSize(threads)
+                                .maxQueueSize(Math.max(1, maxConcurrent > 0 ? maxConcurrent : maxQueue))
+                                .rejectedPolicy(ThreadPoolRejectedPolicy.Abort)
+                                .build());
+        Target target = new Target(name, endpoint.trim(), executor, maxConcurrent);
+        Gauge.builder("hl7.dispatch.in-flight", target.inFlight, AtomicInteger::get)
+                .description("HL7 messages in progress or waiting in the dispatch target")
+                .tag("target", name)
+                .register(meterRegistry);
+        return target;
+    }
+
+    private static Counter counter(MeterRegistry meterRegistry, String message, String target, String outcome) {
+        return Counter.builder("hl7.dispatch.messages")
+                .description("HL7 messages by type, dispatch target and outcome")
+                .tag("message", message)
+                .tag("target", target)
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() throws Exception {
+        for (Target target : targets.values()) {
+            if (target.executor != null) {
+                camelContext.getExecutorServiceManager().shutdownGraceful(target.executor);
+            }
+        }
+        template.stop();
+    }
+}
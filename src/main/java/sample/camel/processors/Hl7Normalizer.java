@@ -0,0 +1,147 @@
+package sample.camel.processors;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.support.ExchangeHelper;
+import org.apache.commons.text.translate.EntityArrays;
+import org.springframework.stereotype.Component;
+
+/**
+ * A Camel Processor that prepares a raw HL7 v2 message for the HL7 parser.
+ * <p/>
+ * HL7 v2 segments must be terminated by a carriage return, but files written
+ * on other systems or pasted in an HTTP client usually end lines with \n or
+ * \r\n, and some senders HTML-escape the message (for example &amp;amp; for the
+ * escape character). This processor fixes both things in a single pass over
+ * the raw bytes of the body:
+ * <ul>
+ * <li>\r\n and \n are converted to \r, a lone \r is kept.</li>
+ * <li>HTML 4 named entities and decimal or hexadecimal numeric entities are
+ * decoded, the same entities accepted by StringEscapeUtils.unescapeHtml4.</li>
+ * </ul>
+ * The output is written into a per-thread buffer that is reused from message
+ * to message, so the only allocation per message is the String handed to the
+ * HL7 parser. It replaces the former replaceAll + unescapeHtml4 lambda, which
+ * compiled a regular expression and copied the whole message several times.
+ * <p/>
+ * The body is read as a byte array, so a file body is read once without a
+ * previous convertBodyTo(String.class). The charset of the exchange is used,
+ * UTF-8 by default, any ASCII compatible charset works. Multibyte characters
+ * pass through untouched because the bytes this processor looks at (\r, \n,
+ * &amp; and ;) never appear inside them.
+ */
+@Component("hl7Normalizer")
+public class Hl7Normalizer implements Processor {
+
+    // Buffers bigger than this are not kept between messages
+    private static final int MAX_RETAINED_BUFFER = 1024 * 1024;
+    // Longest entity accepted, &thetasym; and &#x10FFFF; fit
+    private static final int MAX_ENTITY_LENGTH = 10;
+
+    private static final Map<String, String> ENTITIES = new HashMap<>();
+    static {
+        EntityArrays.BASIC_UNESCAPE.forEach((k, v) -> ENTITIES.put(k.toString(), v.toString()));
+        EntityArrays.ISO8859_1_UNESCAPE.forEach((k, v) -> ENTITIES.put(k.toString(), v.toString()));
+        EntityArrays.HTML40_EXTENDED_UNESCAPE.forEach((k, v) -> ENTITIES.put(k.toString(), v.toString()));
+    }
+
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[8 * 1024]);
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        byte[] raw = exchange.getIn().getMandatoryBody(byte[].class);
+        Charset charset = Charset.forName(ExchangeHelper.getCharsetName(exchange));
+        exchange.getIn().setBody(normalize(raw, 0, raw.length, charset));
+    }
+
+    /**
+     * Normalizes segment terminators and decodes HTML entities of the given
+     * bytes. The result is never longer than the input.
+     */
+    public static String normalize(byte[] in, int offset, int length, Charset charset) {
+        byte[] out = buffer(length);
+        int end = offset + length;
+        int n = 0;
+        for (int i = offset; i < end; i++) {
+            byte b = in[i];
+            if (b == '\r') {
+                out[n++] = '\r';
+                if (i + 1 < end && in[i + 1] == '\n') {
+                    i++;
+                }
+            } else if (b == '\n') {
+                out[n++] = '\r';
+            } else if (b == '&') {
+                int semicolon = findSemicolon(in, i, end);
+                String decoded = semicolon < 0 ? null : decodeEntity(in, i, semicolon);
+                if (decoded == null) {
+                    out[n++] = b;
+                } else {
+                    byte[] bytes = decoded.getBytes(charset);
+                    System.arraycopy(bytes, 0, out, n, bytes.length);
+                    n += bytes.length;
+                    i = semicolon;
+                }
+            } else {
+                out[n++] = b;
+            }
+        }
+        return new String(out, 0, n, charset);
+    }
+
+    private static byte[] buffer(int length) {
+        byte[] buffer = BUFFER.get();
+        if (buffer.length >= length) {
+            return buffer;
+        }
+        buffer = new byte[length];
+        if (length <= MAX_RETAINED_BUFFER) {
+            BUFFER.set(buffer);
+        }
+        return buffer;
+    }
+
+    private static int findSemicolon(byte[] in, int ampersand, int end) {
+        int limit = Math.min(end, ampersand + MAX_ENTITY_LENGTH);
+        for (int i = ampersand + 2; i < limit; i++) {
+            if (in[i] == ';') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Returns the decoded text of the entity between ampersand and semicolon,
+    // both included, or null when it is not a known entity.
+    private static String decodeEntity(byte[] in, int ampersand, int semicolon) {
+        if (in[ampersand + 1] != '#') {
+            return ENTITIES.get(new String(in, ampersand, semicolon - ampersand + 1, StandardCharsets.ISO_8859_1));
+        }
+        int start = ampersand + 2;
+        int radix = 10;
+        if (start < semicolon && (in[start] == 'x' || in[start] == 'X')) {
+            radix = 16;
+            start++;
+        }
+        if (start == semicolon) {
+            return null;
+        }
+        int codePoint = 0;
+        for (int i = start; i < semicolon; i++) {
+            int digit = Character.digit(in[i], radix);
+            if (digit < 0) {
+                return null;
+            }
+            codePoint = codePoint * radix + digit;
+        }
+        if (!Character.isValidCodePoint(codePoint)) {
+            return null;
+        }
+        return new String(Character.toChars(codePoint));
+    }
+}
@@ -1,12 +1,8 @@
 package sample.camel.processors;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
-import org.apache.commons.lang3.time.DateParser;
+import org.hl7.fhir.r4.model.DateType;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
 import org.springframework.stereotype.Component;
@@ -14,6 +10,8 @@ import org.springframework.stereotype.Component;
 import ca.uhn.hl7v2.model.v24.message.ADT_A01;
 
 import ca.uhn.hl7v2.model.v24.segment.PID;
+import sample.camel.fhir.FhirShards;
+import sample.camel.hl7.Hl7Timestamps;
 
 /**
  * A Camel Processor to convert HL7 ADT messages to FHIR Patient resources.
@@ -22,6 +20,10 @@ import ca.uhn.hl7v2.model.v24.segment.PID;
  * a FHIR Patient resource.
  * It handles basic fields like patient ID, name, gender, and birth date.
  * <p/>
+ * The routes now use the declarative mapping of resources/mappings/adt-patient.yaml
+ * (see Hl7MappingProcessor), this hand-written mapper is kept as an example of the
+ * HAPI structures.
+ * <p/>
  * The processor implements the org.apache.camel.Processor interface.
  * It is annotated with @Component to be auto-detected by Spring and used in
  * Camel routes.
@@ -36,7 +38,6 @@ public class Hl7Register2FhirPatientProcessor implements Processor {
 
         @Override
         public void process(Exchange exchange) throws Exception {
-                System.out.println("Processing HL7 ADT_A01 message to FHIR Patient");
                 ADT_A01 msg = exchange.getIn().getBody(ADT_A01.class);
                 // Extract the patient information
                 final PID pid = msg.getPID();
@@ -44,32 +45,25 @@ public class Hl7Register2FhirPatientProcessor implements Processor {
                 String name = pid.getPatientName()[0].getGivenName().getValue();
                 String patientId = pid.getPatientID().getCx1_ID()
                                 .getValue();
-                String gender = pid.getAdministrativeSex().getValue().toLowerCase();
+                String gender = pid.getAdministrativeSex().getValue();
                 // AdministrativeGender genderEnum = AdministrativeGender.fromCode(gender);
                 String birthDateStr = pid.getDateTimeOfBirth().getTimeOfAnEvent().getValue();
 
-                Date birthDate = null;
-                try {
-                        SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
-                        birthDate = sdf.parse(birthDateStr);
-                } catch (ParseException e) {
-                        // Manejo del error: log, lanzar excepción, etc.
-                        e.printStackTrace();
-                }
-
                 // Create a FHIR Patient and set the values
                 Patient patient = new Patient();
-                System.out.println("Extracted Patient - ID: " + patientId + ", Name: " + name + " " + surname);
                 patient.addName().addGiven(name);
                 patient.getNameFirstRep().setFamily(surname);
-                System.out.println("Setting Patient - ID: " + patientId);
                 patient.setId(patientId);
-                System.out.println("Setting gender: " + gender);
-                patient.setGender(gender.equals("m") ? AdministrativeGender.MALE
-                                : gender.equals("f") ? AdministrativeGender.FEMALE
+                patient.setGender("M".equalsIgnoreCase(gender) ? AdministrativeGender.MALE
+                                : "F".equalsIgnoreCase(gender) ? AdministrativeGender.FEMALE
                                                 : AdministrativeGender.UNKNOWN);
-                System.out.println("Setting birthDate: " + birthDate);
-                patient.setBirthDate(birthDate != null ? birthDate : null);
+                // The HL7 timestamp may have any precision (20010803 or 20010803000000),
+                // it is cut to the day without SimpleDateFormat, see Hl7Timestamps.
+                if (birthDateStr != null && !birthDateStr.isEmpty()) {
+                        patient.setBirthDateElement(new DateType(Hl7Timestamps.toFhirDate(birthDateStr)));
+                }
+                // The FHIR server of the patient is chosen on its identifier, see FhirShards
+                exchange.getIn().setHeader(FhirShards.SHARD_KEY, patientId);
                 // Set the patient in the exchange. replace the HL7 message with the FHIR
                 // Patient resource
                 exchange.getIn().setBody(patient);// Implementation here
@@ -0,0 +1,156 @@
+package sample.camel.processors;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.camel.Exchange;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Keeps the status of the messages accepted by the asynchronous REST mode
+ * (hl7.rest.async.enabled=true), see FromRegisterPut2FHIRRoute.
+ * <p/>
+ * A message gets a tracking ID when it is accepted, left in the header
+ * HL7TrackingId, and goes through these states:
+ * <ul>
+ * <li>queued: accepted, waiting in the queue.</li>
+ * <li>processing: taken from the queue by the pipeline.</li>
+ * <li>done: the pipeline finished, the HTTP code and text produced by
+ * OutcomeProcessor (or by the route that rejected it) and the FHIR resource
+ * ID are kept.</li>
+ * <li>failed: the pipeline ended with an exception, its message is kept.</li>
+ * </ul>
+ * The route calls the methods of this bean with .bean("hl7TrackingStore",
+ * "accepted") and so on. The last hl7.rest.async.tracking-size messages are
+ * kept, older ones are forgotten and reported as unknown (404). The number of
+ * messages waiting in the queue is published as the gauge hl7.rest.async.queued.
+ */
+@Component("hl7TrackingStore")
+public class Hl7TrackingStore {
+
+    public static final String TRACKING_ID = "HL7TrackingId";
+
+    public static final String QUEUED = "queued";
+    public static final String PROCESSING = "processing";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    /** What is known about an accepted message. */
+    public record Status(String trackingId, String status, String messageControlId, String code, String outcome,
+            String resourceId, String updated) {
+    }
+
+    private final Map<String, Status> statuses;
+    private int queued;
+
+    public Hl7TrackingStore(MeterRegistry meterRegistry,
+            @Value("${hl7.rest.async.tracking-size:100000}") int size) {
+        int maxEntries = Math.max(1, size);
+        this.statuses = new LinkedHashMap<>(1024, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Status> eldest) {
+                if (size() > maxEntries) {
+                    if (QUEUED.equals(eldest.getValue().status())) {
+                        queued--;
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+        Gauge.builder("hl7.rest.async.queued", this, Hl7TrackingStore::getQueued)
+                .description("Messages accepted by the asynchronous REST mode and still queued")
+                .register(meterRegistry);
+    }
+
+    /** Gives the message a tracking ID and records it as queued. */
+    public void accepted(Exchange exchange) {
+        String trackingId = UUID.randomUUID().toString();
+        exchange.getIn().setHeader(TRACKING_ID, trackingId);
+        update(exchange, QUEUED, null, null, null);
+    }
+
+    /** Forgets a message the queue did not take. */
+    public synchronized void rejected(Exchange exchange) {
+        Status status = statuses.remove(exchange.getIn().getHeader(TRACKING_ID, String.class));
+        if (status != null && QUEUED.equals(status.status())) {
+            queued--;
+        }
+    }
+
+    public void processing(Exchange exchange) {
+        update(exchange, PROCESSING, null, null, null);
+    }
+
+    /** Records the outcome of the pipeline, the body and code left by OutcomeProcessor. */
+    public void finished(Exchange exchange) {
+        Exception exception = exchange.getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class);
+        if (exception == null) {
+            exception = exchange.getException();
+        }
+        if (exception != null) {
+            update(exchange, FAILED, null, exception.getMessage(), null);
+        } else {
+            update(exchange, DONE, exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE, String.class),
+                    exchange.getIn().getBody(String.class),
+                    exchange.getProperty(OutcomeProcessor.RESOURCE_ID, String.class));
+        }
+    }
+
+    /**
+     * Replaces the body with the JSON status of the tracking ID in the header
+     * trackingId, or answers 404.
+     */
+    public void status(Exchange exchange) throws JsonProcessingException {
+        Status status = get(exchange.getIn().getHeader("trackingId", String.class));
+        if (status == null) {
+            exchange.getIn().setBody("{\"error\":\"Unknown tracking ID\"}");
+            exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, 404);
+        } else {
+            exchange.getIn().setBody(JSON.writeValueAsString(status));
+            exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, 200);
+        }
+        exchange.getIn().setHeader(Exchange.CONTENT_TYPE, "application/json");
+    }
+
+    public synchronized Status get(String trackingId) {
+        return trackingId == null ? null : statuses.get(trackingId);
+    }
+
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    private synchronized void update(Exchange exchange, String state, String code, String outcome,
+            String resourceId) {
+        String trackingId = exchange.getIn().getHeader(TRACKING_ID, String.class);
+        if (trackingId == null) {
+            return;
+        }
+        Status previous = statuses.get(trackingId);
+        if (previous == null && !QUEUED.equals(state)) {
+            // forgotten while queued, the tracking size is too small
+            return;
+        }
+        if (previous != null && QUEUED.equals(previous.status())) {
+            queued--;
+        }
+        if (QUEUED.equals(state)) {
+            queued++;
+        }
+        statuses.put(trackingId, new Status(trackingId, state,
+                exchange.getIn().getHeader(VerifyHl7Type.CONTROL_ID, String.class), code, outcome, resourceId,
+                Instant.now().toString()));
+    }
+}
@@ -0,0 +1,392 @@
+package sample.camel.processors;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.AsyncProducer;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.StartupListener;
+import org.apache.camel.support.DefaultExchange;
+import org.apache.camel.support.service.ServiceHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Feeds the files of the input directory to the file route when the file system
+ * says they are created, instead of listing the whole directory on every poll.
+ * <p/>
+ * With hl7.watch.enabled=true FromObservationFile2FHIRRoute starts from
+ * direct:hl7InputFile and registers this bean as a StartupListener, so it
+ * starts once the routes are up:
+ * <ul>
+ * <li>the directory is registered with a WatchService (inotify on Linux) for
+ * created files, before anything else, so no file is missed;</li>
+ * <li>a one-off catch-up scan then streams the files already there, the
+ * backlog left while the application was down, without building the list
+ * first;</li>
+ * <li>every created file is then queued when its event arrives, a cost that
+ * does not depend on the number of files in the directory. When the events
+ * overflow the kernel queue the directory is scanned again.</li>
+ * </ul>
+ * One thread sends the queued files, in order, to the route with the file
+ * name headers of the file consumer; at most hl7.watch.max-in-flight files
+ * are in progress (for example queued on the patient lanes). A processed file
+ * is moved to .camel, like the file consumer does; a failed one is left in
+ * place and queued again after hl7.watch.retry-delay milliseconds.
+ * <p/>
+ * Before it is moved, a processed file is written to the checkpoint
+ * hl7.watch.checkpoint (name, size and modification time), so a file
+ * processed just before a crash is moved without being processed again at the
+ * next start. Once the file is moved its entry is not needed any more: the
+ * checkpoint is rewritten with the entries of the files not moved yet at
+ * startup and every hl7.watch.checkpoint-lines lines, so it stays small.
+ * <p/>
+ * On shutdown the watcher stops taking files and waits up to
+ * hl7.watch.shutdown-timeout milliseconds for the files in progress before it
+ * closes the checkpoint.
+ * <p/>
+ * The files must appear complete, written elsewhere (or under a name starting
+ * with a dot, which is ignored) and renamed into the directory. Events are not
+ * raised for the files written by other hosts of a shared volume, so this mode
+ * cannot be used with hl7.claims.enabled.
+ * <p/>
+ * Metrics: hl7.watch.files (tagged with the outcome: processed, failed or
+ * checkpointed), the timer hl7.watch.pickup (from the modification time of a
+ * created file to its event, the pickup latency) and the gauge
+ * hl7.watch.pending (files queued behind the ones in progress).
+ */
+@Component("inputWatcher")
+public class InputWatcher implements StartupListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InputWatcher.class);
+
+    /** The endpoint the files are sent to. */
+    public static final String ENDPOINT = "direct:hl7InputFile";
+
+    private static final String DONE = ".camel";
+
+    private final CamelContext camelContext;
+    private final Path directory;
+    private final Path checkpointFile;
+    private final int checkpointLines;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final long retryDelay;
+    private final long shutdownTimeout;
+    private final BlockingQueue<Path> pending = new LinkedBlockingQueue<>();
+    // Files queued or in progress, so a file is not queued twice
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private final Set<String> checkpoint = ConcurrentHashMap.newKeySet();
+    private final Counter processed;
+    private final Counter failed;
+    private final Counter checkpointed;
+    private final Timer pickup;
+
+    private volatile boolean running;
+    private ScheduledExecutorService executor;
+    private WatchService watchService;
+    private AsyncProducer producer;
+    // guarded by checkpoint
+    private BufferedWriter checkpointWriter;
+    private int checkpointWritten;
+
+    public InputWatcher(CamelContext camelContext, MeterRegistry meterRegistry,
+            @Value("${input}") String input,
+            @Value("${hl7.watch.checkpoint:target/work/fhir/watch/processed.log}") String checkpoint,
+            @Value("${hl7.watch.checkpoint-lines:10000}") int checkpointLines,
+            @Value("${hl7.watch.max-in-flight:200}") int maxInFlight,
+            @Value("${hl7.watch.retry-delay:5000}") long retryDelay,
+            @Value("${hl7.watch.shutdown-timeout:30000}") long shutdownTimeout) {
+        this.camelContext = camelContext;
+        this.directory = Paths.get(input.trim()).toAbsolutePath();
+        this.checkpointFile = Paths.get(checkpoint.trim()).toAbsolutePath();
+        this.checkpointLines = Math.max(1, checkpointLines);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.retryDelay = Math.max(0, retryDelay);
+        this.shutdownTimeout = Math.max(0, shutdownTimeout);
+        this.processed = files(meterRegistry, "processed");
+        this.failed = files(meterRegistry, "failed");
+        this.checkpointed = files(meterRegistry, "checkpointed");
+        this.pickup = Timer.builder("hl7.watch.pickup")
+                .description("Time from the creation of an input file to its file event")
+                .register(meterRegistry);
+        Gauge.builder("hl7.watch.pending", pending, BlockingQueue::size)
+                .description("Input files waiting to be sent to the route")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void onCamelContextStarted(CamelContext context, boolean alreadyStarted) throws Exception {
+        Files.createDirectories(directory);
+        loadCheckpoint();
+        producer = camelContext.getEndpoint(ENDPOINT).createAsyncProducer();
+        ServiceHelper.startService(producer);
+        watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+        running = true;
+        executor = camelContext.getExecutorServiceManager().newScheduledThreadPool(this, "InputWatcher", 3);
+        executor.execute(this::watch);
+        executor.execute(this::dispatch);
+    }
+
+    @PreDestroy
+    public void shutdown() throws IOException {
+        running = false;
+        if (watchService != null) {
+            watchService.close();
+        }
+        if (executor != null) {
+            camelContext.getExecutorServiceManager().shutdownNow(executor);
+            // every permit back means no file is in progress any more
+            try {
+                if (!inFlight.tryAcquire(maxInFlight, shutdownTimeout, TimeUnit.MILLISECONDS)) {
+                    LOG.warn("{} input files still in progress after {} ms, they are processed again at the next start",
+                            maxInFlight - inFlight.availablePermits(), shutdownTimeout);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        ServiceHelper.stopService(producer);
+        synchronized (checkpoint) {
+            if (checkpointWriter != null) {
+                checkpointWriter.close();
+                checkpointWriter = null;
+            }
+        }
+    }
+
+    // Catch-up scan, then the events of the directory
+    private void watch() {
+        long start = System.nanoTime();
+        int backlog = scan();
+        LOG.info("Watching {}, {} files found by the catch-up scan in {} ms", directory, backlog,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        try {
+            while (running) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        LOG.warn("File events of {} overflowed, scanning the directory again", directory);
+                        scan();
+                    } else {
+                        queue(directory.resolve((Path) event.context()), true);
+                    }
+                }
+                if (!key.reset()) {
+                    LOG.error("{} cannot be watched any more, new files are not processed", directory);
+                    return;
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // stopping
+        }
+    }
+
+    private int scan() {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                if (queue(file, false)) {
+                    count++;
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Cannot scan {}: {}", directory, e.getMessage(), e);
+        }
+        return count;
+    }
+
+    private boolean queue(Path file, boolean created) {
+        String name = file.getFileName().toString();
+        if (name.startsWith(".") || !Files.isRegularFile(file) || !queued.add(name)) {
+            return false;
+        }
+        if (created) {
+            try {
+                long age = System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis();
+                pickup.record(Math.max(0, age), TimeUnit.MILLISECONDS);
+            } catch (IOException e) {
+                // gone already, the dispatcher skips it
+            }
+        }
+        pending.add(file);
+        return true;
+    }
+
+    // Sends the queued files to the route, in order
+    private void dispatch() {
+        try {
+            while (running) {
+                Path file = pending.take();
+                inFlight.acquire();
+                send(file);
+            }
+        } catch (InterruptedException e) {
+            // stopping
+        }
+    }
+
+    private void send(Path file) {
+        String name = file.getFileName().toString();
+        String key;
+        byte[] body;
+        long size;
+        long modified;
+        try {
+            size = Files.size(file);
+            modified = Files.getLastModifiedTime(file).toMillis();
+            key = name + '\t' + size + '\t' + modified;
+            if (checkpoint.contains(key)) {
+                // processed before a crash, not moved yet
+                checkpointed.increment();
+                move(file);
+                done(key);
+                queued.remove(name);
+                inFlight.release();
+                return;
+            }
+            body = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            queued.remove(name);
+            inFlight.release();
+            return;
+        } catch (IOException e) {
+            LOG.warn("Cannot read {}: {}", file, e.getMessage());
+            retry(file);
+            return;
+        }
+
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setBody(body);
+        exchange.getIn().setHeader(Exchange.FILE_NAME, name);
+        exchange.getIn().setHeader(Exchange.FILE_NAME_ONLY, name);
+        exchange.getIn().setHeader(Exchange.FILE_PATH, file.toString());
+        exchange.getIn().setHeader(Exchange.FILE_LENGTH, size);
+        exchange.getIn().setHeader(Exchange.FILE_LAST_MODIFIED, modified);
+        producer.process(exchange, doneSync -> complete(file, key, exchange));
+    }
+
+    private void complete(Path file, String key, Exchange exchange) {
+        if (exchange.isFailed()) {
+            failed.increment();
+            LOG.warn("Processing of {} failed, retrying in {} ms: {}", file.getFileName(), retryDelay,
+                    exchange.getException() != null ? exchange.getException().getMessage() : "no exception");
+            retry(file);
+            return;
+        }
+        try {
+            synchronized (checkpoint) {
+                if (checkpointWriter != null) {
+                    checkpointWriter.write(key);
+                    checkpointWriter.newLine();
+                    checkpointWriter.flush();
+                    checkpointWritten++;
+                    checkpoint.add(key);
+                }
+            }
+            move(file);
+            done(key);
+            processed.increment();
+        } catch (IOException e) {
+            LOG.error("Cannot move the processed file {}: {}", file, e.getMessage());
+        } finally {
+            queued.remove(file.getFileName().toString());
+            inFlight.release();
+        }
+    }
+
+    private void retry(Path file) {
+        inFlight.release();
+        if (running) {
+            executor.schedule(() -> pending.add(file), retryDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // The entry is only needed until the file is moved. Rewrites the
+    // checkpoint with the entries left once it has grown long enough.
+    private void done(String key) throws IOException {
+        synchronized (checkpoint) {
+            checkpoint.remove(key);
+            if (checkpointWriter != null && checkpointWritten >= checkpointLines) {
+                checkpointWriter.close();
+                checkpointWriter = null;
+                writeCheckpoint(new ArrayList<>(checkpoint));
+            }
+        }
+    }
+
+    private void move(Path file) throws IOException {
+        Path done = directory.resolve(DONE);
+        Files.createDirectories(done);
+        Files.move(file, done.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Reads the checkpoint and keeps the entries of the files still in the
+    // directory, the others are moved already
+    private void loadCheckpoint() throws IOException {
+        Files.createDirectories(checkpointFile.getParent());
+        List<String> kept = new ArrayList<>();
+        if (Files.exists(checkpointFile)) {
+            for (String line : Files.readAllLines(checkpointFile, StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab > 0 && Files.exists(directory.resolve(line.substring(0, tab)))) {
+                    kept.add(line);
+                }
+            }
+        }
+        synchronized (checkpoint) {
+            checkpoint.addAll(kept);
+            writeCheckpoint(kept);
+        }
+    }
+
+    // Replaces the checkpoint with the entries and opens it for appending,
+    // must be called holding the checkpoint lock
+    private void writeCheckpoint(List<String> entries) throws IOException {
+        Path compacted = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        Files.write(compacted, entries, StandardCharsets.UTF_8);
+        Files.move(compacted, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpointWriter = Files.newBufferedWriter(checkpointFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        checkpointWritten = entries.size();
+    }
+
+    private static Counter files(MeterRegistry meterRegistry, String outcome) {
+        return Counter.builder("hl7.watch.files")
+                .description("Input files handled by the directory watcher")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,71 @@
+package sample.camel.processors;
+
+import org.apache.camel.spi.IdempotentRepository;
+import org.apache.camel.support.service.ServiceHelper;
+import org.apache.camel.support.service.ServiceSupport;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * An IdempotentRepository that counts the duplicates found by the repository
+ * it wraps.
+ * <p/>
+ * Every time the idempotent consumer adds a key, the result is counted: a key
+ * that was already there is a hit (a duplicate message) and a new key is a
+ * miss. The counters are published as &lt;name&gt;.hits and &lt;name&gt;.misses,
+ * see /actuator/metrics.
+ */
+public class MeteredIdempotentRepository extends ServiceSupport implements IdempotentRepository {
+
+    private final IdempotentRepository delegate;
+    private final Counter hits;
+    private final Counter misses;
+
+    public MeteredIdempotentRepository(IdempotentRepository delegate, MeterRegistry meterRegistry, String name) {
+        this.delegate = delegate;
+        this.hits = Counter.builder(name + ".hits")
+                .description("Keys already in the repository, duplicate messages")
+                .register(meterRegistry);
+        this.misses = Counter.builder(name + ".misses")
+                .description("Keys added to the repository, new messages")
+                .register(meterRegistry);
+    }
+
+    @Override
+    public boolean add(String key) {
+        boolean added = delegate.add(key);
+        (added ? misses : hits).increment();
+        return added;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return delegate.contains(key);
+    }
+
+    @Override
+    public boolean remove(String key) {
+        return delegate.remove(key);
+    }
+
+    @Override
+    public boolean confirm(String key) {
+        return delegate.confirm(key);
+    }
+
+    @Override
+    public void clear() {
+        delegate.clear();
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        ServiceHelper.startService(delegate);
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        ServiceHelper.stopService(delegate);
+    }
+}
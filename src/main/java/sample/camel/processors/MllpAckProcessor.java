@@ -0,0 +1,49 @@
+package sample.camel.processors;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.springframework.stereotype.Component;
+
+import sample.camel.hl7.Hl7AckBuilder;
+import sample.camel.hl7.MshHeader;
+
+/**
+ * A Camel Processor that replaces the body with the HL7 acknowledgement to
+ * send back to an MLLP sender.
+ * <p/>
+ * The acknowledgement is built from the MshHeader that VerifyHl7Type left in
+ * the exchange property HL7MshHeader, so the original message is not parsed
+ * again. The acknowledgement code depends on the result of the pipeline:
+ * <ul>
+ * <li>AA when the HTTP response code header is 200, or 202 when the resource
+ * was kept in the FhirSpool to be sent later.</li>
+ * <li>AR when it is 400 (unsupported message type) or the MSH could not be
+ * read.</li>
+ * <li>AE in any other case, for example when the FHIR server failed.</li>
+ * </ul>
+ * The text of the pipeline result, or of the exception, is sent in MSA-3.
+ */
+@Component("mllpAckProcessor")
+public class MllpAckProcessor implements Processor {
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        MshHeader msh = exchange.getProperty(VerifyHl7Type.MSH_HEADER, MshHeader.class);
+        Exception exception = exchange.getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class);
+        String code = exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE, String.class);
+
+        String ack;
+        if (msh == null) {
+            ack = Hl7AckBuilder.reject(exception != null ? exception.getMessage() : "Cannot read the MSH segment");
+        } else if (exception != null) {
+            ack = Hl7AckBuilder.build(msh, Hl7AckBuilder.ERROR, exception.getMessage());
+        } else if ("200".equals(code) || "202".equals(code)) {
+            ack = Hl7AckBuilder.build(msh, Hl7AckBuilder.ACCEPT, null);
+        } else if ("400".equals(code)) {
+            ack = Hl7AckBuilder.build(msh, Hl7AckBuilder.REJECT, exchange.getIn().getBody(String.class));
+        } else {
+            ack = Hl7AckBuilder.build(msh, Hl7AckBuilder.ERROR, exchange.getIn().getBody(String.class));
+        }
+        exchange.getIn().setBody(ack);
+    }
+}
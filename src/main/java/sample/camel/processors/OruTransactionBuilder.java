@@ -0,0 +1,450 @@
+package sample.camel.processors;
+
+import java.math.BigDecimal;
+import java.time.ZoneId;
+import java.util.UUID;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DiagnosticReport;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.TimeType;
+import org.hl7.fhir.r4.model.Type;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.model.api.TemporalPrecisionEnum;
+import ca.uhn.hl7v2.HL7Exception;
+import sample.camel.fhir.FhirShards;
+import sample.camel.fhir.FhirShards;
+import sample.camel.fhir.PatientChangeCache;
+import sample.camel.hl7.Hl7FieldPath;
+import sample.camel.hl7.Hl7Timestamps;
+import sample.camel.hl7.RawHl7Message;
+import sample.camel.mapping.Hl7Mapping;
+import sample.camel.mapping.Hl7MappingRegistry;
+
+/**
+ * A Camel Processor that converts an ORU^R01 message to a FHIR transaction
+ * Bundle with the Patient, one DiagnosticReport per OBR and one Observation
+ * per OBX, so the whole message is stored with a single request (see
+ * FhirTransactionSender).
+ * <p/>
+ * The segments are walked in order: an OBR starts a new DiagnosticReport and
+ * the OBX that follow it become Observations listed in its results. The
+ * Patient is built by the declarative mapping of ORU^R01 (oru-patient.yaml)
+ * and sent as a conditional create on its identifier (PID-3), so it is only
+ * created when the server does not know it yet. The other entries reference it
+ * by its urn:uuid full URL, which the server replaces with the ID of the
+ * created or existing Patient. With fhir.cache.enabled=true, when
+ * PatientChangeCache already knows the server ID of the patient on the shard
+ * the message goes to (see FhirShards), the entries reference it directly and
+ * no Patient entry is sent.
+ * <p/>
+ * The reports and observations have a business identifier: the filler order
+ * number (OBR-3, or ORC-3) for the DiagnosticReport, and the filler order
+ * number, OBX-1 and OBX-3 for each Observation. They are sent as conditional
+ * updates on it (PUT DiagnosticReport?identifier=...), so a message delivered
+ * again (spool replay, file retried, no duplicate check) updates the same
+ * resources instead of adding copies, and a corrected result (OBX-11=C)
+ * replaces the original. Without a filler order number there is nothing to
+ * recognise them by and they are created.
+ * <p/>
+ * The main values read:
+ * <ul>
+ * <li>OBR-3 (or ORC-3) filler order number, OBR-4 service, OBR-7 observation
+ * time, OBR-22 report time, OBR-24 section and OBR-25 result status.</li>
+ * <li>OBX-2 value type, OBX-3 observation code, OBX-5 value, OBX-6 units,
+ * OBX-7 reference range, OBX-8 abnormal flag, OBX-11 result status and OBX-14
+ * observation time.</li>
+ * </ul>
+ * NM values become a Quantity, CE/CWE a CodeableConcept, DT/TS/DTM a dateTime,
+ * TM a time and any other type a string, with the repetitions of OBX-5 on
+ * separate lines. The values are read straight from the raw text, see
+ * RawHl7Message.
+ */
+@Component("oruTransactionBuilder")
+public class OruTransactionBuilder implements Processor {
+
+    private static final String LOINC = "http://loinc.org";
+    private static final String SNOMED = "http://snomed.info/sct";
+    private static final String UCUM = "http://unitsofmeasure.org";
+    private static final String INTERPRETATION = "http://terminology.hl7.org/CodeSystem/v3-ObservationInterpretation";
+
+    private static final Hl7FieldPath PATIENT_ID = Hl7FieldPath.compile("PID-3.1");
+    private static final Hl7FieldPath ORC_FILLER = Hl7FieldPath.compile("ORC-3.1");
+    private static final Hl7FieldPath OBR_FILLER = Hl7FieldPath.compile("OBR-3.1");
+    private static final Hl7FieldPath OBR_CODE = Hl7FieldPath.compile("OBR-4.1");
+    private static final Hl7FieldPath OBR_DISPLAY = Hl7FieldPath.compile("OBR-4.2");
+    private static final Hl7FieldPath OBR_SYSTEM = Hl7FieldPath.compile("OBR-4.3");
+    private static final Hl7FieldPath OBR_OBSERVED = Hl7FieldPath.compile("OBR-7.1");
+    private static final Hl7FieldPath OBR_REPORTED = Hl7FieldPath.compile("OBR-22.1");
+    private static final Hl7FieldPath OBR_SECTION = Hl7FieldPath.compile("OBR-24");
+    private static final Hl7FieldPath OBR_STATUS = Hl7FieldPath.compile("OBR-25");
+    private static final Hl7FieldPath OBX_SET_ID = Hl7FieldPath.compile("OBX-1");
+    private static final Hl7FieldPath OBX_TYPE = Hl7FieldPath.compile("OBX-2");
+    private static final Hl7FieldPath OBX_CODE = Hl7FieldPath.compile("OBX-3.1");
+    private static final Hl7FieldPath OBX_DISPLAY = Hl7FieldPath.compile("OBX-3.2");
+    private static final Hl7FieldPath OBX_SYSTEM = Hl7FieldPath.compile("OBX-3.3");
+    private static final Hl7FieldPath OBX_VALUE_CODE = Hl7FieldPath.compile("OBX-5.1");
+    private static final Hl7FieldPath OBX_VALUE_DISPLAY = Hl7FieldPath.compile("OBX-5.2");
+    private static final Hl7FieldPath OBX_VALUE_SYSTEM = Hl7FieldPath.compile("OBX-5.3");
+    private static final Hl7FieldPath OBX_UNIT = Hl7FieldPath.compile("OBX-6.1");
+    private static final Hl7FieldPath OBX_UNIT_TEXT = Hl7FieldPath.compile("OBX-6.2");
+    private static final Hl7FieldPath OBX_UNIT_SYSTEM = Hl7FieldPath.compile("OBX-6.3");
+    private static final Hl7FieldPath OBX_RANGE = Hl7FieldPath.compile("OBX-7");
+    private static final Hl7FieldPath OBX_FLAG = Hl7FieldPath.compile("OBX-8");
+    private static final Hl7FieldPath OBX_STATUS = Hl7FieldPath.compile("OBX-11");
+    private static final Hl7FieldPath OBX_OBSERVED = Hl7FieldPath.compile("OBX-14.1");
+    // OBX-5 repetitions, text results are often sent one line per repetition
+    private static final int MAX_VALUE_REPETITIONS = 64;
+    private static final Hl7FieldPath[] OBX_VALUES = new Hl7FieldPath[MAX_VALUE_REPETITIONS];
+    static {
+        for (int i = 0; i < MAX_VALUE_REPETITIONS; i++) {
+            OBX_VALUES[i] = Hl7FieldPath.compile("OBX-5(" + (i + 1) + ")");
+        }
+    }
+
+    private final Hl7MappingRegistry mappings;
+    private final PatientChangeCache cache;
+    private final FhirShards shards;
+    private final ZoneId zone;
+
+    public OruTransactionBuilder(Hl7MappingRegistry hl7Mappings, PatientChangeCache patientChangeCache,
+            FhirShards fhirShards,
+            @Value("${fhir.cache.enabled:false}") boolean cacheEnabled,
+            @Value("${hl7.mappings.time-zone:}") String timeZone) {
+        this.mappings = hl7Mappings;
+        this.shards = fhirShards;
+        // a store left by an earlier run with the cache on may be stale
+        this.cache = cacheEnabled ? patientChangeCache : null;
+        this.zone = timeZone.isBlank() ? ZoneId.systemDefault() : ZoneId.of(timeZone.trim());
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        String type = exchange.getIn().getHeader(VerifyHl7Type.MESSAGE_TYPE, String.class);
+        String event = exchange.getIn().getHeader(VerifyHl7Type.TRIGGER_EVENT, String.class);
+        Hl7Mapping mapping = mappings.get(type, event);
+        if (mapping == null) {
+            throw new HL7Exception("No HL7 mapping for message type " + type + "^" + event);
+        }
+        RawHl7Message message = new RawHl7Message(exchange.getIn().getMandatoryBody(String.class));
+        // the whole Bundle goes to the FHIR server of the patient, see FhirShards
+        exchange.getIn().setHeader(FhirShards.SHARD_KEY, message.get(PATIENT_ID));
+        exchange.getIn().setBody(build(message, (Patient) mapping.map(message)));
+    }
+
+    /**
+     * Builds the transaction Bundle of the message, the Patient is the one
+     * built by the mapping.
+     */
+    public Bundle build(RawHl7Message message, Patient patient) throws HL7Exception {
+        String patientId = message.get(PATIENT_ID);
+        if (patientId == null) {
+            throw new HL7Exception("The ORU message has no patient identifier (PID-3)");
+        }
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+
+        Reference subject;
+        PatientChangeCache.Entry known = cache != null ? cache.get("Patient/" + patientId) : null;
+        if (known != null && known.shard().equals(shards.locate(patientId).getBaseUrl())) {
+            subject = new Reference("Patient/" + known.serverId());
+        } else {
+            patient.setIdElement(null);
+            subject = new Reference(add(bundle, patient, PatientChangeCache.identifierSearch(patientId), null));
+        }
+
+        DiagnosticReport report = null;
+        String orderFiller = null;
+        String filler = null;
+        String reportTime = null;
+        for (int i = 0; i < message.getSegmentCount(); i++) {
+            switch (message.getSegmentName(i)) {
+            case "ORC":
+                orderFiller = message.getInSegment(i, ORC_FILLER);
+                break;
+            case "OBR":
+                reportTime = message.getInSegment(i, OBR_OBSERVED);
+                filler = message.getInSegment(i, OBR_FILLER);
+                if (filler == null) {
+                    filler = orderFiller;
+                }
+                report = report(message, i, filler, subject);
+                add(bundle, report, null, filler);
+                break;
+            case "OBX":
+                Observation observation = observation(message, i, reportTime, subject);
+                String identifier = observationIdentifier(message, i, filler);
+                if (identifier != null) {
+                    observation.addIdentifier().setValue(identifier);
+                }
+                String url = add(bundle, observation, null, identifier);
+                if (report != null) {
+                    report.addResult(new Reference(url));
+                }
+                break;
+            default:
+                break;
+            }
+        }
+        return bundle;
+    }
+
+    private DiagnosticReport report(RawHl7Message message, int segment, String filler, Reference subject) {
+        DiagnosticReport report = new DiagnosticReport();
+        if (filler != null) {
+            report.addIdentifier().setValue(filler);
+        }
+        report.setStatus(reportStatus(message.getInSegment(segment, OBR_STATUS)));
+        report.setCode(concept(message.getInSegment(segment, OBR_CODE), message.getInSegment(segment, OBR_DISPLAY),
+                message.getInSegment(segment, OBR_SYSTEM)));
+        String section = message.getInSegment(segment, OBR_SECTION);
+        if (section != null) {
+            report.addCategory().setText(section);
+        }
+        report.setSubject(subject);
+        DateTimeType effective = dateTime(message.getInSegment(segment, OBR_OBSERVED));
+        if (effective != null) {
+            report.setEffective(effective);
+        }
+        DateTimeType issued = dateTime(message.getInSegment(segment, OBR_REPORTED));
+        if (issued != null && issued.getPrecision().compareTo(TemporalPrecisionEnum.SECOND) >= 0) {
+            report.setIssuedElement(new InstantType(issued.getValueAsString()));
+        }
+        return report;
+    }
+
+    // [OBR-3]-[OBX-1]-[OBX-3], null without a filler order number
+    private static String observationIdentifier(RawHl7Message message, int segment, String filler) {
+        if (filler == null) {
+            return null;
+        }
+        StringBuilder identifier = new StringBuilder(filler);
+        String setId = message.getInSegment(segment, OBX_SET_ID);
+        identifier.append('-').append(setId != null ? setId : String.valueOf(segment));
+        String code = message.getInSegment(segment, OBX_CODE);
+        if (code != null) {
+            identifier.append('-').append(code);
+        }
+        return identifier.toString();
+    }
+
+    private Observation observation(RawHl7Message message, int segment, String reportTime, Reference subject) {
+        Observation observation = new Observation();
+        observation.setStatus(observationStatus(message.getInSegment(segment, OBX_STATUS)));
+        observation.setCode(concept(message.getInSegment(segment, OBX_CODE),
+                message.getInSegment(segment, OBX_DISPLAY), message.getInSegment(segment, OBX_SYSTEM)));
+        observation.setSubject(subject);
+        String observed = message.getInSegment(segment, OBX_OBSERVED);
+        DateTimeType effective = dateTime(observed != null ? observed : reportTime);
+        if (effective != null) {
+            observation.setEffective(effective);
+        }
+        Type value = value(message, segment);
+        if (value != null) {
+            observation.setValue(value);
+        }
+        String range = message.getInSegment(segment, OBX_RANGE);
+        if (range != null) {
+            observation.addReferenceRange(referenceRange(range, message.getInSegment(segment, OBX_UNIT)));
+        }
+        String flag = message.getInSegment(segment, OBX_FLAG);
+        if (flag != null) {
+            observation.addInterpretation().addCoding().setSystem(INTERPRETATION).setCode(flag);
+        }
+        return observation;
+    }
+
+    private Type value(RawHl7Message message, int segment) {
+        String valueType = message.getInSegment(segment, OBX_TYPE);
+        String value = message.getInSegment(segment, OBX_VALUE_CODE);
+        if (value == null && !"CE".equals(valueType) && !"CWE".equals(valueType)) {
+            return null;
+        }
+        switch (valueType == null ? "" : valueType) {
+        case "NM":
+            try {
+                Quantity quantity = new Quantity().setValue(new BigDecimal(value.trim()));
+                String unit = message.getInSegment(segment, OBX_UNIT);
+                if (unit != null) {
+                    String text = message.getInSegment(segment, OBX_UNIT_TEXT);
+                    quantity.setUnit(text != null ? text : unit);
+                    if ("UCUM".equalsIgnoreCase(message.getInSegment(segment, OBX_UNIT_SYSTEM))) {
+                        quantity.setSystem(UCUM).setCode(unit);
+                    }
+                }
+                return quantity;
+            } catch (NumberFormatException e) {
+                return new StringType(value);
+            }
+        case "CE":
+        case "CWE":
+        case "CNE":
+            String display = message.getInSegment(segment, OBX_VALUE_DISPLAY);
+            if (value == null && display == null) {
+                return null;
+            }
+            return concept(value, display, message.getInSegment(segment, OBX_VALUE_SYSTEM));
+        case "DT":
+        case "TS":
+        case "DTM":
+            DateTimeType dateTime = dateTime(value);
+            return dateTime != null ? dateTime : new StringType(value);
+        case "TM":
+            return value.length() >= 4
+                    ? new TimeType(value.substring(0, 2) + ":" + value.substring(2, 4) + ":"
+                            + (value.length() >= 6 ? value.substring(4, 6) : "00"))
+                    : new StringType(value);
+        default:
+            // ST, TX, FT and anything else: the text, one line per repetition
+            StringBuilder text = new StringBuilder();
+            for (Hl7FieldPath repetition : OBX_VALUES) {
+                String line = message.getInSegment(segment, repetition);
+                if (line == null) {
+                    break;
+                }
+                if (text.length() > 0) {
+                    text.append('\n');
+                }
+                text.append(line);
+            }
+            return new StringType(text.toString());
+        }
+    }
+
+    // 3.5-5.0 becomes low and high, anything else (>60, negative) is text only
+    private static Observation.ObservationReferenceRangeComponent referenceRange(String range, String unit) {
+        Observation.ObservationReferenceRangeComponent component = new Observation.ObservationReferenceRangeComponent();
+        component.setText(range);
+        int dash = range.indexOf('-', 1);
+        if (dash > 0) {
+            try {
+                BigDecimal low = new BigDecimal(range.substring(0, dash).trim());
+                BigDecimal high = new BigDecimal(range.substring(dash + 1).trim());
+                component.getLow().setValue(low).setUnit(unit);
+                component.getHigh().setValue(high).setUnit(unit);
+            } catch (NumberFormatException e) {
+                // text only
+            }
+        }
+        return component;
+    }
+
+    private static CodeableConcept concept(String code, String display, String system) {
+        CodeableConcept concept = new CodeableConcept();
+        if (code != null) {
+            Coding coding = concept.addCoding().setCode(code).setDisplay(display);
+            String uri = codeSystem(system);
+            if (uri != null) {
+                coding.setSystem(uri);
+            }
+        }
+        concept.setText(display != null ? display : code != null ? code : "unknown");
+        return concept;
+    }
+
+    private static String codeSystem(String hl7System) {
+        if (hl7System == null) {
+            return null;
+        }
+        switch (hl7System.toUpperCase()) {
+        case "LN":
+            return LOINC;
+        case "SCT":
+        case "SNM":
+        case "SNM3":
+            return SNOMED;
+        case "UCUM":
+            return UCUM;
+        default:
+            return null;
+        }
+    }
+
+    private static Observation.ObservationStatus observationStatus(String status) {
+        switch (status == null || status.isEmpty() ? ' ' : Character.toUpperCase(status.charAt(0))) {
+        case 'F':
+            return Observation.ObservationStatus.FINAL;
+        case 'P':
+        case 'R':
+        case 'S':
+            return Observation.ObservationStatus.PRELIMINARY;
+        case 'C':
+            return Observation.ObservationStatus.CORRECTED;
+        case 'X':
+            return Observation.ObservationStatus.CANCELLED;
+        case 'I':
+            return Observation.ObservationStatus.REGISTERED;
+        case 'D':
+        case 'W':
+            return Observation.ObservationStatus.ENTEREDINERROR;
+        default:
+            return Observation.ObservationStatus.UNKNOWN;
+        }
+    }
+
+    private static DiagnosticReport.DiagnosticReportStatus reportStatus(String status) {
+        switch (status == null || status.isEmpty() ? ' ' : Character.toUpperCase(status.charAt(0))) {
+        case 'F':
+            return DiagnosticReport.DiagnosticReportStatus.FINAL;
+        case 'P':
+        case 'R':
+            return DiagnosticReport.DiagnosticReportStatus.PRELIMINARY;
+        case 'A':
+            return DiagnosticReport.DiagnosticReportStatus.PARTIAL;
+        case 'C':
+            return DiagnosticReport.DiagnosticReportStatus.CORRECTED;
+        case 'X':
+            return DiagnosticReport.DiagnosticReportStatus.CANCELLED;
+        case 'I':
+        case 'O':
+            return DiagnosticReport.DiagnosticReportStatus.REGISTERED;
+        default:
+            return DiagnosticReport.DiagnosticReportStatus.UNKNOWN;
+        }
+    }
+
+    private DateTimeType dateTime(String ts) {
+        if (ts == null) {
+            return null;
+        }
+        try {
+            return new DateTimeType(Hl7Timestamps.toFhirDateTime(ts, zone));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Adds an entry with a new urn:uuid full URL, returns the URL. With an
+    // identifier the entry is a conditional update on it, otherwise a POST.
+    private static String add(Bundle bundle, Resource resource, String ifNoneExist, String identifier) {
+        String url = "urn:uuid:" + UUID.randomUUID();
+        Bundle.BundleEntryRequestComponent request = bundle.addEntry()
+                .setFullUrl(url)
+                .setResource(resource)
+                .getRequest();
+        if (identifier != null) {
+            request.setMethod(Bundle.HTTPVerb.PUT)
+                    .setUrl(resource.fhirType() + "?" + PatientChangeCache.identifierSearch(identifier));
+        } else {
+            request.setMethod(Bundle.HTTPVerb.POST)
+                    .setUrl(resource.fhirType());
+        }
+        if (ifNoneExist != null) {
+            request.setIfNoneExist(ifNoneExist);
+        }
+        return url;
+    }
+}
@@ -1,7 +1,12 @@
 package sample.camel.processors;
 
+import java.util.Map;
+import java.util.TreeMap;
+
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
 import org.springframework.stereotype.Component;
 
 import ca.uhn.fhir.rest.api.MethodOutcome;
@@ -12,16 +17,39 @@ import ca.uhn.fhir.rest.api.MethodOutcome;
  * If the MethodOutcome is null or does not contain an ID, it sets an appropriate
  * message indicating that the creation was successful but the response was incomplete.
  * It also sets the HTTP response code in the message header.
+ * When the resource was uploaded inside a transaction Bundle (see FhirTransactionBatcher)
+ * the body is the Bundle entry response of this message instead, and its status and
+ * location are used to build the same kind of result.
+ * The versioned ID of the resource on the server (for example Patient/123/_history/2)
+ * is kept in the exchange property FhirResourceId, see PatientChangeRecorder. An update
+ * (see FhirConditionalUpdater) is reported as updated instead of created.
+ * The transaction-response Bundle of a whole message (see FhirTransactionSender)
+ * is reported as the number of resources stored per type, the FhirResourceId
+ * is then the first DiagnosticReport, or the first resource.
  */
 @Component("outcomeProcessor")
 public class OutcomeProcessor implements Processor {
+
+    public static final String RESOURCE_ID = "FhirResourceId";
+
     @Override
     public void process(Exchange exchange) throws Exception {
+        Object body = exchange.getIn().getBody();
+        if (body instanceof Bundle.BundleEntryResponseComponent) {
+            processEntryResponse(exchange, (Bundle.BundleEntryResponseComponent) body);
+            return;
+        }
+        if (body instanceof Bundle) {
+            processTransactionResponse(exchange, (Bundle) body);
+            return;
+        }
         MethodOutcome outcome = exchange.getIn().getBody(MethodOutcome.class);
         if (outcome != null && outcome.getId() != null) {
             // Access the ID of the created resource.
             String createdId = outcome.getId().getIdPart();
-            exchange.getIn().setBody("Created Patient with ID: " + createdId + " In the FHIR server.");
+            exchange.setProperty(RESOURCE_ID, outcome.getId().getValue());
+            String action = Boolean.FALSE.equals(outcome.getCreated()) ? "Updated" : "Created";
+            exchange.getIn().setBody(action + " Patient with ID: " + createdId + " In the FHIR server.");
             exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "200");
         } else {
             exchange.getIn()
@@ -29,4 +57,53 @@ public class OutcomeProcessor implements Processor {
             exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "504");
         }
     }
+
+    // One entry per resource of the message, in the order of the request
+    private void processTransactionResponse(Exchange exchange, Bundle response) {
+        Map<String, Integer> stored = new TreeMap<>();
+        String resourceId = null;
+        for (Bundle.BundleEntryComponent entry : response.getEntry()) {
+            Bundle.BundleEntryResponseComponent entryResponse = entry.getResponse();
+            String status = entryResponse.getStatus() != null ? entryResponse.getStatus().trim() : "";
+            if (!status.startsWith("2")) {
+                exchange.getIn().setBody("Message rejected by the FHIR server: " + status);
+                exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, status.isEmpty() ? "502" : status.split(" ")[0]);
+                return;
+            }
+            if (entryResponse.hasLocation()) {
+                IdType id = new IdType(entryResponse.getLocation());
+                stored.merge(id.getResourceType(), 1, Integer::sum);
+                if (resourceId == null || ("DiagnosticReport".equals(id.getResourceType())
+                        && !resourceId.startsWith("DiagnosticReport/"))) {
+                    resourceId = entryResponse.getLocation();
+                }
+            }
+        }
+        if (resourceId != null) {
+            exchange.setProperty(RESOURCE_ID, resourceId);
+        }
+        exchange.getIn().setBody("Stored " + stored + " in the FHIR server.");
+        exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "200");
+    }
+
+    // The entry status looks like "201 Created" and the location like
+    // "Patient/123/_history/1".
+    private void processEntryResponse(Exchange exchange, Bundle.BundleEntryResponseComponent response) {
+        String status = response.getStatus() != null ? response.getStatus().trim() : "";
+        String code = status.isEmpty() ? "" : status.split(" ")[0];
+        if (code.startsWith("2") && response.hasLocation()) {
+            String createdId = new IdType(response.getLocation()).getIdPart();
+            exchange.setProperty(RESOURCE_ID, response.getLocation());
+            String action = "201".equals(code) ? "Created" : "Updated";
+            exchange.getIn().setBody(action + " Patient with ID: " + createdId + " In the FHIR server.");
+            exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "200");
+        } else if (code.startsWith("2")) {
+            exchange.getIn()
+                    .setBody("Patient created successfully, but the server response was incomplete.");
+            exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, "504");
+        } else {
+            exchange.getIn().setBody("Patient rejected by the FHIR server: " + status);
+            exchange.getIn().setHeader(Exchange.HTTP_RESPONSE_CODE, code.isEmpty() ? "502" : code);
+        }
+    }
 }
@@ -0,0 +1,122 @@
+package sample.camel.processors;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.hl7.fhir.r4.model.Patient;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import sample.camel.fhir.FhirJsonPayload;
+import sample.camel.fhir.FhirShards;
+import sample.camel.fhir.PatientChangeCache;
+
+/**
+ * A Camel Processor that compares the Patient in the body with the last one
+ * sent to the FHIR server for the same patient, see PatientChangeCache.
+ * <p/>
+ * The mappers set the patient identifier (PID-3) as the id of the Patient, it
+ * is the key of the cache. The result is left in the exchange property
+ * FhirChange:
+ * <ul>
+ * <li>new: the patient is not in the cache, or was written to another shard
+ * than the one it goes to now (see FhirShards). Its id is removed and the Patient
+ * is sent as a conditional update on its identifier, which updates the Patient
+ * already on the server (sent before the cache was lost or the entry evicted)
+ * or creates it.</li>
+ * <li>unchanged: the Patient is identical to the last one sent, nothing has
+ * to be sent.</li>
+ * <li>changed: the Patient is different, its id is replaced by the server ID
+ * and the version to send in If-Match is left in the property FhirIfMatch.</li>
+ * </ul>
+ * The conditional update URL, Patient?identifier=[PID-3.1], is left in the
+ * property FhirCondition for both new and changed Patients: when the If-Match
+ * update of a changed one fails because the server copy moved on or is gone
+ * (412, 404 or 410, see isStale) the writers send it as a conditional update
+ * too, instead of failing or creating a second Patient.
+ * <p/>
+ * A Patient already serialized by Hl7JsonWriter (FhirJsonPayload) is handled
+ * the same way, a changed one is replaced by a copy with the server ID.
+ * Bodies that are not a Patient with an id are always new. The hash of the
+ * Patient is kept in the property FhirResourceHash for PatientChangeRecorder.
+ */
+@Component("patientChangeDetector")
+public class PatientChangeDetector implements Processor {
+
+    public static final String CHANGE = "FhirChange";
+    public static final String CACHE_KEY = "FhirCacheKey";
+    public static final String RESOURCE_HASH = "FhirResourceHash";
+    public static final String IF_MATCH = "FhirIfMatch";
+    public static final String CONDITION = "FhirCondition";
+
+    public static final String NEW = "new";
+    public static final String CHANGED = "changed";
+    public static final String UNCHANGED = "unchanged";
+
+    private final PatientChangeCache cache;
+    private final FhirShards shards;
+
+    public PatientChangeDetector(PatientChangeCache patientChangeCache, FhirShards fhirShards) {
+        this.cache = patientChangeCache;
+        this.shards = fhirShards;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        Object body = exchange.getIn().getBody();
+        String id;
+        String hash;
+        if (body instanceof Patient && ((Patient) body).getIdElement().hasIdPart()) {
+            id = ((Patient) body).getIdElement().getIdPart();
+            hash = cache.hash((Patient) body);
+        } else if (body instanceof FhirJsonPayload && "Patient".equals(((FhirJsonPayload) body).getResourceType())
+                && ((FhirJsonPayload) body).getId() != null) {
+            id = ((FhirJsonPayload) body).getId();
+            hash = cache.hash((FhirJsonPayload) body);
+        } else {
+            exchange.setProperty(CHANGE, NEW);
+            return;
+        }
+        String key = "Patient/" + id;
+        exchange.setProperty(CACHE_KEY, key);
+        exchange.setProperty(RESOURCE_HASH, hash);
+        exchange.setProperty(CONDITION, "Patient?" + PatientChangeCache.identifierSearch(id));
+
+        PatientChangeCache.Entry last = cache.get(key);
+        if (last != null && !last.shard().equals(shards.locate(id).getBaseUrl())) {
+            // the server ID and version belong to another shard, before or
+            // after a failover: find the Patient of this one by its identifier
+            last = null;
+        }
+        if (last == null) {
+            // the server chooses the id, or keeps the one it gave before
+            if (body instanceof Patient) {
+                ((Patient) body).setIdElement(null);
+            } else {
+                exchange.getIn().setBody(((FhirJsonPayload) body).withoutId());
+            }
+            exchange.setProperty(CHANGE, NEW);
+        } else if (last.hash().equals(hash)) {
+            exchange.setProperty(CHANGE, UNCHANGED);
+        } else {
+            if (body instanceof Patient) {
+                ((Patient) body).setId(last.serverId());
+            } else {
+                exchange.getIn().setBody(((FhirJsonPayload) body).withId(last.serverId()));
+            }
+            exchange.setProperty(CHANGE, CHANGED);
+            exchange.setProperty(IF_MATCH, last.version());
+        }
+    }
+
+    /**
+     * Tells whether the If-Match update of a changed Patient failed because the
+     * version or the resource the cache knew is no longer on the server.
+     */
+    public static boolean isStale(Throwable exception) {
+        if (!(exception instanceof BaseServerResponseException)) {
+            return false;
+        }
+        int status = ((BaseServerResponseException) exception).getStatusCode();
+        return status == 412 || status == 404 || status == 410;
+    }
+}
@@ -0,0 +1,62 @@
+package sample.camel.processors;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.hl7.fhir.r4.model.IdType;
+import org.springframework.stereotype.Component;
+
+import sample.camel.fhir.FhirShards;
+import sample.camel.fhir.PatientChangeCache;
+
+/**
+ * A Camel Processor that records the result of an upload in the
+ * PatientChangeCache, after OutcomeProcessor.
+ * <p/>
+ * When the server accepted the Patient (HTTP response code 200) the hash
+ * computed by PatientChangeDetector is stored with the server ID and version
+ * found by OutcomeProcessor in the exchange property FhirResourceId, and the
+ * shard it was written to (see FhirShards.writtenTo). When the
+ * upload failed the patient is removed from the cache, so the next message is
+ * sent in full again, as a conditional update on its identifier that finds the
+ * Patient already on the server (see PatientChangeDetector). An outage (see FhirCircuitBreaker.isOutage) leaves the
+ * cache as it is: the server resource did not change, and the spooled resource
+ * is still sent as an update of it.
+ */
+@Component("patientChangeRecorder")
+public class PatientChangeRecorder implements Processor {
+
+    private final PatientChangeCache cache;
+    private final FhirShards shards;
+
+    public PatientChangeRecorder(PatientChangeCache patientChangeCache, FhirShards fhirShards) {
+        this.cache = patientChangeCache;
+        this.shards = fhirShards;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        String key = exchange.getProperty(PatientChangeDetector.CACHE_KEY, String.class);
+        if (key == null) {
+            return;
+        }
+        Exception failure = exchange.getException() != null
+                ? exchange.getException()
+                : exchange.getProperty(Exchange.EXCEPTION_CAUGHT, Exception.class);
+        if (failure != null && FhirCircuitBreaker.isOutage(failure)) {
+            return;
+        }
+        String code = exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE, String.class);
+        String resourceId = exchange.getProperty(OutcomeProcessor.RESOURCE_ID, String.class);
+        String shard = shards.writtenTo(exchange);
+        if ("200".equals(code) && resourceId != null && shard != null) {
+            IdType id = new IdType(resourceId);
+            if (id.hasVersionIdPart()) {
+                cache.put(key, new PatientChangeCache.Entry(
+                        exchange.getProperty(PatientChangeDetector.RESOURCE_HASH, String.class),
+                        id.getIdPart(), id.getVersionIdPart(), shard));
+                return;
+            }
+        }
+        cache.remove(key);
+    }
+}
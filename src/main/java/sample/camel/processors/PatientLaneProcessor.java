@@ -0,0 +1,83 @@
+package sample.camel.processors;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.Exchange;
+import org.apache.camel.support.AsyncProcessorSupport;
+import org.apache.camel.support.ExchangeHelper;
+
+import ca.uhn.hl7v2.HL7Exception;
+import sample.camel.hl7.Hl7FieldPath;
+import sample.camel.hl7.RawHl7Message;
+
+/**
+ * A Camel AsyncProcessor that sends the exchange to an endpoint on the lane of
+ * its patient, see PatientLanes.
+ * <p/>
+ * The body is read once as a byte array and the lane is chosen on the patient
+ * identifier PID-3.1, the key of FhirShards and PatientChangeCache too. It is
+ * read from a copy normalized by Hl7Normalizer, so a message with other line
+ * ends, HTML entities or another assigning authority in PID-3 still lands on
+ * the lane of its patient. A message without a readable MSH has no key and is
+ * left to the pipeline to reject. The exchange is then sent to the target
+ * endpoint (for example direct:hl7) on the lane thread. The exchange is
+ * completed asynchronously, so the consumer thread is free to pick the next
+ * file or request as soon as the message is queued.
+ * <p/>
+ * The body itself is left as the raw byte array, which Hl7Normalizer and
+ * VerifyHl7Type read without any further conversion.
+ */
+public class PatientLaneProcessor extends AsyncProcessorSupport {
+
+    public static final String PATIENT_KEY = "HL7PatientKey";
+
+    private static final Hl7FieldPath PATIENT_ID = Hl7FieldPath.compile("PID-3.1");
+
+    private final PatientLanes lanes;
+    private final String targetUri;
+
+    public PatientLaneProcessor(PatientLanes lanes, String targetUri) {
+        this.lanes = lanes;
+        this.targetUri = targetUri;
+    }
+
+    @Override
+    public boolean process(Exchange exchange, AsyncCallback callback) {
+        String key;
+        try {
+            byte[] raw = exchange.getIn().getMandatoryBody(byte[].class);
+            exchange.getIn().setBody(raw);
+            key = patientId(raw, Charset.forName(ExchangeHelper.getCharsetName(exchange)));
+            exchange.setProperty(PATIENT_KEY, key);
+        } catch (Exception e) {
+            exchange.setException(e);
+            callback.done(true);
+            return true;
+        }
+
+        try {
+            lanes.submit(key, () -> {
+                try {
+                    lanes.getProducerTemplate().send(targetUri, exchange);
+                } finally {
+                    callback.done(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            exchange.setException(e);
+            callback.done(true);
+            return true;
+        }
+        return false;
+    }
+
+    private static String patientId(byte[] raw, Charset charset) {
+        try {
+            return new RawHl7Message(Hl7Normalizer.normalize(raw, 0, raw.length, charset)).get(PATIENT_ID);
+        } catch (HL7Exception e) {
+            return null;
+        }
+    }
+}
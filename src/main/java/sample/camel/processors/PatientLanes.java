@@ -0,0 +1,142 @@
+package sample.camel.processors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.ProducerTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * A fixed set of ordered lanes that run the processing of HL7 messages.
+ * <p/>
+ * Each lane is a single thread with a bounded queue, so the work submitted to
+ * one lane runs in the order it was submitted, while the lanes run in
+ * parallel. PatientLaneProcessor hashes the patient identifier (PID-3.1) of a
+ * message to choose its lane: every message of a patient goes to the same lane
+ * and reaches the FHIR server in order, and a slow FHIR call only delays the
+ * patients sharing its lane.
+ * <p/>
+ * When a lane queue is full the caller waits for room, which slows down the
+ * file and REST consumers instead of buffering without limit.
+ * <p/>
+ * The number of lanes and the queue depth are set by the properties
+ * hl7.lanes.count and hl7.lanes.queue-depth. The backlog of every lane is
+ * published as the gauge hl7.lanes.backlog, tagged with the lane number, see
+ * /actuator/metrics/hl7.lanes.backlog.
+ * <p/>
+ * The lane threads come from a pool of the Camel ExecutorServiceManager, so
+ * they are virtual threads when camel.threads.virtual.enabled is set and are
+ * shut down like the other pools. Each lane is one task of that pool taking
+ * the work from its own queue, so it still runs one task at a time whatever
+ * the kind of pool.
+ */
+@Component("patientLanes")
+public class PatientLanes {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PatientLanes.class);
+
+    // Put in each queue on shutdown, the lane stops when it reaches it
+    private static final Runnable STOP = () -> {
+    };
+
+    private final CamelContext camelContext;
+    private final boolean enabled;
+    private final List<BlockingQueue<Runnable>> lanes = new ArrayList<>();
+    private final ExecutorService executor;
+    private final ProducerTemplate template;
+    private final AtomicInteger roundRobin = new AtomicInteger();
+    private volatile boolean running = true;
+
+    public PatientLanes(CamelContext camelContext, MeterRegistry meterRegistry,
+            @Value("${hl7.lanes.enabled:false}") boolean enabled,
+            @Value("${hl7.lanes.count:8}") int count,
+            @Value("${hl7.lanes.queue-depth:100}") int queueDepth) {
+        this.camelContext = camelContext;
+        this.enabled = enabled;
+        int size = Math.max(1, count);
+        this.executor = enabled
+                ? camelContext.getExecutorServiceManager().newFixedThreadPool(this, "PatientLane", size)
+                : null;
+        for (int i = 0; enabled && i < size; i++) {
+            BlockingQueue<Runnable> queue = new ArrayBlockingQueue<>(Math.max(1, queueDepth));
+            lanes.add(queue);
+            Gauge.builder("hl7.lanes.backlog", queue, BlockingQueue::size)
+                    .description("Messages waiting in the lane")
+                    .tag("lane", String.valueOf(i))
+                    .register(meterRegistry);
+            executor.execute(() -> run(queue));
+        }
+        this.template = enabled ? camelContext.createProducerTemplate() : null;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public ProducerTemplate getProducerTemplate() {
+        return template;
+    }
+
+    /**
+     * Runs the task on the lane of the given key, after the tasks already
+     * submitted to that lane. Tasks without a key are spread over all the lanes.
+     * When the lane queue is full the caller waits for room.
+     */
+    public void submit(String key, Runnable task) {
+        if (!running) {
+            throw new RejectedExecutionException("The patient lanes are stopped");
+        }
+        int lane = key != null
+                ? Math.floorMod(key.hashCode(), lanes.size())
+                : Math.floorMod(roundRobin.getAndIncrement(), lanes.size());
+        try {
+            lanes.get(lane).put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for a patient lane", e);
+        }
+    }
+
+    // The loop of one lane, runs its tasks in order until STOP
+    private void run(BlockingQueue<Runnable> lane) {
+        try {
+            for (Runnable task = lane.take(); task != STOP; task = lane.take()) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOG.warn("A patient lane task failed: {}", e.getMessage(), e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() throws Exception {
+        running = false;
+        if (executor != null) {
+            // the lanes finish the tasks queued before STOP
+            for (BlockingQueue<Runnable> lane : lanes) {
+                lane.put(STOP);
+            }
+            camelContext.getExecutorServiceManager().shutdownGraceful(executor, 30000);
+        }
+        if (template != null) {
+            template.stop();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package sample.camel.processors;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Camel Processor that logs the body of one message out of every N, instead
+ * of every message as .log("... ${body}") does.
+ * <p/>
+ * Writing whole FHIR resources to the log for every message costs more than
+ * most stages of the pipeline, see StageMetrics. This processor logs a sample
+ * that is enough to see what is being sent, one line with the label, the
+ * message type, the message control ID and the body. With DEBUG enabled for
+ * this class every message is logged.
+ * <p/>
+ * The sample interval is the property hl7.log.payload-every: 1 logs every
+ * message and 0 none.
+ */
+public class SampledPayloadLogger implements Processor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SampledPayloadLogger.class);
+
+    private final String label;
+    private final int every;
+    private final AtomicLong count = new AtomicLong();
+
+    public SampledPayloadLogger(String label, int every) {
+        this.label = label;
+        this.every = every;
+    }
+
+    @Override
+    public void process(Exchange exchange) throws Exception {
+        boolean sampled = every > 0 && count.getAndIncrement() % every == 0;
+        if (sampled || LOG.isDebugEnabled()) {
+            String line = "{} {}^{} {}: {}";
+            Object[] args = { label,
+                    exchange.getIn().getHeader(VerifyHl7Type.MESSAGE_TYPE),
+                    exchange.getIn().getHeader(VerifyHl7Type.TRIGGER_EVENT),
+                    exchange.getIn().getHeader(VerifyHl7Type.CONTROL_ID),
+                    exchange.getIn().getBody(String.class) };
+            if (sampled) {
+                LOG.info(line, args);
+            } else {
+                LOG.debug(line, args);
+            }
+        }
+    }
+}
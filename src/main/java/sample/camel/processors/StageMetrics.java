@@ -0,0 +1,164 @@
+package sample.camel.processors;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.NamedNode;
+import org.apache.camel.Processor;
+import org.apache.camel.model.MarshalDefinition;
+import org.apache.camel.model.ProcessDefinition;
+import org.apache.camel.model.ProcessorDefinition;
+import org.apache.camel.model.ProcessorDefinitionHelper;
+import org.apache.camel.model.RouteDefinition;
+import org.apache.camel.model.ToDefinition;
+import org.apache.camel.model.ToDynamicDefinition;
+import org.apache.camel.model.UnmarshalDefinition;
+import org.apache.camel.spi.InterceptStrategy;
+import org.apache.camel.support.processor.DelegateAsyncProcessor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * A Camel InterceptStrategy that times every stage of the HL7 to FHIR
+ * pipeline, published as the Micrometer timer hl7.stage.
+ * <p/>
+ * Camel Spring Boot adds every InterceptStrategy bean to the CamelContext, so
+ * the routes need no change: when the routes are built, the steps below are
+ * wrapped with a timer, the other steps are left alone.
+ * <ul>
+ * <li>normalize: Hl7Normalizer.</li>
+ * <li>verify: VerifyHl7Type.</li>
+ * <li>unmarshal: .unmarshal() steps.</li>
+ * <li>map: Hl7MappingProcessor, OruTransactionBuilder and the Java mappers.</li>
+ * <li>marshal: .marshal() steps.</li>
+ * <li>fhir: the round trip to the FHIR server, fhir:// endpoints,
+ * FhirConditionalUpdater, FhirJsonSender, FhirTransactionSender and
+ * FhirTransactionBatcher (which includes the time waiting for the Bundle to
+ * fill up).</li>
+ * <li>outcome: OutcomeProcessor.</li>
+ * </ul>
+ * The timers are tagged with the stage, the route ID, the HL7 message type
+ * (the HL7MessageType header set by VerifyHl7Type, unknown before it runs)
+ * and the outcome (success or failure). The count of a timer is the
+ * throughput of the stage. Histograms and percentiles are configured with the
+ * management.metrics.distribution properties, see application.properties.
+ * See /actuator/metrics/hl7.stage and /actuator/prometheus.
+ */
+@Component("stageMetrics")
+public class StageMetrics implements InterceptStrategy {
+
+    private static final Map<Class<?>, String> STAGES = Map.ofEntries(
+            Map.entry(Hl7Normalizer.class, "normalize"),
+            Map.entry(VerifyHl7Type.class, "verify"),
+            Map.entry(Hl7MappingProcessor.class, "map"),
+            Map.entry(OruTransactionBuilder.class, "map"),
+            Map.entry(Hl7Register2FhirPatientProcessor.class, "map"),
+            Map.entry(Hl7ToFhirProcessor.class, "map"),
+            Map.entry(FhirConditionalUpdater.class, "fhir"),
+            Map.entry(FhirJsonSender.class, "fhir"),
+            Map.entry(FhirTransactionBatcher.class, "fhir"),
+            Map.entry(FhirTransactionSender.class, "fhir"),
+            Map.entry(OutcomeProcessor.class, "outcome"));
+
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public StageMetrics(MeterRegistry meterRegistry,
+            @Value("${hl7.metrics.stages.enabled:true}") boolean enabled) {
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+    }
+
+    @Override
+    public Processor wrapProcessorInInterceptors(CamelContext context, NamedNode definition, Processor target,
+            Processor nextTarget) throws Exception {
+        String stage = enabled ? stage(context, definition) : null;
+        if (stage == null) {
+            return target;
+        }
+        String routeId = routeId(definition);
+        return new DelegateAsyncProcessor(target) {
+            @Override
+            public boolean process(Exchange exchange, AsyncCallback callback) {
+                long start = System.nanoTime();
+                return processor.process(exchange, doneSync -> {
+                    record(stage, routeId != null ? routeId : exchange.getFromRouteId(), exchange,
+                            System.nanoTime() - start);
+                    callback.done(doneSync);
+                });
+            }
+        };
+    }
+
+    private void record(String stage, String routeId, Exchange exchange, long nanos) {
+        String type = messageType(exchange.getIn().getHeader(VerifyHl7Type.MESSAGE_TYPE, String.class));
+        String outcome = exchange.isFailed() ? "failure" : "success";
+        String key = stage + '|' + routeId + '|' + type + '|' + outcome;
+        timers.computeIfAbsent(key, k -> Timer.builder("hl7.stage")
+                .description("Time spent in each stage of the HL7 to FHIR pipeline")
+                .tag("stage", stage)
+                .tag("route", String.valueOf(routeId))
+                .tag("messageType", type)
+                .tag("outcome", outcome)
+                .register(meterRegistry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static String stage(CamelContext context, NamedNode definition) {
+        if (definition instanceof UnmarshalDefinition) {
+            return "unmarshal";
+        }
+        if (definition instanceof MarshalDefinition) {
+            return "marshal";
+        }
+        if (definition instanceof ToDefinition) {
+            String uri = ((ToDefinition) definition).getUri();
+            return uri != null && uri.startsWith("fhir:") ? "fhir" : null;
+        }
+        if (definition instanceof ToDynamicDefinition) {
+            // the fhir:// endpoint of the shard of the patient, see FhirShards
+            String uri = ((ToDynamicDefinition) definition).getUri();
+            return uri != null && uri.startsWith("fhir:") ? "fhir" : null;
+        }
+        if (definition instanceof ProcessDefinition) {
+            ProcessDefinition process = (ProcessDefinition) definition;
+            Object processor = process.getProcessor();
+            if (processor == null && process.getRef() != null) {
+                processor = context.getRegistry().lookupByName(process.getRef());
+            }
+            return processor != null ? STAGES.get(processor.getClass()) : null;
+        }
+        return null;
+    }
+
+    private static String routeId(NamedNode definition) {
+        if (definition instanceof ProcessorDefinition) {
+            RouteDefinition route = ProcessorDefinitionHelper.getRoute((ProcessorDefinition<?>) definition);
+            return route != null ? route.getRouteId() : null;
+        }
+        return null;
+    }
+
+    // The header comes from the message, keep the tag values to real HL7 types
+    // so a bad sender cannot create new timers at will
+    private static String messageType(String type) {
+        if (type == null || type.length() != 3) {
+            return "unknown";
+        }
+        for (int i = 0; i < 3; i++) {
+            char c = type.charAt(i);
+            if ((c < 'A' || c > 'Z') && (c < '0' || c > '9')) {
+                return "unknown";
+            }
+        }
+        return type;
+    }
+}
@@ -7,9 +7,7 @@ import org.springframework.stereotype.Component;
 
 import ca.uhn.hl7v2.model.Message;
 import ca.uhn.hl7v2.model.Segment;
-import ca.uhn.hl7v2.model.v24.segment.MSH;
-import ca.uhn.hl7v2.parser.PipeParser;
-import net.sourceforge.plantuml.utils.Log;
+import sample.camel.hl7.MshHeader;
 
 // A simple Processor to verify the HL7 message type and trigger event.
 // It extracts the MSH-9 fields and sets them as headers in the Camel exchange. 
@@ -17,33 +15,49 @@ import net.sourceforge.plantuml.utils.Log;
 // The fields extracted are:
 // MSH-9.1: Message Type (e.g., ADT, ORU)
 // MSH-9.2: Trigger Event (e.g., A01, R01)
+// MSH-4: Sending Facility
+// MSH-10: Message Control ID
+// MSH-12: Version ID (e.g., 2.4)
 // And they are inserted as headers:
 // HL7MessageType: ADT, ORU, etc.
 // HL7TriggerEvent: A01, R01, etc.
+// HL7SendingFacility: the facility that sent the message
+// HL7MessageControlId: the control ID chosen by the sender
+// HL7VersionId: 2.4, etc.
+// The whole MshHeader is also kept in the exchange property HL7MshHeader.
+// The body is expected to be the raw HL7 text (String or byte[]), so the MSH
+// segment is read without parsing the message. This allows a route to reject
+// a message before paying for the full HAPI parse. An already unmarshalled
+// HAPI Message is accepted too, then only its MSH segment is encoded.
 @Component("verifyHl7Type")
 public class VerifyHl7Type implements Processor {
+
+    public static final String MESSAGE_TYPE = "HL7MessageType";
+    public static final String TRIGGER_EVENT = "HL7TriggerEvent";
+    public static final String SENDING_FACILITY = "HL7SendingFacility";
+    public static final String CONTROL_ID = "HL7MessageControlId";
+    public static final String VERSION_ID = "HL7VersionId";
+    public static final String MSH_HEADER = "HL7MshHeader";
+
     @Override
     public void process(Exchange exchange) throws Exception {
-        System.out.println("Verifying HL7 message type and trigger event");
-        // Get the HL7 message from the exchange body
+        Object body = exchange.getIn().getBody();
+        MshHeader msh;
+        if (body instanceof Message) {
+            msh = MshHeader.parse(((Segment) ((Message) body).get("MSH")).encode());
+        } else if (body instanceof byte[]) {
+            byte[] raw = (byte[]) body;
+            msh = MshHeader.parse(raw, 0, raw.length);
+        } else {
+            msh = MshHeader.parse(exchange.getIn().getMandatoryBody(String.class));
+        }
 
-        Message message = exchange.getIn().getBody(Message.class);
-        // Extract the MSH segment
-        Segment msh = (Segment) message.get("MSH");
-        System.out.println("MSH Segment: " + msh.encode());
-        String mshString = msh.encode();
-        System.out.println("MSH AS String: " + mshString);
-        // Extract MSH-9 fields to get message type and trigger event
-        String messageType = msh.getField(9, 0).encode().split("\\^")[0];
-        String triggerEvent = msh.getField(9, 0).encode().split("\\^").length > 1
-                ? msh.getField(9, 0).encode().split("\\^")[1]
-                : "";
-
-        System.out.println("HL7MessageType: " + messageType);
-        System.out.println("HL7TriggerEvent: " + triggerEvent);
         // Set them as headers in the exchange
-        exchange.getIn().setHeader("HL7MessageType", messageType);
-        exchange.getIn().setHeader("HL7TriggerEvent", triggerEvent);
-
+        exchange.getIn().setHeader(MESSAGE_TYPE, msh.getMessageType());
+        exchange.getIn().setHeader(TRIGGER_EVENT, msh.getTriggerEvent());
+        exchange.getIn().setHeader(SENDING_FACILITY, msh.getSendingFacility());
+        exchange.getIn().setHeader(CONTROL_ID, msh.getControlId());
+        exchange.getIn().setHeader(VERSION_ID, msh.getVersionId());
+        exchange.setProperty(MSH_HEADER, msh);
     }
 }
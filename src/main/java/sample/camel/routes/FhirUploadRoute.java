@@ -0,0 +1,270 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sample.camel.routes;
+
+import sample.camel.fhir.FhirJsonPayload;
+import sample.camel.fhir.FhirShards;
+import sample.camel.processors.FhirTransactionSender;
+import sample.camel.processors.OutcomeProcessor;
+import sample.camel.processors.PatientChangeDetector;
+import sample.camel.processors.SampledPayloadLogger;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.LoggingLevel;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.fhir.FhirJsonDataFormat;
+import org.apache.camel.model.ChoiceDefinition;
+import org.apache.camel.spi.IdempotentRepository;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * The route every HL7 route uses to send the FHIR resource it built to the
+ * FHIR server.
+ * <p/>
+ * The body must be the FHIR resource (for example the Patient created by
+ * Hl7Register2FhirPatientProcessor). When the route finishes the body holds the
+ * text produced by OutcomeProcessor and the HTTP response code header is set,
+ * whichever upload mode is used:
+ * <ul>
+ * <li>fhir.batch.enabled=false: one fhir://create/resource call per message.</li>
+ * <li>fhir.batch.enabled=true: the resource is queued by FhirTransactionBatcher
+ * and sent inside a FHIR transaction Bundle together with the resources of
+ * other messages.</li>
+ * </ul>
+ * With hl7.dedup.enabled=true a message is sent only once: the sending facility
+ * and message control ID headers set by VerifyHl7Type are kept in the
+ * hl7MessageIdRepository (see DeduplicationConfiguration) and a message with a
+ * known key is answered without calling the FHIR server. A key is forgotten
+ * again when the upload fails, so a retry of a failed message goes through.
+ * <p/>
+ * With fhir.cache.enabled=true the Patient is compared with the last one sent
+ * for the same patient (see PatientChangeDetector): an identical Patient is
+ * not sent at all and a changed one updates the server resource with If-Match
+ * (FhirConditionalUpdater, or a PUT entry of the transaction Bundle) instead
+ * of creating a new Patient. A Patient the cache does not know is sent as a
+ * conditional update on its identifier, so it is never created twice.
+ * <p/>
+ * The transaction Bundle of an ORU message (see OruTransactionBuilder) is sent
+ * as it is by FhirTransactionSender, one round trip per message.
+ * <p/>
+ * With fhir.json.streaming=true the body is the JSON already written by
+ * Hl7MappingProcessor (FhirJsonPayload), sent as it is by FhirJsonSender
+ * instead of the fhir:// endpoint.
+ * <p/>
+ * With fhir.spool.enabled=true the resource is kept in a durable local spool
+ * when the FHIR server is unreachable, instead of failing the message (see
+ * FhirSpoolGuard); the message is answered with the code 202 and the timer
+ * route fhirspool-drain sends the spooled resources when the server is back
+ * (FhirSpoolDrainer). FhirCircuitBreaker stops calling a dead server.
+ * <p/>
+ * With fhir.shards set, the resources are spread over several FHIR servers by
+ * patient (see FhirShards): the fhir:// endpoint uses the client of the shard
+ * chosen for the message, named in the header HL7FhirShard.
+ * <p/>
+ * The routes have no error handler of their own, so exceptions are handled by
+ * the onException blocks of the calling route.
+ * <p/>
+ */
+@Component
+public class FhirUploadRoute extends RouteBuilder {
+
+    // The key of a message in the idempotent repository, set by VerifyHl7Type
+    private static final String MESSAGE_KEY = "${header.HL7SendingFacility}|${header.HL7MessageControlId}";
+
+    @Value("${fhir.batch.enabled:false}")
+    private boolean batchEnabled;
+
+    @Value("${fhir.cache.enabled:false}")
+    private boolean cacheEnabled;
+
+    @Value("${hl7.dedup.enabled:false}")
+    private boolean dedupEnabled;
+
+    @Value("${hl7.log.payload-every:100}")
+    private int payloadLogEvery;
+
+    @Value("${fhir.spool.enabled:false}")
+    private boolean spoolEnabled;
+
+    private final IdempotentRepository messageIdRepository;
+    private final FhirContext fhirContext;
+    private final FhirShards fhirShards;
+
+    public FhirUploadRoute(@Qualifier("hl7MessageIdRepository") IdempotentRepository messageIdRepository,
+            FhirContext fhirContext, FhirShards fhirShards) {
+        this.messageIdRepository = messageIdRepository;
+        this.fhirContext = fhirContext;
+        this.fhirShards = fhirShards;
+    }
+
+    @Override
+    public void configure() throws Exception {
+        // The route that sends the resource, behind the spool when it is on
+        String send = spoolEnabled ? "direct:fhirGuarded" : "direct:fhirSend";
+
+        if (dedupEnabled) {
+            // Messages without a control ID cannot be recognised, they are
+            // always sent.
+            from("direct:fhirUpload").routeId("fhirupload-fhirserver")
+                    .errorHandler(noErrorHandler())
+                    .choice()
+                    .when(simple("${header.HL7MessageControlId} == null || ${header.HL7MessageControlId} == ''"))
+                    .to(send)
+                    .otherwise()
+                    .to("direct:fhirSendOnce")
+                    .end();
+
+            // skipDuplicate(false) lets duplicates in, flagged with the
+            // CamelDuplicateMessage property, so the caller still gets an answer
+            // (and an MLLP sender its AA acknowledgement).
+            from("direct:fhirSendOnce").routeId("fhirsendonce-fhirserver")
+                    .errorHandler(noErrorHandler())
+                    .idempotentConsumer(simple(MESSAGE_KEY), messageIdRepository)
+                    .skipDuplicate(false)
+                    .choice()
+                    .when(exchangeProperty(Exchange.DUPLICATE_MESSAGE).isEqualTo(true))
+                    .log(LoggingLevel.WARN,
+                            "Skipping duplicate message ${header.HL7MessageControlId} from ${header.HL7SendingFacility}")
+                    .setBody(simple("Message ${header.HL7MessageControlId} was already sent to the FHIR server."))
+                    .setHeader(Exchange.HTTP_RESPONSE_CODE, constant("200"))
+                    .otherwise()
+                    .to(send)
+                    // The idempotent consumer only forgets the key on an
+                    // exception, a rejected upload must be retried too. A
+                    // spooled resource (202) will be sent, the key is kept.
+                    .process(exchange -> {
+                        String code = exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE, String.class);
+                        if (!"200".equals(code) && !"202".equals(code)) {
+                            messageIdRepository.remove(simple(MESSAGE_KEY).evaluate(exchange, String.class));
+                        }
+                    })
+                    .end();
+        } else {
+            from("direct:fhirUpload").routeId("fhirupload-fhirserver")
+                    .errorHandler(noErrorHandler())
+                    .to(send);
+        }
+
+        if (spoolEnabled) {
+            // Spool the resource when the FHIR server is unavailable, see
+            // FhirSpoolGuard, and drain the spool every fhir.spool.drain-interval
+            // milliseconds, see FhirSpoolDrainer. The drainer goes on until the
+            // spool is empty or the circuit breaker opens.
+            from("direct:fhirGuarded").routeId("fhirguarded-fhirserver")
+                    .errorHandler(noErrorHandler())
+                    .process("fhirSpoolGuard");
+
+            from("timer:fhirSpoolDrain?delay=1000&period={{fhir.spool.drain-interval:1000}}")
+                    .routeId("fhirspool-drain")
+                    .process("fhirSpoolDrainer");
+        }
+
+        if (cacheEnabled) {
+            // Compare the Patient with the last one sent, see PatientChangeCache.
+            // The result of the upload, or its failure, is recorded in the cache
+            // by PatientChangeRecorder.
+            from("direct:fhirSend").routeId("fhirsend-fhirserver")
+                    .errorHandler(noErrorHandler())
+                    .process("patientChangeDetector")
+                    .choice()
+                    .when(exchangeProperty(PatientChangeDetector.CHANGE).isEqualTo(PatientChangeDetector.UNCHANGED))
+                    .log("${exchangeProperty.FhirCacheKey} unchanged, not sent")
+                    .setBody(simple("${exchangeProperty.FhirCacheKey} is unchanged in the FHIR server."))
+                    .setHeader(Exchange.HTTP_RESPONSE_CODE, constant("200"))
+                    .otherwise()
+                    .doTry()
+                    .to("direct:fhirWrite")
+                    .doFinally()
+                    .process("patientChangeRecorder")
+                    .end()
+                    .end();
+        } else {
+            from("direct:fhirSend").routeId("fhirsend-fhirserver")
+                    .errorHandler(noErrorHandler())
+                    .to("direct:fhirWrite");
+        }
+
+        // The transaction Bundle of a whole message (see OruTransactionBuilder)
+        // is sent by itself, in a single round trip, see FhirTransactionSender.
+        ChoiceDefinition route = from("direct:fhirWrite").routeId("fhirwrite-fhirserver")
+                .errorHandler(noErrorHandler())
+                .choice()
+                .when(exchange -> FhirTransactionSender.isTransaction(exchange.getIn().getBody()))
+                .process("fhirTransactionSender")
+                .otherwise();
+
+        if (batchEnabled) {
+            // Park the exchange until the transaction Bundle is sent, the body
+            // is then the Bundle entry response of this resource. A changed
+            // Patient is sent as a PUT entry with If-Match.
+            route.process("fhirTransactionBatcher");
+        } else {
+            // A Patient seen by PatientChangeDetector updates the server
+            // resource, with If-Match or on its identifier, see
+            // FhirConditionalUpdater.
+            route.choice()
+                    .when(exchangeProperty(PatientChangeDetector.CONDITION).isNotNull())
+                    .process("fhirConditionalUpdater")
+                    .otherwise()
+                    .to("direct:fhirCreate")
+                    .end();
+
+            // Marshal the resource to a JSON string and create it in our FHIR
+            // server. The endpoint uses the shared client of
+            // FhirClientConfiguration, created for {{serverUrl}}.
+            // See https://camel.apache.org/components/3.20.x/fhir-component.html
+            // for more information about the FHIR component.
+            // JSON written by Hl7JsonWriter is posted as it is, see
+            // FhirJsonSender. Only a sample of the patients is logged, see
+            // SampledPayloadLogger.
+            SampledPayloadLogger insertLog = new SampledPayloadLogger("Inserting Patient", payloadLogEvery);
+            FhirJsonDataFormat fhirJson = new FhirJsonDataFormat();
+            fhirJson.setFhirContext(fhirContext);
+            ChoiceDefinition create = from("direct:fhirCreate").routeId("fhircreate-fhirserver")
+                    .errorHandler(noErrorHandler())
+                    .choice()
+                    .when(body().isInstanceOf(FhirJsonPayload.class))
+                    .process(insertLog)
+                    .process("fhirJsonSender")
+                    .otherwise()
+                    // the shared FhirContext, warmed up at startup (see
+                    // StartupWarmup), instead of one built by the data format
+                    .marshal(fhirJson)
+                    // log the patient in order to see the output
+                    .convertBodyTo(String.class)
+                    .process(insertLog);
+            if (fhirShards.isSharded()) {
+                // The client of the shard of the patient, bound in the
+                // registry as fhirShard0, fhirShard1... by FhirShards
+                create.process(fhirShards::assign)
+                        .toD("fhir://create/resource?inBody=resourceAsString&client=#${header.HL7FhirShard}&fhirContext=#fhirContext&fhirVersion={{fhirVersion}}");
+            } else {
+                create.to("fhir://create/resource?inBody=resourceAsString&client=#fhirClient&fhirContext=#fhirContext&fhirVersion={{fhirVersion}}");
+            }
+            create.end();
+        }
+
+        // Process the MethodOutcome or Bundle entry response to safely access
+        // the response data.
+        route.end().process(new OutcomeProcessor());
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sample.camel.routes;
+
+import java.util.concurrent.ExecutorService;
+
+import sample.camel.hl7.Hl7BatchSplitter;
+import sample.camel.processors.BatchProgressAggregationStrategy;
+import sample.camel.processors.FileClaims;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.LoggingLevel;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.builder.ThreadPoolProfileBuilder;
+import org.apache.camel.util.concurrent.ThreadPoolRejectedPolicy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * A Camel route that triggers from batch files with many HL7 messages and feeds
+ * each message to the register and observation pipelines.
+ * <p/>
+ * The batch files are read from the directory defined by the property
+ * batch.input. They can be HL7 batches (FHS/BHS ... BTS/FTS) or MLLP framed
+ * streams of messages, see the Hl7BatchReader class. The file is read
+ * incrementally, so files of hundreds of MB never need to fit in memory.
+ * <p/>
+ * Each message is sent to direct:hl7 (see FromRegisterPut2FHIRRoute), which
+ * dispatches it to the pipeline of its type, see Hl7MessageDispatcher. Up to
+ * batch.parallelism messages are processed at the same time; when all the
+ * threads are busy the file consumer thread runs the next message itself,
+ * which stops it from reading ahead. The result of every message is counted and logged, see the
+ * BatchProgressAggregationStrategy class.
+ * <p/>
+ */
+@Component
+// Define the Camel route, by extending RouteBuilder
+public class FromBatchFile2FHIRRoute extends RouteBuilder {
+
+    @Value("${batch.parallelism:4}")
+    private int parallelism;
+
+    @Value("${batch.progress-interval:1000}")
+    private long progressInterval;
+
+    @Value("${hl7.claims.enabled:false}")
+    private boolean claimsEnabled;
+
+    @Override
+    public void configure() throws Exception {
+        ExecutorService executor = getContext().getExecutorServiceManager().newThreadPool(this, "Hl7Batch",
+                new ThreadPoolProfileBuilder("hl7Batch")
+                        .poolSize(parallelism)
+                        .maxPoolSize(parallelism)
+                        .maxQueueSize(parallelism)
+                        .rejectedPolicy(ThreadPoolRejectedPolicy.CallerRuns)
+                        .build());
+
+        // With hl7.claims.enabled=true several nodes share the directory, each
+        // batch file is claimed by one of them, see FileClaims
+        String uri = claimsEnabled ? "file:{{batch.input}}?" + FileClaims.CONSUMER_OPTIONS : "file:{{batch.input}}";
+        from(uri).routeId("batchfilehl7-fhirserver")
+                .log("Splitting batch file ${file:name}")
+                // Split the file in single HL7 messages while it is read
+                .split(method(new Hl7BatchSplitter(), "split"),
+                        new BatchProgressAggregationStrategy(progressInterval))
+                .streaming()
+                .parallelProcessing()
+                .executorService(executor)
+                .doTry()
+                    // direct:hl7 reads the MSH and dispatches the message to the
+                    // pipeline of its type, see Hl7MessageDispatcher
+                    .to("direct:hl7")
+                .endDoTry()
+                .doCatch(Exception.class)
+                    .log(LoggingLevel.ERROR,
+                            "Message ${exchangeProperty.CamelSplitIndex} of ${file:name} failed: ${exception.message}")
+                    .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(500))
+                .end()
+                .end()
+                .log("Batch file ${file:name} done: ${body}");
+    }
+
+}
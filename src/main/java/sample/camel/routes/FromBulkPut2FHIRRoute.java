@@ -0,0 +1,109 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sample.camel.routes;
+
+import java.util.concurrent.ExecutorService;
+
+import sample.camel.hl7.Hl7BatchSplitter;
+import sample.camel.processors.BulkResultAggregationStrategy;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.LoggingLevel;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.builder.ThreadPoolProfileBuilder;
+import org.apache.camel.util.concurrent.ThreadPoolRejectedPolicy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * A Camel route that receives many HL7 messages in one HTTP request and feeds
+ * each message to the register and observation pipelines.
+ * <p/>
+ * POST /healthcare/hl7receiver/bulk accepts the same bodies as the batch file
+ * route: HL7 batches (FHS/BHS ... BTS/FTS), messages one after the other, or
+ * MLLP framed messages, optionally gzip compressed. The body is read
+ * incrementally by Hl7BatchReader, see the Hl7BatchSplitter class.
+ * <p/>
+ * Each message is sent to direct:hl7 (see FromRegisterPut2FHIRRoute), which
+ * dispatches it to the pipeline of its type (see Hl7MessageDispatcher), up to
+ * bulk.parallelism messages at the same time. With fhir.batch.enabled=true the resources of the
+ * request end up in the same FHIR transaction Bundles, see
+ * FhirTransactionBatcher. As in the batch file route the messages of one request
+ * are not kept in order.
+ * <p/>
+ * The response is a JSON array with the result of every message, see the
+ * BulkResultAggregationStrategy class. It is written when the last message is
+ * done, not streamed while the messages are processed. The request itself
+ * answers 200 as soon as its body could be read, the code of each message is
+ * in the array.
+ * <p/>
+ */
+@Component
+// Define the Camel route, by extending RouteBuilder
+public class FromBulkPut2FHIRRoute extends RouteBuilder {
+
+    @Value("${bulk.parallelism:8}")
+    private int parallelism;
+
+    @Override
+    public void configure() throws Exception {
+        ExecutorService executor = getContext().getExecutorServiceManager().newThreadPool(this, "Hl7Bulk",
+                new ThreadPoolProfileBuilder("hl7Bulk")
+                        .poolSize(parallelism)
+                        .maxPoolSize(parallelism)
+                        .maxQueueSize(parallelism)
+                        .rejectedPolicy(ThreadPoolRejectedPolicy.CallerRuns)
+                        .build());
+
+        rest("/hl7receiver")
+                .post("/bulk")
+                .consumes("text/plain,application/hl7-v2,application/gzip,application/octet-stream")
+                .produces("application/json")
+                .to("direct:hl7Bulk");
+
+        from("direct:hl7Bulk").routeId("bulkhl7-fhirserver")
+                .log("Splitting bulk request")
+                // Split the body in single HL7 messages while it is read
+                .split(method(new Hl7BatchSplitter(), "split"), new BulkResultAggregationStrategy())
+                .streaming()
+                .parallelProcessing()
+                .executorService(executor)
+                .doTry()
+                    // direct:hl7 reads the MSH and dispatches the message to the
+                    // pipeline of its type, see Hl7MessageDispatcher
+                    .to("direct:hl7")
+                .endDoTry()
+                .doCatch(Exception.class)
+                    .log(LoggingLevel.ERROR,
+                            "Message ${exchangeProperty.CamelSplitIndex} of the bulk request failed: ${exception.message}")
+                    .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(500))
+                .end()
+                .end()
+                // The headers are the ones of a message of the request, reset them
+                .removeHeaders("HL7*")
+                .setHeader(Exchange.CONTENT_TYPE, constant("application/json"))
+                .choice()
+                    .when(exchangeProperty(BulkResultAggregationStrategy.RESULTS).isNull())
+                        .setBody().constant("{\"error\":\"No HL7 messages found in the request\"}")
+                        .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(400))
+                    .otherwise()
+                        .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(200))
+                        .log("Bulk request done: ${exchangeProperty.HL7BatchProgress}")
+                .end();
+    }
+
+}
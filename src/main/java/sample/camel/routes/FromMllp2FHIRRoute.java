@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sample.camel.routes;
+
+import sample.camel.processors.MllpAckProcessor;
+
+import org.apache.camel.LoggingLevel;
+import org.apache.camel.builder.RouteBuilder;
+import org.springframework.stereotype.Component;
+
+/**
+ * A Camel route that receives HL7 v2 messages over MLLP and posts them to a
+ * FHIR server.
+ * <p/>
+ * The listener is a netty TCP server, so many sender connections are served by
+ * a few non blocking IO threads. Every message is processed by the same
+ * pipeline as the REST receiver (direct:hl7, see FromRegisterPut2FHIRRoute) and
+ * answered with an HL7 acknowledgement built from its MSH segment by
+ * MllpAckProcessor.
+ * <p/>
+ * Use <tt>@Component</tt> to make Camel auto detect this route when starting.
+ * When this is commented the route is not started.
+ * <p/>
+ */
+@Component
+public class FromMllp2FHIRRoute extends RouteBuilder {
+
+    @Override
+    public void configure() throws Exception {
+
+        // Step 0: Define message origin and route ID.
+        // The route listens on the TCP port defined by the property mllp.port in
+        // application.properties. The decoder and encoder beans, defined in
+        // MllpConfiguration, remove and add the MLLP frame of each message.
+        // sync=true sends the body at the end of the route back as the reply.
+        // The messages are processed on an ordered executor of
+        // mllp.pipeline-threads threads: the messages of one connection are
+        // processed one after the other, in the order they were received,
+        // while different connections are processed in parallel.
+        from("netty:tcp://{{mllp.host:localhost}}:{{mllp.port}}?sync=true"
+                + "&decoders=#hl7decoder&encoders=#hl7encoder"
+                + "&usingExecutorService=true&maximumPoolSize={{mllp.pipeline-threads}}")
+                .routeId("mllpregisterhl7-fhirserver")
+                .autoStartup("{{mllp.enabled:false}}")
+                // Step 1: Process the message with the register pipeline.
+                // direct:hl7 reads the MSH (VerifyHl7Type), rejects the message
+                // types it does not support, maps the patient and uploads it.
+                // Errors not handled by that route are caught here so the sender
+                // always receives an acknowledgement.
+                .doTry()
+                .to("direct:hl7")
+                .doCatch(Exception.class)
+                .log(LoggingLevel.ERROR, "Error processing MLLP message ${header.HL7MessageControlId}: ${exception.message}")
+                .end()
+                // Step 2: Replace the body with the acknowledgement.
+                // It is built from the MSH read by VerifyHl7Type, the message is
+                // not parsed again. See the MllpAckProcessor class for the codes.
+                .process(new MllpAckProcessor());
+    }
+
+}
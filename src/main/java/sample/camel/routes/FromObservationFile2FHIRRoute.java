@@ -16,15 +16,18 @@
  */
 package sample.camel.routes;
 
-import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.hl7v2.HL7Exception;
-import ca.uhn.hl7v2.model.v24.message.ORU_R01;
-import ca.uhn.hl7v2.model.v24.segment.PID;
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.model.RouteDefinition;
 import org.apache.http.ProtocolException;
-import org.hl7.fhir.r4.model.Patient;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
+import sample.camel.processors.FileClaims;
+import sample.camel.processors.InputWatcher;
+import sample.camel.processors.PatientLaneProcessor;
+import sample.camel.processors.PatientLanes;
+import sample.camel.processors.VerifyHl7Type;
 
 /**
  * A simple Camel route that triggers from a file and posts to a FHIR server.
@@ -38,8 +41,9 @@ import org.springframework.stereotype.Component;
  * of the
  * sample repository https://github.com/apache/camel-spring-boot-examples
  * <p/>
- * It processes HL7 ORU_R01 messages to extract patient information and create
- * FHIR Patient resources, this is not an actual use case in healthcare domain
+ * It processes HL7 ORU_R01 messages into the Patient, DiagnosticReport and
+ * Observation resources of the message, stored with one FHIR transaction
+ * (see OruTransactionBuilder)
  * <p/>
  * This route has also been developed as a yaml route in fileinput.camel.yaml,
  * available at resources/routes
@@ -51,6 +55,23 @@ import org.springframework.stereotype.Component;
 // Define the Camel route, by extending RouteBuilder
 public class FromObservationFile2FHIRRoute extends RouteBuilder {
 
+    private final PatientLanes patientLanes;
+    private final InputWatcher inputWatcher;
+
+    @Value("${oru.transaction.enabled:false}")
+    private boolean transactionEnabled;
+
+    @Value("${hl7.claims.enabled:false}")
+    private boolean claimsEnabled;
+
+    @Value("${hl7.watch.enabled:false}")
+    private boolean watchEnabled;
+
+    public FromObservationFile2FHIRRoute(PatientLanes patientLanes, InputWatcher inputWatcher) {
+        this.patientLanes = patientLanes;
+        this.inputWatcher = inputWatcher;
+    }
+
     @Override
     public void configure() throws Exception {
         // Step 0: Define message origin and route ID.
@@ -58,8 +79,46 @@ public class FromObservationFile2FHIRRoute extends RouteBuilder {
         // "input" in application.properties.
         // The routeId is used in the log messages to identify the route.
         // The fhirVersion and serverUrl are also defined in application.properties.
+        // With hl7.claims.enabled=true several nodes share the directory, each
+        // file is claimed by one of them, see the FileClaims class.
+        String uri = claimsEnabled ? "file:{{input}}?" + FileClaims.CONSUMER_OPTIONS : "file:{{input}}";
+        if (watchEnabled) {
+            // With hl7.watch.enabled=true the files are sent by InputWatcher
+            // when they are created, instead of a poll listing the directory.
+            // The events of a shared volume are local to each host.
+            if (claimsEnabled) {
+                throw new IllegalStateException(
+                        "hl7.watch.enabled and hl7.claims.enabled cannot be used together, the file events of"
+                                + " a shared volume are not seen by the other nodes");
+            }
+            uri = InputWatcher.ENDPOINT;
+            getContext().addStartupListener(inputWatcher);
+        }
+
+        RouteDefinition input = from(uri).routeId("observationfilehl7-fhirserver")
+                .onException(HL7Exception.class)
+                .handled(true)
+                .log(LoggingLevel.ERROR, "Error unmarshalling ${file:name} ${exception.message}")
+                .end()
+                .log("Converting ${file:name}")
+                // Read the MSH segment, the sending facility and control ID
+                // headers identify the message for the duplicate check of
+                // FhirUploadRoute. See the VerifyHl7Type class.
+                // The other inputs of direct:hl7Observation (the dispatcher of
+                // FromRegisterPut2FHIRRoute) have read it already.
+                .process(new VerifyHl7Type());
+        if (patientLanes.isEnabled()) {
+            // Process the files of different patients in parallel, the files of
+            // one patient stay in order. See the PatientLanes class.
+            input.process(new PatientLaneProcessor(patientLanes, "direct:hl7Observation"));
+        } else {
+            input.to("direct:hl7Observation");
+        }
 
-        from("file:{{input}}").routeId("observationfilehl7-fhirserver")
+        // The processing of the ORU message is in its own route, so other inputs
+        // (the REST, MLLP, batch and bulk receivers through Hl7MessageDispatcher)
+        // can feed messages to it.
+        from("direct:hl7Observation").routeId("observationhl7-fhirserver")
                 // Step 1: Handle exceptions related to FHIR server connectivity
                 // and HL7 unmarshalling.
                 // These are handled in the route using onException blocks.
@@ -73,86 +132,37 @@ public class FromObservationFile2FHIRRoute extends RouteBuilder {
                 .handled(true)
                 .log(LoggingLevel.ERROR, "Error unmarshalling ${file:name} ${exception.message}")
                 .end()
-                //
-                .log("Converting ${file:name}")
-                // Step 2: Unmarshal the HL7 v2 message to a HAPI HL7 message object.
-                // The HL7 data format is provided by the camel-hl7 component.
-                .unmarshal().hl7()
-                // Step 3: Process the HAPI HL7 message to extract patient information
-                // and create a FHIR Patient resource.
-                // The processor uses HAPI structures to access the HL7 message.
-                // See https://hapifhir.io/hapi-hl7v2/apidocs/index.html
-                // for more information about the HL7 structures.
-                // This Process is implemented as a lambda expression in the place of a
-                // org.apache.camel.Processor functional interface.
-                // See https://camel.apache.org/manual/processor.html for more information
-                // The created Patient resource is set as the message body
-                // replacing the original HL7 message.
-                // See https://camel.apache.org/components/3.20.x/dataformats/hl7.html
-                // for more information about the HL7 data format.
-                // See https://hapifhir.io/hapi-fhir/apidocs/hapi-fhir-base/index.html
-                // for more information about the FHIR structures.
-                // See https://www.hl7.org/fhir/patient.html for more information
-                // about the FHIR Patient resource.
-                .process(exchange -> {
-                    // Read de original HL7 message, type cast to ORU_R01 so this kind of message is
-                    // expected
-                    // ORU | Observation Result. This message type indicates that the purpose is to
-                    // transmit observation data or results.
-                    // R01 | Unsolicited Transmission of an Observation Message. This is the trigger
-                    // event that indicates a system (e.g., the LIS or RIS) is proactively sending a
-                    // newly generated result to a record-keeping system (e.g., the EHR).
-                    ORU_R01 msg = exchange.getIn().getBody(ORU_R01.class);
-                    // Extract the patient information
-                    final PID pid = msg.getPATIENT_RESULT().getPATIENT().getPID();
-                    String surname = pid.getPatientName()[0].getFamilyName().getFn1_Surname().getValue();
-                    String name = pid.getPatientName()[0].getGivenName().getValue();
-                    String patientId = msg.getPATIENT_RESULT().getPATIENT().getPID().getPatientID().getCx1_ID()
-                            .getValue();
-                    // Create a FHIR Patient and set the values
-                    Patient patient = new Patient();
-                    patient.addName().addGiven(name);
-                    patient.getNameFirstRep().setFamily(surname);
-                    patient.setId(patientId);
-                    // Set the patient in the exchange. replace the HL7 message with the FHIR
-                    // Patient resource
-                    exchange.getIn().setBody(patient);
-                })
-                // Step 4: Marshal the Patient resource to a JSON string
-                // and send it to the FHIR server using the FHIR component.
-                // The FHIR component uses the HAPI FHIR structures.
-                // See https://camel.apache.org/components/3.20.x/fhir-component.html
-                // for more information about the FHIR component.
-                // The FHIR server URL is set using the property serverUrl defined
-                // in application.properties.
-                // The FHIR version is set using the property fhirVersion defined
-                // in application.properties.
-                .marshal().fhirJson("{{fhirVersion}}")
-                // log the patient in order to see the output
-                .convertBodyTo(String.class)
-                .log("Inserting Patient: ${body}")
-                // create Patient in our FHIR server
-                .to("fhir://create/resource?inBody=resourceAsString&serverUrl={{serverUrl}}&fhirVersion={{fhirVersion}}")
-                // Step 5: Process the MethodOutcome object to safely access the response data.
-                // The MethodOutcome object contains information about the result of the
-                // create operation, including the ID of the created resource.
-                // The processor checks if the ID is present and sets an appropriate message
-                // in the exchange.
-                // This Process is implemented as a lambda expression in the place of a
-                // org.apache.camel.Processor functional interface.
-                // See https://camel.apache.org/manual/processor.html for more information
-                .process(exchange -> {
-                    MethodOutcome outcome = exchange.getIn().getBody(MethodOutcome.class);
-                    if (outcome != null && outcome.getId() != null) {
-                        // Access the ID of the created resource.
-                        String createdId = outcome.getId().getIdPart();
-                        exchange.getIn().setBody("Created Patient with ID: " + createdId + " In the FHIR server.");
-                    } else {
-                        exchange.getIn()
-                                .setBody("Patient created successfully, but the server response was incomplete.");
-                    }
-                })
-
+                // The headers of VerifyHl7Type are set by the caller.
+                // Step 2 and 3: Map the ORU message to FHIR resources.
+                // With oru.transaction.enabled=true every OBR becomes
+                // a DiagnosticReport and every OBX an Observation, in a transaction
+                // Bundle together with a conditional create of the Patient, see the
+                // OruTransactionBuilder class. The whole message is then stored
+                // with a single request.
+                // Otherwise only the Patient is mapped: the mapping is declared in
+                // resources/mappings/oru-patient.yaml and compiled when the
+                // application starts, see the Hl7MappingRegistry class.
+                // In both cases the values are read straight from the raw text.
+                // ORU | Observation Result. This message type indicates that the purpose is to
+                // transmit observation data or results.
+                // R01 | Unsolicited Transmission of an Observation Message. This is the trigger
+                // event that indicates a system (e.g., the LIS or RIS) is proactively sending a
+                // newly generated result to a record-keeping system (e.g., the EHR).
+                // The Bundle or Patient is set as the message body replacing the
+                // original HL7 message.
+                // See https://www.hl7.org/fhir/observation.html and
+                // https://www.hl7.org/fhir/diagnosticreport.html for more
+                // information about the FHIR resources.
+                .process(transactionEnabled ? "oruTransactionBuilder" : "hl7MappingProcessor")
+                // Step 4: Send the Patient resource to the FHIR server.
+                // The upload is done by the route direct:fhirUpload, see
+                // FhirUploadRoute. Depending on the property fhir.batch.enabled the
+                // resource is created with its own request or sent together with
+                // other resources in a FHIR transaction Bundle.
+                // In both cases the body returned is the outcome of this message,
+                // processed by OutcomeProcessor, and the HTTP response code header
+                // is set.
+                .to("direct:fhirUpload")
                 .log("Fhir Server ${body}");
 
     }
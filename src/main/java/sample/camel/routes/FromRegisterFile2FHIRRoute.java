@@ -22,8 +22,8 @@ import ca.uhn.hl7v2.model.v24.message.ADT_A01;
 import ca.uhn.hl7v2.model.v24.message.ADT_A03;
 import ca.uhn.hl7v2.model.v24.message.ORU_R01;
 import ca.uhn.hl7v2.model.v24.segment.PID;
+import sample.camel.processors.Hl7Normalizer;
 import sample.camel.processors.Hl7Register2FhirPatientProcessor;
-import sample.camel.processors.OutcomeProcessor;
 import sample.camel.processors.VerifyHl7Type;
 
 import org.apache.camel.Exchange;
@@ -71,37 +71,23 @@ public class FromRegisterFile2FHIRRoute extends RouteBuilder {
                 //
                 .log("Converting ${file:name}")
 
-                .convertBodyTo(String.class)
-                .process(exchange -> {
-                    String raw = exchange.getIn().getBody(String.class);
-                    // Normalizar saltos de línea a \r
-                    raw = raw.replaceAll("\\r?\\n", "\r");
-                    // Desescapar HTML si es necesario
-                    raw = org.apache.commons.text.StringEscapeUtils.unescapeHtml4(raw);
-                    exchange.getIn().setBody(raw);
-                })
-                .unmarshal().hl7()
-                .log("HL7 Message after unmarshal: ${body}")
-                .process(new VerifyHl7Type())
-                // Step 2: Unmarshal the HL7 v2 message to a HAPI HL7 message object.
-                // The HL7 data format is provided by the camel-hl7 component.
-
-                // Verify the HL7 message type and trigger event
+                // Normalize segment terminators to \r and decode HTML entities in a
+                // single pass over the raw bytes. See the Hl7Normalizer class for
+                // more details.
+                .process(new Hl7Normalizer())
+                // Step 2: Verify the HL7 message type and trigger event
                 // and set them as headers in the Camel exchange.
                 // This is done in a separate Processor class VerifyHl7Type
                 // to keep the route clean and modular.
-                // The Processor extracts the MSH-9 fields and sets them as headers:
+                // The Processor reads the MSH segment directly from the raw text,
+                // without parsing the whole message, and sets them as headers:
                 // HL7MessageType: ADT, ORU, etc.
                 // HL7TriggerEvent: A01, R01, etc.
+                // HL7MessageControlId and HL7VersionId: MSH-10 and MSH-12.
                 // See the VerifyHl7Type class for more details.
                 // This Processor is annotated with @Component so it is auto detected by
                 // Spring and Camel.
                 // See https://camel.apache.org/manual/processor.html for more information
-                // See https://camel.apache.org/components/3.20.x/dataformats/hl7.html
-                // for more information about the HL7 data format.
-                // See https://hapifhir.io/hapi-hl7v2/apidocs/index.html
-                // for more information about the HL7 structures.
-
                 .process(new VerifyHl7Type())
                 // The route expects ADT^A04 messages for patient registration.
                 // ADT | Admit Discharge Transfer. This message type indicates that the purpose
@@ -113,8 +99,8 @@ public class FromRegisterFile2FHIRRoute extends RouteBuilder {
 
                 .choice()
                 .when(exchange -> {
-                    String type = exchange.getIn().getHeader("HL7MessageType", String.class);
-                    String event = exchange.getIn().getHeader("HL7TriggerEvent", String.class);
+                    String type = exchange.getIn().getHeader(VerifyHl7Type.MESSAGE_TYPE, String.class);
+                    String event = exchange.getIn().getHeader(VerifyHl7Type.TRIGGER_EVENT, String.class);
                     return !"ADT".equals(type) || !"A04".equals(event); // condición de error
                 })
                 .log(LoggingLevel.WARN, "Received unsupported HL7 message: ${header.CamelFileName}")
@@ -122,6 +108,15 @@ public class FromRegisterFile2FHIRRoute extends RouteBuilder {
                 .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(400))
                 .otherwise()
                 .log("Valid ADT^A04 message. Processing...")
+                // Unmarshal the HL7 v2 message to a HAPI HL7 message object, only
+                // for the messages we accept, rejected messages are never parsed.
+                // The HL7 data format is provided by the camel-hl7 component.
+                // See https://camel.apache.org/components/3.20.x/dataformats/hl7.html
+                // for more information about the HL7 data format.
+                // See https://hapifhir.io/hapi-hl7v2/apidocs/index.html
+                // for more information about the HL7 structures.
+                .unmarshal().hl7()
+                .log(LoggingLevel.DEBUG, "HL7 Message after unmarshal: ${body}")
 
                 // Step 3: Process the HAPI HL7 message to extract patient information
                 // and create a FHIR Patient resource.
@@ -140,30 +135,15 @@ public class FromRegisterFile2FHIRRoute extends RouteBuilder {
                 // See https://www.hl7.org/fhir/patient.html for more information
                 // about the FHIR Patient resource.
                 .process(new Hl7Register2FhirPatientProcessor())
-                // Step 4: Marshal the Patient resource to a JSON string
-                // and send it to the FHIR server using the FHIR component.
-                // The FHIR component uses the HAPI FHIR structures.
-                // See https://camel.apache.org/components/3.20.x/fhir-component.html
-                // for more information about the FHIR component.
-                // The FHIR server URL is set using the property serverUrl defined
-                // in application.properties.
-                // The FHIR version is set using the property fhirVersion defined
-                // in application.properties.
-                .marshal().fhirJson("{{fhirVersion}}")
-                // log the patient in order to see the output
-                .convertBodyTo(String.class)
-                .log("Inserting Patient: ${body}")
-                // create Patient in our FHIR server
-                .to("fhir://create/resource?inBody=resourceAsString&serverUrl={{serverUrl}}&fhirVersion={{fhirVersion}}")
-                // Step 5: Process the MethodOutcome object to safely access the response data.
-                // The MethodOutcome object contains information about the result of the
-                // create operation, including the ID of the created resource.
-                // The processor checks if the ID is present and sets an appropriate message
-                // in the exchange.
-                // This Process is implemented as a lambda expression in the place of a
-                // org.apache.camel.Processor functional interface.
-                // See https://camel.apache.org/manual/processor.html for more information
-                .process(new OutcomeProcessor())
+                // Step 4: Send the Patient resource to the FHIR server.
+                // The upload is done by the route direct:fhirUpload, see
+                // FhirUploadRoute. Depending on the property fhir.batch.enabled the
+                // resource is created with its own request or sent together with
+                // other resources in a FHIR transaction Bundle.
+                // In both cases the body returned is the outcome of this message,
+                // processed by OutcomeProcessor, and the HTTP response code header
+                // is set.
+                .to("direct:fhirUpload")
                 .log("Fhir Server ${body}")
                 .endChoice();
 
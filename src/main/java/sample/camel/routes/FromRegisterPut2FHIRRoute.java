@@ -17,14 +17,19 @@
 package sample.camel.routes;
 
 import ca.uhn.hl7v2.HL7Exception;
-import sample.camel.processors.Hl7Register2FhirPatientProcessor;
-import sample.camel.processors.OutcomeProcessor;
+import sample.camel.processors.Hl7MessageDispatcher;
+import sample.camel.processors.Hl7Normalizer;
+import sample.camel.processors.Hl7TrackingStore;
+import sample.camel.processors.PatientLaneProcessor;
+import sample.camel.processors.PatientLanes;
 import sample.camel.processors.VerifyHl7Type;
 
 import org.apache.camel.Exchange;
+import org.apache.camel.ExchangePattern;
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.http.ProtocolException;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 /**
@@ -40,6 +45,29 @@ import org.springframework.stereotype.Component;
 // Define the Camel route, by extending RouteBuilder
 public class FromRegisterPut2FHIRRoute extends RouteBuilder {
 
+    private static final String RAW_BODY = "HL7RawBody";
+
+    private final PatientLanes patientLanes;
+    private final Hl7MessageDispatcher dispatcher;
+
+    // Asynchronous mode: the PUT answers 202 as soon as the message is queued
+    @Value("${hl7.rest.async.enabled:false}")
+    private boolean asyncEnabled;
+
+    @Value("${hl7.rest.async.queue-size:1000}")
+    private int asyncQueueSize;
+
+    @Value("${hl7.rest.async.consumers:16}")
+    private int asyncConsumers;
+
+    @Value("${hl7.rest.async.retry-after:5}")
+    private int asyncRetryAfter;
+
+    public FromRegisterPut2FHIRRoute(PatientLanes patientLanes, Hl7MessageDispatcher hl7Dispatcher) {
+        this.patientLanes = patientLanes;
+        this.dispatcher = hl7Dispatcher;
+    }
+
     @Override
     public void configure() throws Exception {
         // Step 0: Define message origin and route ID.
@@ -47,11 +75,24 @@ public class FromRegisterPut2FHIRRoute extends RouteBuilder {
         // "input" in application.properties.
         // The routeId is used in the log messages to identify the route.
         // The fhirVersion and serverUrl are also defined in application.properties.
+        String pipeline = patientLanes.isEnabled() ? "direct:hl7Lanes" : "direct:hl7";
         rest("/hl7receiver")
                 .put()
                 .consumes("text/plain")
                 .produces("application/json")
-                .to("direct:hl7");
+                .to(asyncEnabled ? "direct:hl7Accept" : pipeline);
+
+        if (asyncEnabled) {
+            configureAsync(pipeline);
+        }
+
+        // Process the requests of different patients in parallel, the requests
+        // of one patient stay in order. The caller gets its response when its
+        // message has been processed. See the PatientLanes class.
+        if (patientLanes.isEnabled()) {
+            from("direct:hl7Lanes").routeId("putreceiverhl7-lanes")
+                    .process(new PatientLaneProcessor(patientLanes, "direct:hl7"));
+        }
 
         // ==============================================================================
         // 2. Ruta Principal de Procesamiento (Anteriormente 'file:', ahora
@@ -75,127 +116,147 @@ public class FromRegisterPut2FHIRRoute extends RouteBuilder {
                 //
                 .log("Converting ${file:name}")
 
-                .convertBodyTo(String.class)
-                .process(exchange -> {
-                    String raw = exchange.getIn().getBody(String.class);
-                    // Normalizar saltos de línea a \r
-                    raw = raw.replaceAll("\\r?\\n", "\r");
-                    // Desescapar HTML si es necesario
-                    raw = org.apache.commons.text.StringEscapeUtils.unescapeHtml4(raw);
-                    exchange.getIn().setBody(raw);
-                })
-                .unmarshal().hl7()
-                .log("HL7 Message after unmarshal: ${body}")
-                .process(new VerifyHl7Type())
-
-                .onException(ProtocolException.class)
-                .handled(true)
-                .log(LoggingLevel.ERROR,
-                        "Error connecting to FHIR server with URL:{{serverUrl}}, please check the application.properties file ${exception.message}")
-                .end()
-                .onException(HL7Exception.class)
-                .handled(true)
-                .log(LoggingLevel.ERROR, "Error unmarshalling ${file:name} ${exception.message}")
-                .end()
-                //
-                .log("Converting ${file:name}")
-
-                .convertBodyTo(String.class)
-                .process(exchange -> {
-                    String raw = exchange.getIn().getBody(String.class);
-                    // Normalizar saltos de línea a \r
-                    raw = raw.replaceAll("\\r?\\n", "\r");
-                    // Desescapar HTML si es necesario
-                    raw = org.apache.commons.text.StringEscapeUtils.unescapeHtml4(raw);
-                    exchange.getIn().setBody(raw);
-                })
-                .unmarshal().hl7()
-                .log("HL7 Message after unmarshal: ${body}")
-                .process(new VerifyHl7Type())
-                // Step 2: Unmarshal the HL7 v2 message to a HAPI HL7 message object.
-                // The HL7 data format is provided by the camel-hl7 component.
-
-                // Verify the HL7 message type and trigger event
+                // Normalize segment terminators to \r and decode HTML entities in a
+                // single pass over the raw bytes. See the Hl7Normalizer class for
+                // more details.
+                .process(new Hl7Normalizer())
+                // Step 2: Verify the HL7 message type and trigger event
                 // and set them as headers in the Camel exchange.
                 // This is done in a separate Processor class VerifyHl7Type
                 // to keep the route clean and modular.
-                // The Processor extracts the MSH-9 fields and sets them as headers:
+                // The Processor reads the MSH segment directly from the raw text,
+                // without parsing the whole message, and sets them as headers:
                 // HL7MessageType: ADT, ORU, etc.
                 // HL7TriggerEvent: A01, R01, etc.
+                // HL7MessageControlId and HL7VersionId: MSH-10 and MSH-12.
                 // See the VerifyHl7Type class for more details.
                 // This Processor is annotated with @Component so it is auto detected by
                 // Spring and Camel.
                 // See https://camel.apache.org/manual/processor.html for more information
-                // See https://camel.apache.org/components/3.20.x/dataformats/hl7.html
-                // for more information about the HL7 data format.
-                // See https://hapifhir.io/hapi-hl7v2/apidocs/index.html
-                // for more information about the HL7 structures.
-
                 .process(new VerifyHl7Type())
-                // The route expects ADT^A04 messages for patient registration.
+                // Step 3: Send the message to the pipeline of its type.
+                // The dispatch table is read from the property hl7.dispatch.routes
+                // when the application starts: by default only ADT^A04, to
+                // direct:hl7Register below; ADT^A01, A08, A31 and ORU^R01 (to
+                // direct:hl7Observation, see FromObservationFile2FHIRRoute) can
+                // be added to it. A message type without a target
+                // is answered with a 400, a target with too many messages in
+                // progress with a 503. See the Hl7MessageDispatcher class.
                 // ADT | Admit Discharge Transfer. This message type indicates that the purpose
                 // is to
                 // transmit patient admission, discharge, or transfer information.
-                // We are interested in A04 | Register a Patient. This trigger event indicates
+                // A04 | Register a Patient. This trigger event indicates
                 // that a patient is being
                 // registered in a healthcare system, typically for outpatient services.
+                .process("hl7Dispatcher");
 
-                .choice()
-                .when(exchange -> {
-                    String type = exchange.getIn().getHeader("HL7MessageType", String.class);
-                    String event = exchange.getIn().getHeader("HL7TriggerEvent", String.class);
-                    return !"ADT".equals(type) || !"A04".equals(event); // condición de error
-                })
-                .log(LoggingLevel.WARN, "Received unsupported HL7 message: ${header.CamelFileName}")
-                .setBody().constant("ERROR: Unexpected type message. Expected ADT^A04.")
-                .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(400))
-                .otherwise()
-                .log("Valid ADT^A04 message. Processing...")
-
-                // Step 3: Process the HAPI HL7 message to extract patient information
-                // and create a FHIR Patient resource.
-                // The processor uses HAPI structures to access the HL7 message.
-                // See https://hapifhir.io/hapi-hl7v2/apidocs/index.html
-                // for more information about the HL7 structures.
-                // This Process is implemented as a lambda expression in the place of a
-                // org.apache.camel.Processor functional interface.
-                // See https://camel.apache.org/manual/processor.html for more information
+        // The register pipeline, dispatched by the route above. The exceptions
+        // are handled by the calling route.
+        from("direct:hl7Register").routeId("putregisterhl7-patient")
+                .errorHandler(noErrorHandler())
+                .log("Valid ${header.HL7MessageType}^${header.HL7TriggerEvent} message. Processing...")
+
+                // Step 4: Map the HL7 message to a FHIR resource, a Patient for
+                // the ADT messages.
+                // The mapping is declared in a YAML file in resources/mappings
+                // and compiled when the application starts, see the
+                // Hl7MappingRegistry class. The values are read straight from the
+                // raw text, the message is never unmarshalled to HAPI structures.
                 // The created Patient resource is set as the message body
                 // replacing the original HL7 message.
-                // See https://camel.apache.org/components/3.20.x/dataformats/hl7.html
-                // for more information about the HL7 data format.
                 // See https://hapifhir.io/hapi-fhir/apidocs/hapi-fhir-base/index.html
                 // for more information about the FHIR structures.
                 // See https://www.hl7.org/fhir/patient.html for more information
                 // about the FHIR Patient resource.
-                .process(new Hl7Register2FhirPatientProcessor())
-                // Step 4: Marshal the Patient resource to a JSON string
-                // and send it to the FHIR server using the FHIR component.
-                // The FHIR component uses the HAPI FHIR structures.
-                // See https://camel.apache.org/components/3.20.x/fhir-component.html
-                // for more information about the FHIR component.
-                // The FHIR server URL is set using the property serverUrl defined
-                // in application.properties.
-                // The FHIR version is set using the property fhirVersion defined
-                // in application.properties.
-                .marshal().fhirJson("{{fhirVersion}}")
-                // log the patient in order to see the output
-                .convertBodyTo(String.class)
-                .log("Inserting Patient: ${body}")
-                // create Patient in our FHIR server
-                .to("fhir://create/resource?inBody=resourceAsString&serverUrl={{serverUrl}}&fhirVersion={{fhirVersion}}")
-                // Step 5: Process the MethodOutcome object to safely access the response data.
-                // The MethodOutcome object contains information about the result of the
-                // create operation, including the ID of the created resource.
-                // The processor checks if the ID is present and sets an appropriate message
-                // in the exchange.
-                // This Process is implemented as a lambda expression in the place of a
-                // org.apache.camel.Processor functional interface.
-                // See https://camel.apache.org/manual/processor.html for more information
-                .process(new OutcomeProcessor())
-                .log("Fhir Server ${body}")
-                .endChoice();
+                .process("hl7MappingProcessor")
+                // Step 5: Send the Patient resource to the FHIR server.
+                // The upload is done by the route direct:fhirUpload, see
+                // FhirUploadRoute. Depending on the property fhir.batch.enabled the
+                // resource is created with its own request or sent together with
+                // other resources in a FHIR transaction Bundle.
+                // In both cases the body returned is the outcome of this message,
+                // processed by OutcomeProcessor, and the HTTP response code header
+                // is set.
+                .to("direct:fhirUpload")
+                .log("Fhir Server ${body}");
+
+    }
+
+    // Asynchronous mode, see the property hl7.rest.async.enabled. The PUT only
+    // checks the MSH segment against the dispatch table and queues the message, the caller gets a 202 with
+    // a tracking ID and asks for the outcome later on GET /status/{trackingId}.
+    // The queue is bounded: when it is full the caller gets a 503 with a
+    // Retry-After header instead of waiting for a free slot.
+    private void configureAsync(String pipeline) {
+        // The same URI for the producer and the consumer, so both agree on the
+        // queue size
+        String queue = "seda:hl7Async?size=" + asyncQueueSize
+                + "&blockWhenFull=false&concurrentConsumers=" + asyncConsumers;
+
+        rest("/hl7receiver")
+                .get("/status/{trackingId}")
+                .produces("application/json")
+                .to("direct:hl7Status");
+
+        from("direct:hl7Status").routeId("putreceiverhl7-status")
+                .bean("hl7TrackingStore", "status");
+
+        from("direct:hl7Accept").routeId("putreceiverhl7-accept")
+                .onException(HL7Exception.class)
+                .handled(true)
+                .log(LoggingLevel.WARN, "Rejected invalid HL7 message: ${exception.message}")
+                .setBody().simple("ERROR: Invalid HL7 message, ${exception.message}")
+                .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(400))
+                .end()
+                // Keep the body as received, the pipeline normalizes it again
+                .convertBodyTo(byte[].class)
+                .setProperty(RAW_BODY, body())
+                .process(new Hl7Normalizer())
+                .process(new VerifyHl7Type())
+                .choice()
+                .when(exchange -> {
+                    String type = exchange.getIn().getHeader(VerifyHl7Type.MESSAGE_TYPE, String.class);
+                    String event = exchange.getIn().getHeader(VerifyHl7Type.TRIGGER_EVENT, String.class);
+                    String version = exchange.getIn().getHeader(VerifyHl7Type.VERSION_ID, String.class);
+                    return !dispatcher.supports(type, event, version);
+                })
+                .log(LoggingLevel.WARN, "Received unsupported HL7 message: ${header.HL7MessageType}^${header.HL7TriggerEvent}")
+                .setBody().simple("ERROR: Unexpected type message ${header.HL7MessageType}^${header.HL7TriggerEvent}, there is no mapping for it.")
+                .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(400))
+                .otherwise()
+                .setBody(exchangeProperty(RAW_BODY))
+                // Recorded before it is queued, so a consumer never sees an
+                // unknown tracking ID
+                .bean("hl7TrackingStore", "accepted")
+                .doTry()
+                    .to(ExchangePattern.InOnly, queue)
+                    .setBody().simple("{\"trackingId\":\"${header.HL7TrackingId}\",\"status\":\"queued\"}")
+                    .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(202))
+                    .setHeader("Location", simple("{{camel.rest.context-path}}/hl7receiver/status/${header.HL7TrackingId}"))
+                // The seda queue throws IllegalStateException: Queue full
+                .doCatch(IllegalStateException.class)
+                    .bean("hl7TrackingStore", "rejected")
+                    .log(LoggingLevel.WARN, "Queue full, rejected ${header.HL7MessageControlId}")
+                    .setBody().simple("{\"error\":\"The queue is full, retry later\"}")
+                    .setHeader(Exchange.HTTP_RESPONSE_CODE, constant(503))
+                    .setHeader("Retry-After", constant(String.valueOf(asyncRetryAfter)))
+                .end()
+                .endChoice()
+                .end()
+                .removeProperty(RAW_BODY);
 
+        // Takes the messages from the queue and runs the same pipeline as the
+        // synchronous mode, the outcome left by OutcomeProcessor is recorded
+        // for the status endpoint
+        from(queue).routeId("putreceiverhl7-async")
+                .bean("hl7TrackingStore", "processing")
+                .doTry()
+                    .to(pipeline)
+                .doCatch(Exception.class)
+                    .log(LoggingLevel.ERROR, "Asynchronous message ${header.HL7TrackingId} failed: ${exception.message}")
+                .doFinally()
+                    .bean("hl7TrackingStore", "finished")
+                .end();
     }
 
 }
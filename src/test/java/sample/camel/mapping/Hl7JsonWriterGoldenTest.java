@@ -0,0 +1,71 @@
+package sample.camel.mapping;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import ca.uhn.fhir.context.FhirContext;
+import sample.camel.fhir.FhirJsonPayload;
+import sample.camel.fhir.PatientChangeCache;
+import sample.camel.hl7.RawHl7Message;
+import sample.camel.processors.Hl7Normalizer;
+
+/**
+ * Checks that Hl7JsonWriter writes, for every mapped message type, the same
+ * JSON as the HAPI serialization of the resource the mapping builds. The
+ * golden files are in src/test/resources/golden: name.hl7 is the message and
+ * name.json the expected serialization. Add a pair when a mapping changes.
+ */
+public class Hl7JsonWriterGoldenTest {
+
+    private static final FhirContext FHIR = FhirContext.forR4();
+
+    private static Hl7MappingRegistry mappings;
+
+    @BeforeAll
+    static void loadMappings() throws IOException {
+        mappings = new Hl7MappingRegistry(FHIR, "classpath:mappings/*.yaml", "UTC");
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "adt-a01, ADT, A01",
+            "adt-a04, ADT, A04",
+            "adt-a08, ADT, A08",
+            "adt-a31, ADT, A31",
+            "oru-r01, ORU, R01" })
+    void streamedJsonIsTheHapiSerialization(String name, String messageType, String triggerEvent)
+            throws Exception {
+        byte[] hl7 = read(name + ".hl7");
+        RawHl7Message message = new RawHl7Message(Hl7Normalizer.normalize(hl7, 0, hl7.length, StandardCharsets.UTF_8));
+        Hl7Mapping mapping = mappings.get(messageType, triggerEvent);
+        assertNotNull(mapping, "no mapping for " + messageType + "^" + triggerEvent);
+
+        String expected = new String(read(name + ".json"), StandardCharsets.UTF_8).trim();
+        Resource resource = (Resource) mapping.map(message);
+        FhirJsonPayload payload = mapping.writeJson(message);
+
+        assertEquals(expected, FHIR.newJsonParser().encodeResourceToString(resource), name + " HAPI serialization");
+        assertEquals(expected, payload.toString(), name + " Hl7JsonWriter");
+        assertEquals(resource.getIdElement().getIdPart(), payload.getId(), name + " id");
+
+        // the change cache must see both forms as the same content
+        PatientChangeCache cache = new PatientChangeCache(FHIR, true, 1, "");
+        assertEquals(cache.hash(resource), cache.hash(payload), name + " content hash");
+    }
+
+    private static byte[] read(String file) throws IOException {
+        try (InputStream in = Hl7JsonWriterGoldenTest.class.getResourceAsStream("/golden/" + file)) {
+            assertNotNull(in, "missing golden file " + file);
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package sample.camel.processors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.support.DefaultExchange;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import sample.camel.fhir.FhirShards;
+import sample.camel.fhir.FhirSpool;
+import sample.camel.fhir.PatientChangeCache;
+
+/**
+ * Sends a changed Patient while the FHIR server answers 503, so FhirSpoolGuard
+ * spools it, then drains the spool with FhirSpoolDrainer once the server is
+ * back. The routes are the ones of FhirUploadRoute with the spool and the
+ * change cache on, against a stand-in FHIR server that records the requests.
+ */
+public class FhirSpoolDrainTest {
+
+    private static final FhirContext FHIR = FhirContext.forR4();
+
+    @TempDir
+    Path spoolDir;
+
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private final AtomicInteger status = new AtomicInteger(200);
+    private HttpServer server;
+    private String base;
+    private CamelContext camelContext;
+    private PatientChangeCache cache;
+    private FhirSpool spool;
+    private FhirSpoolDrainer drainer;
+
+    @BeforeEach
+    void start() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/fhir", this::answer);
+        server.start();
+        base = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+
+        FHIR.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+        IGenericClient client = FHIR.newRestfulGenericClient(base);
+        MeterRegistry meters = new SimpleMeterRegistry();
+        camelContext = new DefaultCamelContext();
+        FhirShards shards = new FhirShards(camelContext, FHIR, client, meters, base, "", 16, false, 5000, 2);
+        FhirJsonSender jsonSender = new FhirJsonSender(shards, 5000);
+        FhirConditionalUpdater updater = new FhirConditionalUpdater(shards, jsonSender);
+        cache = new PatientChangeCache(FHIR, true, 100, "");
+        spool = new FhirSpool(FHIR, meters, true, spoolDir.toString(), 64 * 1024, false);
+        spool.open();
+        FhirCircuitBreaker breaker = new FhirCircuitBreaker(meters, 5, 1000, 60000);
+        FhirSpoolGuard guard = new FhirSpoolGuard(camelContext, spool, breaker);
+        PatientChangeDetector detector = new PatientChangeDetector(cache, shards);
+        PatientChangeRecorder recorder = new PatientChangeRecorder(cache, shards);
+
+        camelContext.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                from("direct:fhirGuarded")
+                        .errorHandler(noErrorHandler())
+                        .process(guard);
+                from("direct:fhirSend")
+                        .errorHandler(noErrorHandler())
+                        .process(detector)
+                        .doTry()
+                        .to("direct:fhirWrite")
+                        .doFinally()
+                        .process(recorder)
+                        .end();
+                from("direct:fhirWrite")
+                        .errorHandler(noErrorHandler())
+                        .choice()
+                        .when(exchangeProperty(PatientChangeDetector.CONDITION).isNotNull())
+                        .process(updater)
+                        .otherwise()
+                        // a create, the request the drain must not make
+                        .process(jsonSender)
+                        .end()
+                        .process(new OutcomeProcessor());
+            }
+        });
+        camelContext.start();
+        drainer = new FhirSpoolDrainer(camelContext, meters, spool, breaker, 4, 500);
+    }
+
+    @AfterEach
+    void stop() {
+        if (drainer != null) {
+            drainer.shutdown();
+        }
+        if (camelContext != null) {
+            camelContext.stop();
+        }
+        if (spool != null) {
+            spool.close();
+        }
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void drainUpdatesASpooledChangedPatient() throws Exception {
+        Patient sent = patient("1001", "Garcia");
+        cache.put("Patient/1001", new PatientChangeCache.Entry(cache.hash(sent), "srv-1", "3", base));
+
+        status.set(503);
+        assertEquals("202", send("MSG-1", patient("1001", "Garcia Lopez")));
+        assertEquals(1, spool.getDepth());
+
+        status.set(200);
+        requests.clear();
+        drainer.process(new DefaultExchange(camelContext));
+
+        assertEquals(0, spool.getDepth());
+        assertEquals(List.of("PUT /fhir/Patient/srv-1 W/\"3\""), requests);
+        assertFalse(requests.stream().anyMatch(request -> request.startsWith("POST")), requests.toString());
+        PatientChangeCache.Entry updated = cache.get("Patient/1001");
+        assertNotNull(updated);
+        assertEquals("4", updated.version());
+    }
+
+    @Test
+    void liveMessagesOfASpooledPatientWaitBehindIt() throws Exception {
+        Patient sent = patient("1001", "Garcia");
+        cache.put("Patient/1001", new PatientChangeCache.Entry(cache.hash(sent), "srv-1", "3", base));
+        status.set(503);
+        assertEquals("202", send("MSG-1", patient("1001", "Garcia Lopez")));
+
+        // the server is back: the patient with spooled entries is spooled
+        // behind them, another one is sent at once
+        status.set(200);
+        requests.clear();
+        assertEquals("202", send("MSG-2", patient("1001", "Garcia Ruiz")));
+        assertEquals("200", send("MSG-3", patient("1002", "Smith")));
+        assertEquals(List.of("PUT /fhir/Patient?identifier=1002"), requests);
+        assertEquals(2, spool.getDepth());
+
+        requests.clear();
+        drainer.process(new DefaultExchange(camelContext));
+        assertEquals(0, spool.getDepth());
+        assertEquals(List.of("PUT /fhir/Patient/srv-1 W/\"3\"", "PUT /fhir/Patient/srv-1 W/\"4\""), requests);
+    }
+
+    // Sends the Patient through the spool guard, returns the response code
+    private String send(String controlId, Patient patient) {
+        Exchange exchange = new DefaultExchange(camelContext);
+        exchange.getIn().setHeader(VerifyHl7Type.CONTROL_ID, controlId);
+        exchange.getIn().setHeader(FhirShards.SHARD_KEY, patient.getIdElement().getIdPart());
+        exchange.getIn().setBody(patient);
+        camelContext.createProducerTemplate().send("direct:fhirGuarded", exchange);
+        return exchange.getIn().getHeader(Exchange.HTTP_RESPONSE_CODE, String.class);
+    }
+
+    private static Patient patient(String id, String family) {
+        Patient patient = new Patient();
+        patient.setId(id);
+        patient.addIdentifier().setValue(id);
+        patient.addName().setFamily(family).addGiven("Ana");
+        patient.setGender(Enumerations.AdministrativeGender.FEMALE);
+        return patient;
+    }
+
+    // Records "METHOD path If-Match" and answers with the current status
+    private void answer(HttpExchange http) throws IOException {
+        String ifMatch = http.getRequestHeaders().getFirst("If-Match");
+        requests.add(http.getRequestMethod() + " " + http.getRequestURI() + (ifMatch != null ? " " + ifMatch : ""));
+        http.getRequestBody().readAllBytes();
+        int code = status.get();
+        if (code / 100 == 2) {
+            http.getResponseHeaders().add("Location", "http://localhost:" + server.getAddress().getPort()
+                    + "/fhir/Patient/srv-1/_history/4");
+            http.sendResponseHeaders(code, -1);
+        } else {
+            byte[] body = "{\"resourceType\":\"OperationOutcome\"}".getBytes(StandardCharsets.UTF_8);
+            http.getResponseHeaders().add("Content-Type", "application/fhir+json");
+            http.sendResponseHeaders(code, body.length);
+            http.getResponseBody().write(body);
+        }
+        http.close();
+    }
+}
@@ -0,0 +1,84 @@
+package sample.camel.processors;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.component.file.GenericFile;
+import org.apache.camel.component.file.GenericFileEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * A node of FileClaimsTest, run in its own JVM:
+ * <pre>
+ * FileClaimsNode [directory] [node] [lease]
+ * </pre>
+ * It prints STARTED once its heartbeat is running, claims every file of the
+ * directory when it reads a line on its standard input, printing CLAIMED
+ * [file] for each one it won and READY at the end, and releases them when it
+ * reads the next line, printing RELEASED. The test kills it to play a crash.
+ */
+public final class FileClaimsNode {
+
+    private FileClaimsNode() {
+    }
+
+    @SuppressWarnings("unchecked")
+    public static void main(String[] args) throws Exception {
+        Path directory = Paths.get(args[0]);
+        CamelContext camelContext = new DefaultCamelContext();
+        camelContext.start();
+        FileClaims claims = new FileClaims(camelContext, new SimpleMeterRegistry(), args[1], Long.parseLong(args[2]),
+                1000);
+        GenericFileEndpoint<File> endpoint = camelContext.getEndpoint("file:" + directory, GenericFileEndpoint.class);
+        claims.prepareOnStartup(null, endpoint);
+        System.out.println("STARTED");
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        in.readLine();
+        List<GenericFile<File>> won = new ArrayList<>();
+        for (GenericFile<File> file : files(directory)) {
+            if (claims.acquireExclusiveReadLock(null, file, null)) {
+                won.add(file);
+                System.out.println("CLAIMED " + file.getFileName());
+            }
+        }
+        System.out.println("READY");
+
+        in.readLine();
+        for (GenericFile<File> file : won) {
+            claims.releaseExclusiveReadLockOnCommit(null, file, null);
+        }
+        claims.shutdown();
+        camelContext.stop();
+        System.out.println("RELEASED");
+    }
+
+    /** The input files of the directory, in name order, as the file consumer sees them. */
+    static List<GenericFile<File>> files(Path directory) throws Exception {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                path -> Files.isRegularFile(path) && !path.getFileName().toString().startsWith("."))) {
+            files.forEach(paths::add);
+        }
+        paths.sort(null);
+        List<GenericFile<File>> result = new ArrayList<>();
+        for (Path path : paths) {
+            GenericFile<File> file = new GenericFile<>();
+            file.setFile(path.toFile());
+            file.setFileName(path.getFileName().toString());
+            result.add(file);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,227 @@
+package sample.camel.processors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.component.file.GenericFile;
+import org.apache.camel.component.file.GenericFileEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * Runs FileClaims in several JVMs on one directory, see FileClaimsNode: two
+ * nodes claiming the same files at the same time, a node killed while it
+ * holds its claims, and the release of a claim taken over by another node.
+ */
+@Timeout(120)
+public class FileClaimsTest {
+
+    private static final long LEASE = 3000;
+
+    @TempDir
+    Path input;
+
+    private final List<Node> nodes = new ArrayList<>();
+    private CamelContext camelContext;
+
+    @AfterEach
+    void stop() {
+        nodes.forEach(node -> node.process.destroyForcibly());
+        if (camelContext != null) {
+            camelContext.stop();
+        }
+    }
+
+    @Test
+    void everyFileIsClaimedByOneNode() throws Exception {
+        Set<String> files = inputFiles(200);
+        Node a = start("node-a");
+        Node b = start("node-b");
+        a.send();
+        b.send();
+        Set<String> claimedByA = a.claimed();
+        Set<String> claimedByB = b.claimed();
+
+        Set<String> both = new HashSet<>(claimedByA);
+        both.retainAll(claimedByB);
+        assertTrue(both.isEmpty(), "claimed by both nodes: " + both);
+        Set<String> all = new HashSet<>(claimedByA);
+        all.addAll(claimedByB);
+        assertEquals(files, all);
+
+        a.send();
+        b.send();
+        a.await("RELEASED");
+        b.await("RELEASED");
+        assertEquals(List.of(), claims());
+    }
+
+    @Test
+    void claimsOfAKilledNodeAreReclaimed() throws Exception {
+        Set<String> files = inputFiles(20);
+        Node a = start("node-a");
+        a.send();
+        assertEquals(files, a.claimed());
+        a.process.destroyForcibly().waitFor();
+
+        MeterRegistry meters = new SimpleMeterRegistry();
+        FileClaims b = claims("node-b", meters);
+        List<GenericFile<File>> inputs = FileClaimsNode.files(input);
+        assertFalse(b.acquireExclusiveReadLock(null, inputs.get(0), null), "claimed while node-a's lease runs");
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(5 * LEASE);
+        while (!b.acquireExclusiveReadLock(null, inputs.get(0), null)) {
+            assertTrue(System.nanoTime() < deadline, "the claims of node-a were never released");
+            Thread.sleep(200);
+        }
+        for (GenericFile<File> file : inputs.subList(1, inputs.size())) {
+            assertTrue(b.acquireExclusiveReadLock(null, file, null), file.getFileName());
+        }
+        assertEquals(files.size(), meters.get("hl7.claims.reclaimed").counter().count());
+        b.shutdown();
+    }
+
+    @Test
+    void releaseKeepsAClaimTakenOverByAnotherNode() throws Exception {
+        inputFiles(1);
+        Node a = start("node-a");
+        a.send();
+        assertEquals(Set.of("file-000.hl7"), a.claimed());
+
+        // node-a is thought dead: its claim is released and node-b takes the file
+        Path claim = input.resolve(".claims").resolve("file-000.hl7");
+        Files.delete(claim);
+        FileClaims b = claims("node-b", new SimpleMeterRegistry());
+        GenericFile<File> file = FileClaimsNode.files(input).get(0);
+        assertTrue(b.acquireExclusiveReadLock(null, file, null));
+
+        a.send();
+        a.await("RELEASED");
+        assertTrue(Files.exists(claim), "node-a removed the claim of node-b");
+        assertEquals("node-b", Files.readString(claim));
+
+        b.releaseExclusiveReadLockOnCommit(null, file, null);
+        assertFalse(Files.exists(claim));
+        b.shutdown();
+    }
+
+    private Set<String> inputFiles(int count) throws IOException {
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            String name = String.format("file-%03d.hl7", i);
+            Files.writeString(input.resolve(name), "MSH|^~\\&|TEST\r");
+            names.add(name);
+        }
+        return names;
+    }
+
+    private List<String> claims() throws IOException {
+        try (var files = Files.list(input.resolve(".claims"))) {
+            return files.filter(Files::isRegularFile).map(path -> path.getFileName().toString()).toList();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private FileClaims claims(String node, MeterRegistry meters) throws Exception {
+        if (camelContext == null) {
+            camelContext = new DefaultCamelContext();
+            camelContext.start();
+        }
+        FileClaims claims = new FileClaims(camelContext, meters, node, LEASE, 1000);
+        claims.prepareOnStartup(null, camelContext.getEndpoint("file:" + input, GenericFileEndpoint.class));
+        return claims;
+    }
+
+    private Node start(String name) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                FileClaimsNode.class.getName(), input.toString(), name, String.valueOf(LEASE))
+                .redirectErrorStream(true)
+                .start();
+        Node node = new Node(process);
+        nodes.add(node);
+        node.await("STARTED");
+        return node;
+    }
+
+    /** A FileClaimsNode process and the lines it printed. */
+    private static final class Node {
+        private final Process process;
+        private final Writer stdin;
+        private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+
+        private Node(Process process) {
+            this.process = process;
+            this.stdin = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+            Thread reader = new Thread(() -> {
+                try (BufferedReader out = new BufferedReader(
+                        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = out.readLine()) != null) {
+                        lines.add(line);
+                    }
+                } catch (IOException e) {
+                    // the process is gone
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /** Tells the node to go on to its next step. */
+        private void send() throws IOException {
+            stdin.write("go\n");
+            stdin.flush();
+        }
+
+        /** Waits for the line and returns the lines printed before it. */
+        private List<String> await(String expected) throws InterruptedException {
+            List<String> before = new ArrayList<>();
+            while (true) {
+                String line = lines.poll(60, TimeUnit.SECONDS);
+                assertNotNull(line, "no " + expected + " from the node, after " + before);
+                if (line.equals(expected)) {
+                    return before;
+                }
+                before.add(line);
+            }
+        }
+
+        private Set<String> claimed() throws InterruptedException {
+            Set<String> claimed = new HashSet<>();
+            for (String line : await("READY")) {
+                if (line.startsWith("CLAIMED ")) {
+                    claimed.add(line.substring("CLAIMED ".length()));
+                }
+            }
+            return claimed;
+        }
+    }
+}